@@ -22,6 +22,8 @@
 package ch.epfl.scapetoad;
 
 import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -47,11 +49,54 @@ import com.vividsolutions.jts.geom.LineString;
  */
 public class Cartogram {
 
+    /**
+     * The policies choosing the final cartogram grid size.
+     */
+    public enum GridSizePolicy {
+        /**
+         * The grid size proportional to the envelope is used as is.
+         */
+        EXACT("exact"),
+
+        /**
+         * The number of cells on each side is rounded to the nearest size
+         * whose only prime factors are 2, 3 and 5, for which the transforms
+         * are fast. The envelope is padded to keep the cells square.
+         */
+        FAST_TRANSFORM("fast transform (2^a 3^b 5^c cells)");
+
+        /**
+         * The description of the policy for the report.
+         */
+        private String iDescription;
+
+        /**
+         * Constructor.
+         * 
+         * @param aDescription
+         *            the description
+         */
+        private GridSizePolicy(String aDescription) {
+            iDescription = aDescription;
+        }
+
+        @Override
+        public String toString() {
+            return iDescription;
+        }
+    }
+
     /**
      * The logger.
      */
     private static Log logger = LogFactory.getLog(Cartogram.class);
 
+    /**
+     * The node motion, in cell sizes, below which the sweeps of the
+     * constrained deformation stop.
+     */
+    private static final double CONSTRAINED_DEFORMATION_TOLERANCE = 0.001;
+
     /**
      * The cartogram status.
      */
@@ -94,6 +139,17 @@ public class Cartogram {
      */
     private List<CartogramLayer> iConstrainedDeforamtionLayers;
 
+    /**
+     * The maximum number of sweeps of the constrained deformation.
+     */
+    private int iConstrainedDeformationSweeps = 1;
+
+    /**
+     * The number of sweeps of the constrained deformation done by the last
+     * computation.
+     */
+    private int iConstrainedDeformationSweepCount;
+
     /**
      * The initial envelope for all layers.
      */
@@ -104,6 +160,52 @@ public class Cartogram {
      */
     private int[] iGridSize = { 1000, 1000 };
 
+    /**
+     * The policy choosing the final grid size.
+     */
+    private GridSizePolicy iGridSizePolicy = GridSizePolicy.EXACT;
+
+    /**
+     * <code>true</code> to weight the cell densities by the feature coverage.
+     */
+    private boolean iAreaWeightedDensity = false;
+
+    /**
+     * The file in which the feature index of the master layer is saved,
+     * <code>null</code> to only keep it in memory.
+     */
+    private File iFeatureIndexFile;
+
+    /**
+     * The file in which the deformed grid is saved, <code>null</code> to not
+     * save it.
+     */
+    private File iTransformFile;
+
+    /**
+     * <code>true</code> to save the nodes of the deformed grid as float
+     * offsets, <code>false</code> as doubles.
+     */
+    private boolean iTransformFloatOffsets;
+
+    /**
+     * <code>true</code> to project the points shared by several features
+     * only once.
+     */
+    private boolean iProjectionCacheEnabled = false;
+
+    /**
+     * <code>true</code> to project the layers through the arc topology of
+     * their features.
+     */
+    private boolean iTopologyProjection = false;
+
+    /**
+     * The projection cache of the last computation, <code>null</code> if it
+     * was not enabled.
+     */
+    private CartogramProjectionCache iProjectionCache;
+
     /**
      * All the deformation is done on this cartogram grid.
      */
@@ -169,6 +271,29 @@ public class Cartogram {
      */
     private boolean iErrorOccured = false;
 
+    /**
+     * The number of threads used by the parallel parts of the computation. By
+     * default, one thread per available processor.
+     */
+    private int iThreadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The engine deforming the cartogram grid.
+     */
+    private ICartogramEngine iEngine = new CartogramNewmanEngine();
+
+    /**
+     * The engine whose result is compared with the one of the cartogram
+     * engine, or <code>null</code>.
+     */
+    private ICartogramEngine iComparisonEngine = null;
+
+    /**
+     * The mean size error of the comparison engine cartogram, or NaN if it was
+     * not computed.
+     */
+    private double iComparisonSizeError = Double.NaN;
+
     /**
      * The constructor for the cartogram class.
      * 
@@ -191,8 +316,10 @@ public class Cartogram {
      */
     public List<CartogramLayer> compute(boolean aCreateGridLayer,
             boolean aCreateLegendLayer) {
+        CartogramExecutor executor = new CartogramExecutor(iThreadCount);
         try {
             iComputationStartTime = System.nanoTime();
+            iComparisonSizeError = Double.NaN;
 
             if (iAdvancedOptionsEnabled == false) {
                 // Automatic estimation of the parameters using the amount of
@@ -215,6 +342,9 @@ public class Cartogram {
             // Adjust the cartogram grid size in order to be proportional
             // to the envelope.
             adjustGridSizeToEnvelope();
+            if (iGridSizePolicy == GridSizePolicy.FAST_TRANSFORM) {
+                adjustGridSizeToFastTransform();
+            }
             logger.debug(String.format("Adjusted grid size: %1$sx%2$s",
                     iGridSize[0], iGridSize[1]));
 
@@ -224,6 +354,8 @@ public class Cartogram {
 
             // Create the cartogram grid.
             iGrid = new CartogramGrid(iGridSize[0], iGridSize[1], iEnvelope);
+            iGrid.setAreaWeightedDensity(iAreaWeightedDensity);
+            iGrid.setFeatureIndexFile(iFeatureIndexFile);
 
             if (Thread.interrupted()) {
                 // Raise an InterruptedException.
@@ -252,7 +384,8 @@ public class Cartogram {
                     "Computing the density for the cartogram grid...", "");
 
             iGrid.computeOriginalDensityValuesWithLayer(iMasterLayer,
-                    iMasterAttribute, iMasterAttributeIsDensityValue, iStatus);
+                    iMasterAttribute, iMasterAttributeIsDensityValue, iStatus,
+                    executor);
 
             if (Thread.interrupted()) {
                 // Raise an InterruptedException.
@@ -277,17 +410,23 @@ public class Cartogram {
 
             // *** COMPUTE THE CARTOGRAM USING THE DIFFUSION ALGORITHM ***
 
-            iStatus.updateRunningStatus(350,
-                    "Computing cartogram diffusion...",
+            String title = "Computing cartogram diffusion...";
+            iStatus.updateRunningStatus(350, title,
                     "Starting the diffusion process");
-            CartogramNewman cnewm = new CartogramNewman(iGrid);
 
-            // Enable the CartogramNewman instance to update the running status.
-            cnewm.initializeStatus(iStatus, 350, 750,
-                    "Computing cartogram diffusion...");
+            // Keep a copy of the grid for the comparison engine.
+            CartogramGrid referenceGrid = null;
+            if (iComparisonEngine != null) {
+                referenceGrid = new CartogramGrid(iGrid);
+            }
 
-            // Let's go!
-            cnewm.compute();
+            if (referenceGrid == null) {
+                iEngine.compute(iGrid, iStatus, 350, 750, title, executor);
+            } else {
+                iEngine.compute(iGrid, iStatus, 350, 550, title, executor);
+                iComparisonEngine.compute(referenceGrid, iStatus, 550, 750,
+                        title, executor);
+            }
 
             if (Thread.interrupted()) {
                 // Raise an InterruptedException.
@@ -300,7 +439,15 @@ public class Cartogram {
                 iStatus.updateRunningStatus(700,
                         "Applying the constrained deformation layers", "");
 
-                iGrid.conformToConstrainedDeformation();
+                iConstrainedDeformationSweepCount = iGrid
+                        .conformToConstrainedDeformation(executor,
+                                iConstrainedDeformationSweeps,
+                                CONSTRAINED_DEFORMATION_TOLERANCE);
+                if (referenceGrid != null) {
+                    referenceGrid.conformToConstrainedDeformation(executor,
+                            iConstrainedDeformationSweeps,
+                            CONSTRAINED_DEFORMATION_TOLERANCE);
+                }
             }
 
             if (Thread.interrupted()) {
@@ -311,7 +458,20 @@ public class Cartogram {
 
             // Project all the layers
             iStatus.updateRunningStatus(750, "Projecting the layers...", "");
-            List<CartogramLayer> layers = projectLayers();
+            List<CartogramLayer> layers = projectLayers(executor);
+            if (iTransformFile != null) {
+                saveTransform();
+            }
+
+            // Measure the size error of the comparison engine cartogram.
+            if (referenceGrid != null) {
+                iStatus.updateRunningStatus(900, "Projecting the layers...",
+                        "Comparing with the %1$s engine",
+                        iComparisonEngine.getName());
+                iComparisonSizeError = projectLayer(iMasterLayer,
+                        referenceGrid, executor).computeCartogramSizeError(
+                        iMasterAttribute, iMasterLayer, "SizeError");
+            }
 
             if (Thread.interrupted()) {
                 // Raise an InterruptedException.
@@ -347,6 +507,15 @@ public class Cartogram {
                     "All attribute values are zero", exception.getMessage());
             iErrorOccured = true;
             iStatus.finished();
+        } catch (IllegalStateException exception) {
+            logger.error("Cartogram computation failed", exception);
+            iStatus.setComputationError(
+                    "An error occured during cartogram computation!",
+                    exception.getMessage(), "");
+            iErrorOccured = true;
+            iStatus.finished();
+        } finally {
+            executor.shutdown();
         }
         return null;
     }
@@ -435,6 +604,18 @@ public class Cartogram {
         iConstrainedDeforamtionLayers = aLayers;
     }
 
+    /**
+     * Defines the maximum number of sweeps of the constrained deformation.
+     * The sweeps stop earlier when no grid node moves by more than a
+     * thousandth of a cell. By default, a single sweep is done.
+     * 
+     * @param aSweeps
+     *            the maximum number of sweeps, at least 1
+     */
+    public void setConstrainedDeformationSweeps(int aSweeps) {
+        iConstrainedDeformationSweeps = Math.max(1, aSweeps);
+    }
+
     /**
      * Defines the grid size in x and y dimensions.
      * 
@@ -446,6 +627,88 @@ public class Cartogram {
         iGridSize[1] = aSize[1];
     }
 
+    /**
+     * Defines the policy choosing the final grid size. By default, the grid
+     * size is used as is.
+     * 
+     * @param aPolicy
+     *            the grid size policy
+     */
+    public void setGridSizePolicy(GridSizePolicy aPolicy) {
+        iGridSizePolicy = aPolicy;
+    }
+
+    /**
+     * Defines whether the cell densities are weighted by the area covered by
+     * each feature, instead of taking the density of the feature containing
+     * the cell centre.
+     * 
+     * @param aAreaWeighted
+     *            <code>true</code> for area weighted densities
+     */
+    public void setAreaWeightedDensity(boolean aAreaWeighted) {
+        iAreaWeightedDensity = aAreaWeighted;
+    }
+
+    /**
+     * Defines the file in which the feature index of the master layer is
+     * saved. The feature index gives the feature containing each grid cell;
+     * it is reused by the next computations with the same master layer and
+     * grid, even for another attribute, and by the next runs through this
+     * file.
+     * 
+     * @param aFile
+     *            the file, <code>null</code> to only keep the index in memory
+     */
+    public void setFeatureIndexFile(File aFile) {
+        iFeatureIndexFile = aFile;
+    }
+
+    /**
+     * Defines the file in which the deformed grid is saved, with the metadata
+     * needed to project other layers like the cartogram layers. The file can
+     * be loaded with CartogramTransform.read().
+     * 
+     * @param aFile
+     *            the file, <code>null</code> to not save the grid
+     * @param aFloatOffsets
+     *            <code>true</code> to save the nodes as float offsets from the
+     *            undeformed grid, <code>false</code> as doubles
+     */
+    public void setTransformFile(File aFile, boolean aFloatOffsets) {
+        iTransformFile = aFile;
+        iTransformFloatOffsets = aFloatOffsets;
+    }
+
+    /**
+     * Defines whether the projected points are cached while projecting the
+     * layers. The vertices shared by adjacent features, and by the slave
+     * layers repeating the borders of the master layer, are then projected
+     * only once, at the cost of the memory of the cache. The cache is not
+     * used by the topology projection, which already projects the shared
+     * borders once.
+     * 
+     * @param aEnabled
+     *            <code>true</code> to cache the projected points
+     */
+    public void setProjectionCache(boolean aEnabled) {
+        iProjectionCacheEnabled = aEnabled;
+    }
+
+    /**
+     * Defines whether the layers are projected through the arc topology of
+     * their features. The borders shared by several features are then
+     * densified and projected once, in parallel, and the projected features
+     * have no gaps nor overlaps along them. The original layers are not
+     * densified.
+     * 
+     * @param aEnabled
+     *            <code>true</code> for the topology projection
+     */
+    public void setTopologyProjection(boolean aEnabled) {
+        iTopologyProjection = aEnabled;
+    }
+
     /**
      * Defines the amount of deformation. This is an integer value between 0 and
      * 100. The default value is 50.
@@ -457,6 +720,41 @@ public class Cartogram {
         iAmountOfDeformation = aDeformation;
     }
 
+    /**
+     * Defines the number of threads used by the parallel parts of the
+     * computation. The result does not depend on the number of threads.
+     * 
+     * @param aThreadCount
+     *            the number of threads, at least 1
+     */
+    public void setThreadCount(int aThreadCount) {
+        iThreadCount = Math.max(1, aThreadCount);
+    }
+
+    /**
+     * Defines the engine deforming the cartogram grid. By default, it is the
+     * diffusion engine of Gastner and Newman.
+     * 
+     * @param aEngine
+     *            the engine
+     */
+    public void setEngine(ICartogramEngine aEngine) {
+        iEngine = aEngine;
+    }
+
+    /**
+     * Defines an engine whose result is compared with the one of the cartogram
+     * engine, for example the double precision engine for a single precision
+     * one. The grid is then deformed twice, and the report contains the
+     * difference of the size errors.
+     * 
+     * @param aEngine
+     *            the comparison engine, or <code>null</code> for no comparison
+     */
+    public void setComparisonEngine(ICartogramEngine aEngine) {
+        iComparisonEngine = aEngine;
+    }
+
     /**
      * Computes the cartogram envelope using the provided layers. The envelope
      * will be larger than the layers in order to allow the cartogram
@@ -507,14 +805,76 @@ public class Cartogram {
         }
     }
 
+    /**
+     * Rounds the number of cells on each side of the grid to the nearest fast
+     * transform size. The envelope is then padded so that the cells are
+     * square.
+     */
+    private void adjustGridSizeToFastTransform() {
+        if (iEnvelope == null) {
+            return;
+        }
+
+        int cellsX = fastTransformSize(iGridSize[0] - 1);
+        int cellsY = fastTransformSize(iGridSize[1] - 1);
+
+        double width = iEnvelope.getWidth();
+        double height = iEnvelope.getHeight();
+        double cellSize = Math.max(width / cellsX, height / cellsY);
+        iEnvelope.expandBy(0.5 * (cellsX * cellSize - width),
+                0.5 * (cellsY * cellSize - height));
+
+        iGridSize[0] = cellsX + 1;
+        iGridSize[1] = cellsY + 1;
+    }
+
+    /**
+     * Returns the size nearest to the given one whose only prime factors are
+     * 2, 3 and 5. On a tie, the larger size is returned.
+     * 
+     * @param aSize
+     *            the size, at least 1
+     * @return the fast transform size
+     */
+    static int fastTransformSize(int aSize) {
+        for (int d = 0;; d++) {
+            if (isFastTransformSize(aSize + d)) {
+                return aSize + d;
+            }
+            if (aSize - d >= 1 && isFastTransformSize(aSize - d)) {
+                return aSize - d;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the only prime factors of a size are 2, 3 and 5.
+     * 
+     * @param aSize
+     *            the size, at least 1
+     * @return <code>true</code> for a fast transform size
+     */
+    private static boolean isFastTransformSize(int aSize) {
+        int n = aSize;
+        for (int factor : new int[] { 2, 3, 5 }) {
+            while (n % factor == 0) {
+                n /= factor;
+            }
+        }
+        return n == 1;
+    }
+
     /**
      * Projects all layers. Creates a new layer for each projected layer.
      * 
+     * @param aExecutor
+     *            the executor projecting the features
      * @return the projected layers
      * @throws InterruptedException
      *             when the computation was interrupted
      */
-    private List<CartogramLayer> projectLayers() throws InterruptedException {
+    private List<CartogramLayer> projectLayers(CartogramExecutor aExecutor)
+            throws InterruptedException {
         // Get the number of layers to project (one master layer and all slave
         // layers)
         int size = 1;
@@ -528,12 +888,61 @@ public class Cartogram {
         // Compute the maximum segment length for the layers
         iMaximumSegmentLength = estimateMaximumSegmentLength();
 
+        iProjectionCache = null;
+        if (iProjectionCacheEnabled && !iTopologyProjection) {
+            iProjectionCache = new CartogramProjectionCache();
+        }
+        iGrid.setProjectionCache(iProjectionCache);
+        try {
+            projectLayers(layers, size, aExecutor);
+        } finally {
+            iGrid.setProjectionCache(null);
+        }
+
+        return layers;
+    }
+
+    /**
+     * Saves the deformed grid and its metadata to the transform file. A
+     * failure is only logged, the cartogram is not affected.
+     */
+    private void saveTransform() {
+        CartogramTransform transform = new CartogramTransform(iGrid);
+        Map<String, String> metadata = transform.getMetadata();
+        metadata.put(CartogramTransform.ENGINE, iEngine.getName());
+        metadata.put(CartogramTransform.LAYER, iMasterLayer.getName());
+        metadata.put(CartogramTransform.ATTRIBUTE, iMasterAttribute);
+        metadata.put(CartogramTransform.MAXIMUM_SEGMENT_LENGTH,
+                Double.toString(iMaximumSegmentLength));
+        try {
+            transform.write(iTransformFile, iTransformFloatOffsets);
+        } catch (IOException e) {
+            logger.warn("Unable to save the cartogram transform", e);
+        }
+    }
+
+    /**
+     * Projects the master layer and the slave layers.
+     * 
+     * @param aLayers
+     *            receives the projected layers
+     * @param aSize
+     *            the number of layers
+     * @param aExecutor
+     *            the executor projecting the features
+     * @throws InterruptedException
+     *             when the computation was interrupted
+     */
+    private void projectLayers(List<CartogramLayer> aLayers, int aSize,
+            CartogramExecutor aExecutor) throws InterruptedException {
         // Project the master layer
         iStatus.updateRunningStatus(750, "Projecting the layers...",
-                "Layer 1 of %1$s", size);
-        iMasterLayer.regularizeLayer(iMaximumSegmentLength);
-        iProjectedMasterLayer = iMasterLayer.projectLayerWithGrid(iGrid);
-        layers.add(iProjectedMasterLayer);
+                "Layer 1 of %1$s", aSize);
+        if (!iTopologyProjection) {
+            iMasterLayer.regularizeLayer(iMaximumSegmentLength, aExecutor);
+        }
+        iProjectedMasterLayer = projectLayer(iMasterLayer, iGrid, aExecutor);
+        aLayers.add(iProjectedMasterLayer);
 
         if (Thread.interrupted()) {
             // Raise an InterruptedException.
@@ -545,17 +954,43 @@ public class Cartogram {
         if (iSlaveLayers != null) {
             int count = 1;
             for (CartogramLayer slaveLayer : iSlaveLayers) {
-                iStatus.updateRunningStatus(800 + count / (size - 1) * 150,
+                iStatus.updateRunningStatus(800 + count / (aSize - 1) * 150,
                         "Projecting the layers...", "Layer %1$s of %2$s",
-                        count + 1, size);
+                        count + 1, aSize);
 
-                slaveLayer.regularizeLayer(iMaximumSegmentLength);
-                layers.add(slaveLayer.projectLayerWithGrid(iGrid));
+                if (!iTopologyProjection) {
+                    slaveLayer.regularizeLayer(iMaximumSegmentLength,
+                            aExecutor);
+                }
+                aLayers.add(projectLayer(slaveLayer, iGrid, aExecutor));
                 count++;
             }
         }
+    }
 
-        return layers;
+    /**
+     * Projects a layer, through the arc topology of its features if enabled.
+     * Otherwise, the layer must have been regularized. The lines and rings
+     * are projected concurrently, the grid being read-only by then.
+     * 
+     * @param aLayer
+     *            the layer
+     * @param aGrid
+     *            the deformed grid
+     * @param aExecutor
+     *            the executor projecting the features
+     * @return the projected layer
+     * @throws InterruptedException
+     *             when the computation was interrupted
+     */
+    private CartogramLayer projectLayer(CartogramLayer aLayer,
+            CartogramGrid aGrid, CartogramExecutor aExecutor)
+            throws InterruptedException {
+        if (iTopologyProjection) {
+            return aLayer.projectLayerWithTopology(aGrid,
+                    iMaximumSegmentLength, aExecutor);
+        }
+        return aLayer.projectLayerWithGrid(aGrid, aExecutor);
     }
 
     /**
@@ -783,7 +1218,50 @@ public class Cartogram {
         builder.append(iGridSize[0]);
         builder.append(" x ");
         builder.append(iGridSize[1]);
-        builder.append("\n\n");
+        builder.append('\n');
+
+        builder.append("Grid size policy: ");
+        builder.append(iGridSizePolicy);
+        builder.append('\n');
+
+        builder.append("Density rasterization: ");
+        builder.append(iAreaWeightedDensity ? "area-weighted coverage"
+                : "cell centre");
+        builder.append('\n');
+
+        builder.append("Computation threads: ");
+        builder.append(iThreadCount);
+        builder.append('\n');
+
+        builder.append("Layer projection: ");
+        builder.append(iTopologyProjection ? "arc topology" : "per feature");
+        builder.append('\n');
+
+        if (iProjectionCache != null) {
+            long lookups = iProjectionCache.getLookups();
+            builder.append("Projection cache: ");
+            builder.append(iProjectionCache.getHits());
+            builder.append(" hits of ");
+            builder.append(lookups);
+            builder.append(" points (");
+            builder.append(lookups == 0 ? 0 : (int) Math
+                    .round((double) iProjectionCache.getHits() / lookups * 100));
+            builder.append("%)\n");
+        }
+
+        if (iConstrainedDeforamtionLayers != null) {
+            builder.append("Constrained deformation sweeps: ");
+            builder.append(iConstrainedDeformationSweepCount);
+            builder.append(" of ");
+            builder.append(iConstrainedDeformationSweeps);
+            builder.append('\n');
+        }
+
+        builder.append("Cartogram engine: ");
+        builder.append(iEngine.getName());
+        builder.append('\n');
+        builder.append(iEngine.getReport());
+        builder.append('\n');
 
         builder.append("CARTOGRAM LAYER & ATTRIBUTE STATISTICS:\n");
         builder.append("Number of features: ");
@@ -835,6 +1313,19 @@ public class Cartogram {
         builder.append(meanError);
         builder.append('\n');
 
+        if (!Double.isNaN(iComparisonSizeError)) {
+            builder.append("Mean cartogram error with the ");
+            builder.append(iComparisonEngine.getName());
+            builder.append(" engine: ");
+            builder.append(iComparisonSizeError);
+            builder.append('\n');
+            builder.append("Difference to the ");
+            builder.append(iComparisonEngine.getName());
+            builder.append(" engine: ");
+            builder.append(meanError - iComparisonSizeError);
+            builder.append('\n');
+        }
+
         double stdDev = aProjectedMasterLayer
                 .standardDeviationForAttribute("SizeError");
         builder.append("Standard deviation: ");
@@ -0,0 +1,111 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registry of the cartogram engines. Each engine is registered with its
+ * name and its class, which must have a public constructor without
+ * parameters. A new engine instance is created for each computation.
+ */
+public class CartogramEngines {
+
+    /**
+     * The name of the default engine.
+     */
+    public static final String DEFAULT = CartogramNewmanEngine.NAME;
+
+    /**
+     * The engine classes by name, in registration order.
+     */
+    private static final Map<String, Class<? extends ICartogramEngine>> ENGINES = new LinkedHashMap<String, Class<? extends ICartogramEngine>>();
+
+    static {
+        register(CartogramNewmanEngine.NAME, CartogramNewmanEngine.class);
+        register(CartogramNewmanFloatEngine.NAME,
+                CartogramNewmanFloatEngine.class);
+        register(CartogramFlow.NAME, CartogramFlow.class);
+    }
+
+    /**
+     * Registers an engine. An engine already registered with the same name is
+     * replaced.
+     * 
+     * @param aName
+     *            the engine name
+     * @param aClass
+     *            the engine class
+     */
+    public static synchronized void register(String aName,
+            Class<? extends ICartogramEngine> aClass) {
+        ENGINES.put(aName, aClass);
+    }
+
+    /**
+     * Returns the names of the registered engines.
+     * 
+     * @return the engine names
+     */
+    public static synchronized List<String> getNames() {
+        return new ArrayList<String>(ENGINES.keySet());
+    }
+
+    /**
+     * Creates a new instance of an engine.
+     * 
+     * @param aName
+     *            the engine name
+     * @return the engine
+     * @throws IllegalArgumentException
+     *             if there is no engine with this name, or if it can't be
+     *             instantiated
+     */
+    public static synchronized ICartogramEngine create(String aName) {
+        Class<? extends ICartogramEngine> engineClass = ENGINES.get(aName);
+        if (engineClass == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Unknown cartogram engine: %1$s (available: %2$s)", aName,
+                    ENGINES.keySet()));
+        }
+
+        try {
+            return engineClass.getConstructor().newInstance();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't create the cartogram engine %1$s", aName), e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't create the cartogram engine %1$s", aName), e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't create the cartogram engine %1$s", aName), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't create the cartogram engine %1$s", aName), e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,205 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the parallel parts of the cartogram computation on a fixed pool of
+ * threads. The work is usually split into disjoint index ranges (see
+ * splitRange) which are processed concurrently. With only one thread, no pool
+ * is created and the tasks are run in turn by the calling thread.
+ */
+public class CartogramExecutor {
+
+    /**
+     * The number of ranges created for each thread. Using more ranges than
+     * threads balances the work when some ranges are more expensive than
+     * others.
+     */
+    private static int RANGES_PER_THREAD = 4;
+
+    /**
+     * The number of threads.
+     */
+    private int iThreadCount;
+
+    /**
+     * The thread pool, <code>null</code> when running with a single thread.
+     */
+    private ExecutorService iService;
+
+    /**
+     * Constructor.
+     * 
+     * @param aThreadCount
+     *            the number of threads, values smaller than 1 are treated as 1
+     */
+    public CartogramExecutor(int aThreadCount) {
+        iThreadCount = Math.max(1, aThreadCount);
+
+        if (iThreadCount > 1) {
+            iService = Executors.newFixedThreadPool(iThreadCount,
+                    new WorkerThreadFactory());
+        }
+    }
+
+    /**
+     * Returns the number of threads.
+     * 
+     * @return the number of threads
+     */
+    public int getThreadCount() {
+        return iThreadCount;
+    }
+
+    /**
+     * Splits the index range [0, aCount) into contiguous sub-ranges, a few for
+     * each thread. The sub-range k is [bounds[k], bounds[k + 1]).
+     * 
+     * @param aCount
+     *            the number of indexes
+     * @return the range bounds, the first one is 0 and the last one is aCount
+     */
+    public int[] splitRange(int aCount) {
+        int parts = 1;
+        if (iThreadCount > 1) {
+            parts = Math.max(1, Math.min(aCount, iThreadCount
+                    * RANGES_PER_THREAD));
+        }
+
+        int[] bounds = new int[parts + 1];
+        for (int k = 0; k <= parts; k++) {
+            bounds[k] = (int) ((long) aCount * k / parts);
+        }
+        return bounds;
+    }
+
+    /**
+     * Runs all the tasks and waits for their completion. The results are
+     * returned in the order of the tasks.
+     * 
+     * @param aTasks
+     *            the tasks
+     * @return the task results
+     * @throws InterruptedException
+     *             when the calling thread was interrupted while waiting; the
+     *             pending tasks are cancelled
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> aTasks)
+            throws InterruptedException {
+        List<T> results = new ArrayList<T>(aTasks.size());
+
+        // Single thread: run the tasks in the calling thread.
+        if (iService == null) {
+            for (Callable<T> task : aTasks) {
+                try {
+                    results.add(task.call());
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(aTasks.size());
+        try {
+            for (Callable<T> task : aTasks) {
+                futures.add(iService.submit(task));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            throw e;
+        } catch (ExecutionException e) {
+            cancel(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return results;
+    }
+
+    /**
+     * Stops the threads. The executor can't be used anymore afterwards.
+     */
+    public void shutdown() {
+        if (iService != null) {
+            iService.shutdownNow();
+            iService = null;
+        }
+    }
+
+    /**
+     * Cancels the given futures, interrupting the running tasks.
+     * 
+     * @param aFutures
+     *            the futures
+     */
+    private static <T> void cancel(List<Future<T>> aFutures) {
+        for (Future<T> future : aFutures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Creates daemon worker threads, so that a pending computation never
+     * prevents the application from exiting.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        /**
+         * The number of created threads.
+         */
+        private static final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, "ScapeToad-worker-"
+                    + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
\ No newline at end of file
@@ -91,6 +91,18 @@ public class CartogramFeature {
         setGeometry(aGeometry);
     }
 
+    /**
+     * Creates a copy of this feature with another geometry.
+     * 
+     * @param aGeometry
+     *            the geometry of the copy
+     * @return the copy
+     */
+    public CartogramFeature copyWithGeometry(Geometry aGeometry) {
+        return new CartogramFeature(aGeometry, new Hashtable<String, Object>(
+                iAttributes));
+    }
+
     /**
      * Returns the geometry.
      * 
@@ -358,7 +370,7 @@ public class CartogramFeature {
      *            the maximum length
      * @return the regularizeds coordinates
      */
-    private static Coordinate[] regularizeCoordinates(
+    static Coordinate[] regularizeCoordinates(
             Coordinate[] aCoordinates, double aMaxLength) {
         int ncoords = aCoordinates.length;
         if (ncoords < 1) {
@@ -0,0 +1,292 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The index of the feature containing the centre of each grid cell. The
+ * index only depends on the geometries of the layer, the grid size and the
+ * grid envelope, so it can be computed once and used to fill the densities of
+ * any attribute by a single pass over the cells.
+ * 
+ * The last indexes are kept in memory, identified by a key built from these
+ * inputs, and an index can be saved to a file to be reused by another run.
+ */
+public class CartogramFeatureIndex {
+
+    /**
+     * The value of the cells which are not inside a feature.
+     */
+    public static final int NO_FEATURE = -1;
+
+    /**
+     * The number of indexes kept in memory.
+     */
+    private static final int CACHE_SIZE = 4;
+
+    /**
+     * The file format identifier.
+     */
+    private static final int MAGIC = 0x53544649;
+
+    /**
+     * The last used indexes, by key, the least recently used first.
+     */
+    private static final Map<String, CartogramFeatureIndex> cache = new IndexCache();
+
+    /**
+     * The key identifying the layer, the grid size and the envelope.
+     */
+    private String iKey;
+
+    /**
+     * The number of cells in x direction.
+     */
+    private int iCellsX;
+
+    /**
+     * The number of cells in y direction.
+     */
+    private int iCellsY;
+
+    /**
+     * The feature index of each cell, row by row (j * cellsX + i).
+     */
+    private int[] iFeatures;
+
+    /**
+     * Constructor of an index without features.
+     * 
+     * @param aKey
+     *            the key
+     * @param aCellsX
+     *            the number of cells in x direction
+     * @param aCellsY
+     *            the number of cells in y direction
+     */
+    public CartogramFeatureIndex(String aKey, int aCellsX, int aCellsY) {
+        iKey = aKey;
+        iCellsX = aCellsX;
+        iCellsY = aCellsY;
+        iFeatures = new int[aCellsX * aCellsY];
+        Arrays.fill(iFeatures, NO_FEATURE);
+    }
+
+    /**
+     * Returns the key.
+     * 
+     * @return the key
+     */
+    public String getKey() {
+        return iKey;
+    }
+
+    /**
+     * Returns the index of the feature containing the centre of a cell.
+     * 
+     * @param aI
+     *            the cell index in x direction
+     * @param aJ
+     *            the cell index in y direction
+     * @return the feature index in the layer, or NO_FEATURE
+     */
+    public int getFeature(int aI, int aJ) {
+        return iFeatures[aJ * iCellsX + aI];
+    }
+
+    /**
+     * Defines the feature containing the centre of a cell.
+     * 
+     * @param aI
+     *            the cell index in x direction
+     * @param aJ
+     *            the cell index in y direction
+     * @param aFeature
+     *            the feature index in the layer
+     */
+    public void setFeature(int aI, int aJ, int aFeature) {
+        iFeatures[aJ * iCellsX + aI] = aFeature;
+    }
+
+    /**
+     * Saves the index to a file.
+     * 
+     * @param aFile
+     *            the file
+     * @throws IOException
+     *             when the file can't be written
+     */
+    public void write(File aFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(aFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(iKey);
+            out.writeInt(iCellsX);
+            out.writeInt(iCellsY);
+            for (int feature : iFeatures) {
+                out.writeInt(feature);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads an index from a file.
+     * 
+     * @param aFile
+     *            the file
+     * @param aKey
+     *            the expected key
+     * @return the index, or <code>null</code> if the file doesn't exist or
+     *         was saved for another key
+     * @throws IOException
+     *             when the file can't be read
+     */
+    public static CartogramFeatureIndex read(File aFile, String aKey)
+            throws IOException {
+        if (!aFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(aFile)));
+        try {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(aKey)) {
+                return null;
+            }
+            CartogramFeatureIndex index = new CartogramFeatureIndex(aKey,
+                    in.readInt(), in.readInt());
+            for (int k = 0; k < index.iFeatures.length; k++) {
+                index.iFeatures[k] = in.readInt();
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a cached index.
+     * 
+     * @param aKey
+     *            the key
+     * @return the index, or <code>null</code> if it is not in the cache
+     */
+    public static synchronized CartogramFeatureIndex getCached(String aKey) {
+        return cache.get(aKey);
+    }
+
+    /**
+     * Adds an index to the cache, removing the least recently used one when
+     * the cache is full.
+     * 
+     * @param aIndex
+     *            the index
+     */
+    public static synchronized void putCached(CartogramFeatureIndex aIndex) {
+        cache.put(aIndex.iKey, aIndex);
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static synchronized void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Creates the key of the index of a layer. It contains a hash of all the
+     * coordinates of the layer, the grid size and the envelope.
+     * 
+     * @param aLayer
+     *            the layer
+     * @param aCellsX
+     *            the number of cells in x direction
+     * @param aCellsY
+     *            the number of cells in y direction
+     * @param aEnvelope
+     *            the grid envelope
+     * @return the key
+     */
+    public static String createKey(CartogramLayer aLayer, int aCellsX,
+            int aCellsY, Envelope aEnvelope) {
+        long hash = 17;
+        int count = 0;
+        for (CartogramFeature feature : aLayer.getFeatures()) {
+            for (Coordinate coordinate : feature.getGeometry().getCoordinates()) {
+                hash = 31 * hash + Double.doubleToLongBits(coordinate.x);
+                hash = 31 * hash + Double.doubleToLongBits(coordinate.y);
+                count++;
+            }
+            hash = 31 * hash + count;
+        }
+
+        return String.format("%1$s:%2$d:%3$d:%4$016x:%5$dx%6$d:%7$s:%8$s:"
+                + "%9$s:%10$s", aLayer.getName(), aLayer.getFeatures().size(),
+                count, hash, aCellsX, aCellsY,
+                Double.toHexString(aEnvelope.getMinX()),
+                Double.toHexString(aEnvelope.getMaxX()),
+                Double.toHexString(aEnvelope.getMinY()),
+                Double.toHexString(aEnvelope.getMaxY()));
+    }
+
+    /**
+     * A map keeping the last used indexes.
+     */
+    private static class IndexCache extends
+            LinkedHashMap<String, CartogramFeatureIndex> {
+
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor of a map in access order.
+         */
+        public IndexCache() {
+            super(CACHE_SIZE + 1, 1f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, CartogramFeatureIndex> aEldest) {
+            return size() > CACHE_SIZE;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,637 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import edu.emory.mathcs.jtransforms.dct.DoubleDCT_1D;
+import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
+import edu.emory.mathcs.jtransforms.dst.DoubleDST_1D;
+
+/**
+ * Implementation of the fast flow-based cartogram algorithm of Gastner, Seguy
+ * and More (2018). The density is interpolated linearly in time from the
+ * initial density (t = 0) to the mean density (t = 1). The flux satisfying the
+ * continuity equation is the gradient of the solution of a Poisson equation,
+ * which is computed only once with cosine and sine transforms. The velocity at
+ * time t is this flux divided by the density at time t, so that the
+ * integration steps need no transform at all. The grid points are advected
+ * with a predictor-corrector scheme and an adaptive time step.
+ */
+public class CartogramFlow implements ICartogramEngine {
+
+    /**
+     * The name of the engine.
+     */
+    public static final String NAME = "flow";
+
+    /**
+     * The initial time step.
+     */
+    private static double INITIAL_TIME_STEP = 0.01;
+
+    /**
+     * The factor applied to the time step after an accepted step.
+     */
+    private static double INCREASE_AFTER_ACCEPTED = 1.1;
+
+    /**
+     * The factor applied to the time step after a rejected step.
+     */
+    private static double DECREASE_AFTER_REJECTED = 0.75;
+
+    /**
+     * The tolerance between the predicted and the corrected positions, in
+     * cells and relative to the smaller grid size.
+     */
+    private static double ABSOLUTE_TOLERANCE = 1e-6;
+
+    /**
+     * The smallest time step. A step rejected at this length means that the
+     * velocity field is not finite, e.g. because of a zero density.
+     */
+    private static double MINIMUM_TIME_STEP = 1e-9;
+
+    /**
+     * The size of the diffusion grid (number of cells).
+     */
+    private int[] iGridSize = new int[2];
+
+    /**
+     * The row length of the padded arrays, which have one more cell on each
+     * side of the grid. The value of the cell (x, y) is at the index (x + 1) *
+     * iPaddedSizeY + y + 1.
+     */
+    private int iPaddedSizeY;
+
+    /**
+     * The x component of the flux at the cell centres, padded.
+     */
+    private double[] iFluxX;
+
+    /**
+     * The y component of the flux at the cell centres, padded.
+     */
+    private double[] iFluxY;
+
+    /**
+     * The initial density at the cell centres, padded.
+     */
+    private double[] iDensity;
+
+    /**
+     * The mean density, which is the density at t = 1.
+     */
+    private double iMeanDensity;
+
+    /**
+     * The x coordinates of the grid points, in cells.
+     */
+    private double[] iPointsX;
+
+    /**
+     * The y coordinates of the grid points, in cells.
+     */
+    private double[] iPointsY;
+
+    /**
+     * The x coordinates of the grid points after the current step.
+     */
+    private double[] iNextX;
+
+    /**
+     * The y coordinates of the grid points after the current step.
+     */
+    private double[] iNextY;
+
+    /**
+     * The number of accepted steps of the last computation.
+     */
+    private int iAcceptedSteps;
+
+    /**
+     * The number of rejected steps of the last computation.
+     */
+    private int iRejectedSteps;
+
+    /**
+     * The maximum number of accepted steps, 0 for no limit.
+     */
+    private int iMaxSteps = 0;
+
+    /**
+     * The time limit of the integration in milliseconds, 0 for no limit.
+     */
+    private long iTimeLimit = 0;
+
+    /**
+     * The criterion which ended the last computation.
+     */
+    private CartogramNewman.StopReason iStopReason;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Sets the maximum number of accepted integration steps. When it is
+     * reached, the grid advected so far is used.
+     * 
+     * @param aMaxSteps
+     *            the maximum number of steps, 0 for no limit
+     */
+    public void setMaxSteps(int aMaxSteps) {
+        iMaxSteps = aMaxSteps;
+    }
+
+    /**
+     * Sets the time limit of the integration. The limit is checked after each
+     * step; when it is exceeded the grid advected so far is used.
+     * 
+     * @param aTimeLimit
+     *            the time limit in milliseconds, 0 for no limit
+     */
+    public void setTimeLimit(long aTimeLimit) {
+        iTimeLimit = aTimeLimit;
+    }
+
+    @Override
+    public void compute(CartogramGrid aGrid, ICartogramStatus aStatus,
+            int aMinimumStatus, int aMaximumStatus, String aStatusTitle,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        iGridSize[0] = aGrid.getGridSize()[0] - 1;
+        iGridSize[1] = aGrid.getGridSize()[1] - 1;
+
+        computeFlux(aGrid.getCurrentDensityArray());
+        createGridOfPoints();
+        integrate(aStatus, aMinimumStatus, aMaximumStatus, aStatusTitle,
+                aExecutor);
+        projectCartogramGrid(aGrid);
+
+        // Release the memory.
+        iFluxX = null;
+        iFluxY = null;
+        iDensity = null;
+        iNextX = null;
+        iNextY = null;
+    }
+
+    /**
+     * Computes the initial density, its mean and the flux at the cell centres.
+     * The flux is the gradient of the solution of the Poisson equation
+     * laplacian(phi) = rho - mean, with the normal flux vanishing on the
+     * boundary, so that the density (1 - t) rho + t mean satisfies the
+     * continuity equation.
+     * 
+     * @param aDensity
+     *            the density of the grid cells, row by row
+     */
+    private void computeFlux(double[] aDensity) {
+        int nx = iGridSize[0];
+        int ny = iGridSize[1];
+
+        // Transform the density.
+        double[] rho = transpose(aDensity);
+        new DoubleDCT_2D(nx, ny).forward(rho, true);
+        iMeanDensity = rho[0] / Math.sqrt(nx * ny);
+
+        // Solve the Poisson equation in the frequency domain and
+        // differentiate.
+        double[] fluxX = new double[nx * ny];
+        double[] fluxY = new double[nx * ny];
+        int i = 0;
+        for (int x = 0; x < nx; x++) {
+            double kx = Math.PI * x / nx;
+            for (int y = 0; y < ny; y++) {
+                double ky = Math.PI * y / ny;
+                double k2 = kx * kx + ky * ky;
+                if (k2 > 0) {
+                    fluxX[i] = rho[i] * kx / k2;
+                    fluxY[i] = rho[i] * ky / k2;
+                }
+                i++;
+            }
+        }
+
+        // Back to the cell centres: the x flux is a sine series in x and a
+        // cosine series in y, the y flux the opposite.
+        inverseTransform(fluxX, true, false);
+        inverseTransform(fluxY, false, true);
+
+        iPaddedSizeY = ny + 2;
+        iFluxX = pad(fluxX, -1, 1);
+        iFluxY = pad(fluxY, 1, -1);
+
+        iDensity = pad(transpose(aDensity), 1, 1);
+    }
+
+    /**
+     * Copies the cell values stored row by row, like in the cartogram grid,
+     * into an array stored column by column, as expected by the DCT.
+     * 
+     * @param aValues
+     *            the cell values, row by row
+     * @return the cell values, column by column
+     */
+    private double[] transpose(double[] aValues) {
+        int nx = iGridSize[0];
+        int ny = iGridSize[1];
+        double[] transposed = new double[nx * ny];
+        int i = 0;
+        for (int x = 0; x < nx; x++) {
+            for (int y = 0; y < ny; y++) {
+                transposed[i++] = aValues[y * nx + x];
+            }
+        }
+        return transposed;
+    }
+
+    /**
+     * Back-transforms a mixed sine and cosine series, stored with the index x
+     * * gridSizeY + y. The coefficient of the frequency 0 of a sine series is
+     * ignored.
+     * 
+     * @param aValues
+     *            the coefficients, replaced by the values at the cell centres
+     * @param aSineX
+     *            <code>true</code> for a sine series along x
+     * @param aSineY
+     *            <code>true</code> for a sine series along y
+     */
+    private void inverseTransform(double[] aValues, boolean aSineX,
+            boolean aSineY) {
+        int nx = iGridSize[0];
+        int ny = iGridSize[1];
+
+        // Along y, on the contiguous rows.
+        DoubleDCT_1D dctY = new DoubleDCT_1D(ny);
+        DoubleDST_1D dstY = new DoubleDST_1D(ny);
+        for (int x = 0; x < nx; x++) {
+            int offset = x * ny;
+            if (aSineY) {
+                // The sine transform stores the frequency k at the index k - 1.
+                System.arraycopy(aValues, offset + 1, aValues, offset, ny - 1);
+                aValues[offset + ny - 1] = 0;
+                dstY.inverse(aValues, offset, true);
+            } else {
+                dctY.inverse(aValues, offset, true);
+            }
+        }
+
+        // Along x, on a copy of each column.
+        DoubleDCT_1D dctX = new DoubleDCT_1D(nx);
+        DoubleDST_1D dstX = new DoubleDST_1D(nx);
+        double[] column = new double[nx];
+        for (int y = 0; y < ny; y++) {
+            if (aSineX) {
+                for (int x = 1; x < nx; x++) {
+                    column[x - 1] = aValues[x * ny + y];
+                }
+                column[nx - 1] = 0;
+                dstX.inverse(column, true);
+            } else {
+                for (int x = 0; x < nx; x++) {
+                    column[x] = aValues[x * ny + y];
+                }
+                dctX.inverse(column, true);
+            }
+            for (int x = 0; x < nx; x++) {
+                aValues[x * ny + y] = column[x];
+            }
+        }
+    }
+
+    /**
+     * Copies cell values into a padded array. The padding cells mirror the
+     * border cells, multiplied by the given signs: the flux component normal
+     * to a border is odd, the other values are even.
+     * 
+     * @param aValues
+     *            the values with the index x * gridSizeY + y
+     * @param aSignX
+     *            the sign of the mirrored values along x
+     * @param aSignY
+     *            the sign of the mirrored values along y
+     * @return the padded array
+     */
+    private double[] pad(double[] aValues, int aSignX, int aSignY) {
+        int nx = iGridSize[0];
+        int ny = iGridSize[1];
+        double[] padded = new double[(nx + 2) * iPaddedSizeY];
+        for (int x = 0; x < nx; x++) {
+            int offset = (x + 1) * iPaddedSizeY;
+            System.arraycopy(aValues, x * ny, padded, offset + 1, ny);
+            padded[offset] = aSignY * padded[offset + 1];
+            padded[offset + ny + 1] = aSignY * padded[offset + ny];
+        }
+        for (int y = 0; y < iPaddedSizeY; y++) {
+            padded[y] = aSignX * padded[iPaddedSizeY + y];
+            padded[(nx + 1) * iPaddedSizeY + y] = aSignX
+                    * padded[nx * iPaddedSizeY + y];
+        }
+        return padded;
+    }
+
+    /**
+     * Creates the grid points at the cell corners.
+     */
+    private void createGridOfPoints() {
+        int npoints = (iGridSize[0] + 1) * (iGridSize[1] + 1);
+        iPointsX = new double[npoints];
+        iPointsY = new double[npoints];
+        iNextX = new double[npoints];
+        iNextY = new double[npoints];
+
+        int i = 0;
+        for (int y = 0; y <= iGridSize[1]; y++) {
+            for (int x = 0; x <= iGridSize[0]; x++) {
+                iPointsX[i] = x;
+                iPointsY[i] = y;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Advects the grid points from t = 0 to t = 1, or until the step or time
+     * limit is reached. The grid points are only updated by accepted steps,
+     * so the grid is consistent whatever criterion ends the integration.
+     * 
+     * @param aStatus
+     *            the status, or <code>null</code>
+     * @param aMinimumStatus
+     *            the status value at the start
+     * @param aMaximumStatus
+     *            the status value at the end
+     * @param aStatusTitle
+     *            the status title
+     * @param aExecutor
+     *            the executor integrating the points concurrently
+     * @throws InterruptedException
+     *             when the computation was interrupted
+     * @throws IllegalStateException
+     *             when the time step vanishes because the velocity field is
+     *             not finite
+     */
+    private void integrate(ICartogramStatus aStatus, int aMinimumStatus,
+            int aMaximumStatus, String aStatusTitle,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        long deadline = 0;
+        if (iTimeLimit > 0) {
+            deadline = System.currentTimeMillis() + iTimeLimit;
+        }
+        double tolerance = ABSOLUTE_TOLERANCE
+                * Math.min(iGridSize[0], iGridSize[1]);
+        double tolerance2 = tolerance * tolerance;
+
+        iAcceptedSteps = 0;
+        iRejectedSteps = 0;
+        iStopReason = null;
+        double t = 0;
+        double dt = INITIAL_TIME_STEP;
+        while (iStopReason == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException(
+                        "Computation has been interrupted by the user.");
+            }
+
+            // Do not step beyond t = 1.
+            if (t + dt > 1) {
+                dt = 1 - t;
+            }
+
+            if (step(t, dt, aExecutor) <= tolerance2) {
+                double[] swap = iPointsX;
+                iPointsX = iNextX;
+                iNextX = swap;
+                swap = iPointsY;
+                iPointsY = iNextY;
+                iNextY = swap;
+
+                t += dt;
+                dt *= INCREASE_AFTER_ACCEPTED;
+                iAcceptedSteps++;
+
+                if (aStatus != null) {
+                    int perc = (int) Math.round(100 * t);
+                    aStatus.updateRunningStatus(aMinimumStatus
+                            + (aMaximumStatus - aMinimumStatus) * perc / 100,
+                            aStatusTitle, "Flow process: %1$s%% done",
+                            perc);
+                }
+
+                if (t >= 1) {
+                    iStopReason = CartogramNewman.StopReason.CONVERGED;
+                } else if (iMaxSteps > 0 && iAcceptedSteps >= iMaxSteps) {
+                    iStopReason = CartogramNewman.StopReason.STEPS;
+                }
+            } else {
+                dt *= DECREASE_AFTER_REJECTED;
+                iRejectedSteps++;
+                if (dt < MINIMUM_TIME_STEP) {
+                    throw new IllegalStateException(String.format(
+                            "The flow integration step vanished at t = %1$s,"
+                                    + " the velocity field is not finite", t));
+                }
+            }
+
+            if (iStopReason == null && deadline > 0
+                    && System.currentTimeMillis() >= deadline) {
+                iStopReason = CartogramNewman.StopReason.TIME_LIMIT;
+            }
+        }
+    }
+
+    /**
+     * Computes one step for all the grid points concurrently. The new
+     * positions are stored in the next arrays.
+     * 
+     * @param aT
+     *            the time
+     * @param aDt
+     *            the time step
+     * @param aExecutor
+     *            the executor
+     * @return the maximum squared difference between the predicted and the
+     *         corrected positions
+     * @throws InterruptedException
+     *             when the computation was interrupted
+     */
+    private double step(final double aT, final double aDt,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        int[] bounds = aExecutor.splitRange(iPointsX.length);
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(
+                bounds.length - 1);
+        for (int k = 0; k < bounds.length - 1; k++) {
+            final int from = bounds[k];
+            final int to = bounds[k + 1];
+            tasks.add(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return Double.valueOf(stepPoints(from, to, aT, aDt));
+                }
+            });
+        }
+
+        double errorMax = 0;
+        for (Double error : aExecutor.invokeAll(tasks)) {
+            errorMax = Math.max(errorMax, error.doubleValue());
+        }
+        return errorMax;
+    }
+
+    /**
+     * Computes one step for the grid points in the range [aFrom, aTo). The
+     * predictor is an Euler step, the corrector a midpoint step.
+     * 
+     * @param aFrom
+     *            the first point index
+     * @param aTo
+     *            the point index after the last point
+     * @param aT
+     *            the time
+     * @param aDt
+     *            the time step
+     * @return the maximum squared difference between the predicted and the
+     *         corrected positions in the range
+     */
+    double stepPoints(int aFrom, int aTo, double aT, double aDt) {
+        double[] v = new double[2];
+        double errorMax = 0;
+        for (int p = aFrom; p < aTo; p++) {
+            double x = iPointsX[p];
+            double y = iPointsY[p];
+
+            // Predictor.
+            velocity(x, y, aT, v);
+            double eulerX = x + aDt * v[0];
+            double eulerY = y + aDt * v[1];
+
+            // Corrector.
+            velocity(x + 0.5 * aDt * v[0], y + 0.5 * aDt * v[1], aT + 0.5
+                    * aDt, v);
+            double midX = x + aDt * v[0];
+            double midY = y + aDt * v[1];
+
+            double dx = midX - eulerX;
+            double dy = midY - eulerY;
+            double error = dx * dx + dy * dy;
+            if (error > errorMax || error != error) {
+                // A NaN error also rejects the step.
+                errorMax = error != error ? Double.POSITIVE_INFINITY : error;
+            }
+
+            iNextX[p] = midX;
+            iNextY[p] = midY;
+        }
+        return errorMax;
+    }
+
+    /**
+     * Computes the velocity at a point by interpolating the flux and the
+     * density bilinearly between the cell centres.
+     * 
+     * @param aX
+     *            the x coordinate of the point, in cells
+     * @param aY
+     *            the y coordinate of the point, in cells
+     * @param aT
+     *            the time, between 0 and 1
+     * @param aVelocity
+     *            the array receiving the velocity in x and y
+     */
+    void velocity(double aX, double aY, double aT, double[] aVelocity) {
+        // The cell centres are at half-integer coordinates; the padding
+        // cells are at -0.5 and size + 0.5.
+        double u = Math.min(Math.max(aX + 0.5, 0), iGridSize[0] + 1);
+        double w = Math.min(Math.max(aY + 0.5, 0), iGridSize[1] + 1);
+        int ix = Math.min((int) u, iGridSize[0]);
+        int iy = Math.min((int) w, iGridSize[1]);
+        double dx = u - ix;
+        double dy = w - iy;
+
+        int i11 = ix * iPaddedSizeY + iy;
+        int i21 = i11 + iPaddedSizeY;
+        int i12 = i11 + 1;
+        int i22 = i21 + 1;
+
+        double w11 = (1 - dx) * (1 - dy);
+        double w21 = dx * (1 - dy);
+        double w12 = (1 - dx) * dy;
+        double w22 = dx * dy;
+
+        double rho = w11 * iDensity[i11] + w21 * iDensity[i21] + w12
+                * iDensity[i12] + w22 * iDensity[i22];
+        rho = (1 - aT) * rho + aT * iMeanDensity;
+
+        aVelocity[0] = (w11 * iFluxX[i11] + w21 * iFluxX[i21] + w12
+                * iFluxX[i12] + w22 * iFluxX[i22])
+                / rho;
+        aVelocity[1] = (w11 * iFluxY[i11] + w21 * iFluxY[i21] + w12
+                * iFluxY[i12] + w22 * iFluxY[i22])
+                / rho;
+    }
+
+    /**
+     * Hands the grid points over to the cartogram grid, in world coordinates.
+     * The grid points are the nodes of the cartogram grid, in the same order,
+     * so they are converted in place and not copied.
+     * 
+     * @param aGrid
+     *            the cartogram grid
+     */
+    private void projectCartogramGrid(CartogramGrid aGrid) {
+        Envelope extent = aGrid.getEnvelope();
+
+        double cellSizeX = extent.getWidth() / iGridSize[0];
+        double cellSizeY = extent.getHeight() / iGridSize[1];
+        double minX = extent.getMinX();
+        double minY = extent.getMinY();
+
+        for (int i = 0; i < iPointsX.length; i++) {
+            iPointsX[i] = iPointsX[i] * cellSizeX + minX;
+            iPointsY[i] = iPointsY[i] * cellSizeY + minY;
+        }
+        aGrid.setNodes(iPointsX, iPointsY);
+        iPointsX = null;
+        iPointsY = null;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Flow integration steps: ");
+        builder.append(iAcceptedSteps);
+        builder.append(" accepted, ");
+        builder.append(iRejectedSteps);
+        builder.append(" rejected\n");
+        builder.append("Flow stopped: ");
+        builder.append(iStopReason);
+        builder.append('\n');
+        return builder.toString();
+    }
+}
\ No newline at end of file
@@ -21,9 +21,13 @@
 
 package ch.epfl.scapetoad;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 
 import org.apache.commons.logging.Log;
@@ -32,7 +36,6 @@ import org.apache.commons.logging.LogFactory;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
 
 /**
  * The cartogram grid class represents the grid which is overlaid on all the
@@ -61,29 +64,31 @@ public class CartogramGrid {
     private Envelope iEnvelope = null;
 
     /**
-     * The X arrays for storing the nodes and the cells.
+     * The x coordinates of the nodes, row by row: the node (i, j) is at the
+     * index j * gridSizeX + i.
      */
-    private double[][] iNodeX;
+    private double[] iNodeX;
 
     /**
-     * The Y arrays for storing the nodes and the cells.
+     * The y coordinates of the nodes, in the same order as the x coordinates.
      */
-    private double[][] iNodeY;
+    private double[] iNodeY;
 
     /**
-     * The array of original density.
+     * The array of original density, row by row: the cell (i, j) is at the
+     * index j * (gridSizeX - 1) + i.
      */
-    private double[][] iCellOriginalDensity;
+    private double[] iCellOriginalDensity;
 
     /**
-     * The array of current density.
+     * The array of current density, in the same order as the original one.
      */
-    private double[][] iCellCurrentDensity;
+    private double[] iCellCurrentDensity;
 
     /**
-     * The array of deformation.
+     * The array of deformation, in the same order as the densities.
      */
-    private short[][] iCellConstrainedDeformation;
+    private short[] iCellConstrainedDeformation;
 
     /**
      * The mean density is the optimal density for a cell.
@@ -104,6 +109,25 @@ public class CartogramGrid {
      */
     private double bias = 0.00001;
 
+    /**
+     * <code>true</code> if the density of a cell mixes the densities of the
+     * features by the fraction of the cell they cover, <code>false</code> if
+     * a cell takes the density of the feature containing its centre.
+     */
+    private boolean iAreaWeighted = false;
+
+    /**
+     * The file in which the feature index is saved, <code>null</code> to only
+     * keep it in memory.
+     */
+    private File iFeatureIndexFile;
+
+    /**
+     * The cache of the projected points, <code>null</code> to project every
+     * point.
+     */
+    private CartogramProjectionCache iProjectionCache;
+
     /**
      * The constructor for the cartogram grid.
      * 
@@ -121,16 +145,107 @@ public class CartogramGrid {
         iEnvelope = aEnvelope;
 
         // Allocate memory for the grid arrays.
-        iNodeX = new double[aGridSizeX][aGridSizeY];
-        iNodeY = new double[aGridSizeX][aGridSizeY];
-        iCellOriginalDensity = new double[aGridSizeX - 1][aGridSizeY - 1];
-        iCellCurrentDensity = new double[aGridSizeX - 1][aGridSizeY - 1];
-        iCellConstrainedDeformation = new short[aGridSizeX - 1][aGridSizeY - 1];
+        iNodeX = new double[aGridSizeX * aGridSizeY];
+        iNodeY = new double[aGridSizeX * aGridSizeY];
+        int cells = (aGridSizeX - 1) * (aGridSizeY - 1);
+        iCellOriginalDensity = new double[cells];
+        iCellCurrentDensity = new double[cells];
+        iCellConstrainedDeformation = new short[cells];
 
         // Compute the node coordinates.
         computeNodeCoordinates();
     }
 
+    /**
+     * Creates a copy of a grid, with its own node and density arrays.
+     * 
+     * @param aGrid
+     *            the grid to copy
+     */
+    public CartogramGrid(CartogramGrid aGrid) {
+        iGridSize[0] = aGrid.iGridSize[0];
+        iGridSize[1] = aGrid.iGridSize[1];
+        iEnvelope = aGrid.iEnvelope;
+        iMeanDensity = aGrid.iMeanDensity;
+        iCellSize[0] = aGrid.iCellSize[0];
+        iCellSize[1] = aGrid.iCellSize[1];
+        bias = aGrid.bias;
+        iAreaWeighted = aGrid.iAreaWeighted;
+        iFeatureIndexFile = aGrid.iFeatureIndexFile;
+
+        iNodeX = aGrid.iNodeX.clone();
+        iNodeY = aGrid.iNodeY.clone();
+        iCellOriginalDensity = aGrid.iCellOriginalDensity.clone();
+        iCellCurrentDensity = aGrid.iCellCurrentDensity.clone();
+        iCellConstrainedDeformation = aGrid.iCellConstrainedDeformation
+                .clone();
+    }
+
+    /**
+     * Returns the index of a node in the node arrays.
+     * 
+     * @param aI
+     *            the node index in x
+     * @param aJ
+     *            the node index in y
+     * @return the index in the node arrays
+     */
+    private int node(int aI, int aJ) {
+        return aJ * iGridSize[0] + aI;
+    }
+
+    /**
+     * Returns the index of a cell in the cell arrays.
+     * 
+     * @param aI
+     *            the cell index in x
+     * @param aJ
+     *            the cell index in y
+     * @return the index in the cell arrays
+     */
+    private int cell(int aI, int aJ) {
+        return aJ * (iGridSize[0] - 1) + aI;
+    }
+
+    /**
+     * Defines how the feature densities are assigned to the cells. With the
+     * area weighted densities, the density of a cell is the mean of the
+     * feature densities weighted by the area they cover in the cell, the
+     * uncovered part having the mean density. Boundary cells are then not
+     * quantized, and a coarser grid gives the same size error. By default, a
+     * cell takes the density of the feature containing its centre.
+     * 
+     * @param aAreaWeighted
+     *            <code>true</code> for area weighted densities
+     */
+    public void setAreaWeightedDensity(boolean aAreaWeighted) {
+        iAreaWeighted = aAreaWeighted;
+    }
+
+    /**
+     * Defines the file in which the feature index of the master layer is
+     * saved. If the file contains the index of the same layer and grid, it is
+     * used instead of rasterizing the features again.
+     * 
+     * @param aFile
+     *            the file, <code>null</code> to only keep the index in memory
+     */
+    public void setFeatureIndexFile(File aFile) {
+        iFeatureIndexFile = aFile;
+    }
+
+    /**
+     * Defines the cache of the projected points. The points already in the
+     * cache are not projected again; the cache must be removed when the grid
+     * is deformed again.
+     * 
+     * @param aCache
+     *            the cache, <code>null</code> to project every point
+     */
+    public void setProjectionCache(CartogramProjectionCache aCache) {
+        iProjectionCache = aCache;
+    }
+
     /**
      * Returns the grid's bounding box.
      * 
@@ -141,29 +256,109 @@ public class CartogramGrid {
     }
 
     /**
-     * Returns the x coordinates array.
+     * Returns the x coordinate of a node.
+     * 
+     * @param aI
+     *            the node index in x
+     * @param aJ
+     *            the node index in y
+     * @return the x coordinate
+     */
+    public double getNodeX(int aI, int aJ) {
+        return iNodeX[node(aI, aJ)];
+    }
+
+    /**
+     * Returns the y coordinate of a node.
      * 
-     * @return the X coordnates
+     * @param aI
+     *            the node index in x
+     * @param aJ
+     *            the node index in y
+     * @return the y coordinate
      */
-    public double[][] getXCoordinates() {
+    public double getNodeY(int aI, int aJ) {
+        return iNodeY[node(aI, aJ)];
+    }
+
+    /**
+     * Moves a node.
+     * 
+     * @param aI
+     *            the node index in x
+     * @param aJ
+     *            the node index in y
+     * @param aX
+     *            the new x coordinate
+     * @param aY
+     *            the new y coordinate
+     */
+    public void setNode(int aI, int aJ, double aX, double aY) {
+        iNodeX[node(aI, aJ)] = aX;
+        iNodeY[node(aI, aJ)] = aY;
+    }
+
+    /**
+     * Returns the x coordinates of the nodes, row by row: the node (i, j) is
+     * at the index j * gridSizeX + i. The array is the one of the grid, not a
+     * copy.
+     * 
+     * @return the X coordinates
+     */
+    public double[] getNodeX() {
         return iNodeX;
     }
 
     /**
-     * Returns the y coordinates array.
+     * Returns the y coordinates of the nodes, in the same order as the x
+     * coordinates. The array is the one of the grid, not a copy.
      * 
      * @return the Y coordinates
      */
-    public double[][] getYCoordinates() {
+    public double[] getNodeY() {
         return iNodeY;
     }
 
     /**
-     * Returns the array containing the current densities for the grid.
+     * Replaces the node coordinates by the provided arrays, which are used as
+     * they are, without a copy. The arrays have the layout of getNodeX().
+     * 
+     * @param aX
+     *            the x coordinates
+     * @param aY
+     *            the y coordinates
+     */
+    public void setNodes(double[] aX, double[] aY) {
+        if (aX.length != iNodeX.length || aY.length != iNodeY.length) {
+            throw new IllegalArgumentException("The node arrays have "
+                    + aX.length + " and " + aY.length + " values instead of "
+                    + iNodeX.length);
+        }
+        iNodeX = aX;
+        iNodeY = aY;
+    }
+
+    /**
+     * Returns the current density of a cell.
+     * 
+     * @param aI
+     *            the cell index in x
+     * @param aJ
+     *            the cell index in y
+     * @return the density
+     */
+    public double getCurrentDensity(int aI, int aJ) {
+        return iCellCurrentDensity[cell(aI, aJ)];
+    }
+
+    /**
+     * Returns the array containing the current densities for the grid, row by
+     * row: the cell (i, j) is at the index j * (gridSizeX - 1) + i. The array
+     * is the one of the grid, not a copy.
      * 
      * @return the densities
      */
-    public double[][] getCurrentDensityArray() {
+    public double[] getCurrentDensityArray() {
         return iCellCurrentDensity;
     }
 
@@ -198,8 +393,8 @@ public class CartogramGrid {
             x = iEnvelope.getMinX();
 
             for (int i = 0; i < iGridSize[0]; i++) {
-                iNodeX[i][j] = x;
-                iNodeY[i][j] = y;
+                iNodeX[node(i, j)] = x;
+                iNodeY[node(i, j)] = y;
                 x += iCellSize[0];
             }
 
@@ -228,6 +423,36 @@ public class CartogramGrid {
             String aAttrName, boolean aAttrIsDensityValue,
             ICartogramStatus aStatus) throws InterruptedException,
             DataFormatException {
+        computeOriginalDensityValuesWithLayer(aLayer, aAttrName,
+                aAttrIsDensityValue, aStatus, new CartogramExecutor(1));
+    }
+
+    /**
+     * Computes the density value given a layer and an attribute name. The
+     * features are rasterized concurrently by tiles of rows. With the cell
+     * centre rule, the rasterization gives the feature index of the layer,
+     * which is reused for the other attributes of the same layer and grid.
+     * 
+     * @param aLayer
+     *            the master layer
+     * @param aAttrName
+     *            the name of the master attribute
+     * @param aAttrIsDensityValue
+     *            is true if the master attribute is a density value, and false
+     *            if it is a population value.
+     * @param aStatus
+     *            the cartogram status
+     * @param aExecutor
+     *            the executor running the tiles
+     * @throws InterruptedException
+     *             when was interrupted
+     * @throws DataFormatException
+     *             when the data format is wrong
+     */
+    public void computeOriginalDensityValuesWithLayer(CartogramLayer aLayer,
+            String aAttrName, boolean aAttrIsDensityValue,
+            final ICartogramStatus aStatus, CartogramExecutor aExecutor)
+            throws InterruptedException, DataFormatException {
         // If the attribute is not a density value, we create a new
         // attribute for the computed density value.
         String densityAttrName = aAttrName;
@@ -245,31 +470,39 @@ public class CartogramGrid {
         // all optimal density values. At the same time we set the current
         // density value to the mean density value and the value for constrained
         // deformation to 0.
-        for (int j = 0; j < iGridSize[1] - 1; j++) {
-            for (int i = 0; i < iGridSize[0] - 1; i++) {
-                iCellCurrentDensity[i][j] = iMeanDensity;
-                iCellOriginalDensity[i][j] = iMeanDensity;
-                iCellConstrainedDeformation[i][j] = -1;
-            }
+        List<CartogramFeature> features = aLayer.getFeatures();
+        double[] densities = new double[features.size()];
+        for (int f = 0; f < densities.length; f++) {
+            densities[f] = features.get(f).getAttributeAsDouble(
+                    densityAttrName);
         }
 
-        int nFeat = aLayer.getFeatures().size();
-        int featCnt = 0;
-        for (CartogramFeature feature : aLayer.getFeatures()) {
-            // Interrupt the process ?
-            if (Thread.interrupted()) {
-                // Raise an InterruptedException.
-                throw new InterruptedException(
-                        "Computation has been interrupted by the user.");
+        if (iAreaWeighted) {
+            double[] coverage = new double[iCellOriginalDensity.length];
+            Arrays.fill(iCellOriginalDensity, 0.0);
+            Arrays.fill(iCellConstrainedDeformation, (short) -1);
+            rasterizeFeatures(features, densities, null, coverage, aStatus,
+                    aExecutor);
+            mixDensityValues(coverage);
+        } else {
+            // Each cell takes the density of the Feature containing its
+            // centre, read from the feature index.
+            CartogramFeatureIndex index = getFeatureIndex(aLayer, aStatus,
+                    aExecutor);
+            for (int j = 0; j < iGridSize[1] - 1; j++) {
+                for (int i = 0; i < iGridSize[0] - 1; i++) {
+                    int f = index.getFeature(i, j);
+                    int c = cell(i, j);
+                    if (f == CartogramFeatureIndex.NO_FEATURE) {
+                        iCellOriginalDensity[c] = iMeanDensity;
+                        iCellConstrainedDeformation[c] = -1;
+                    } else {
+                        iCellOriginalDensity[c] = densities[f];
+                        iCellConstrainedDeformation[c] = 0;
+                    }
+                    iCellCurrentDensity[c] = iCellOriginalDensity[c];
+                }
             }
-
-            aStatus.updateRunningStatus(100 + featCnt * 100 / nFeat,
-                    "Computing the density for the cartogram grid...",
-                    "Treating feature %1$s of %2$s", featCnt + 1, nFeat);
-
-            fillDensityValueWithFeature(feature, densityAttrName);
-
-            featCnt++;
         }
 
         // Rescale and the bias value to every cell.
@@ -286,9 +519,9 @@ public class CartogramGrid {
         double min = Double.MAX_VALUE;
         for (int j = 0; j < iGridSize[1] - 1; j++) {
             for (int i = 0; i < iGridSize[0] - 1; i++) {
-                if (iCellCurrentDensity[i][j] > 0.0
-                        && iCellCurrentDensity[i][j] < min) {
-                    min = iCellCurrentDensity[i][j];
+                if (iCellCurrentDensity[cell(i, j)] > 0.0
+                        && iCellCurrentDensity[cell(i, j)] < min) {
+                    min = iCellCurrentDensity[cell(i, j)];
                 }
             }
         }
@@ -299,7 +532,7 @@ public class CartogramGrid {
             if (factor > 1) {
                 for (int j = 0; j < iGridSize[1] - 1; j++) {
                     for (int i = 0; i < iGridSize[0] - 1; i++) {
-                        iCellCurrentDensity[i][j] *= factor;
+                        iCellCurrentDensity[cell(i, j)] *= factor;
                     }
                 }
             }
@@ -312,7 +545,7 @@ public class CartogramGrid {
     private void addBias() {
         for (int j = 0; j < iGridSize[1] - 1; j++) {
             for (int i = 0; i < iGridSize[0] - 1; i++) {
-                iCellCurrentDensity[i][j] += bias;
+                iCellCurrentDensity[cell(i, j)] += bias;
             }
         }
     }
@@ -356,82 +589,319 @@ public class CartogramGrid {
         Geometry geometry = aFeature.getGeometry();
         Envelope envelope = geometry.getEnvelopeInternal();
 
-        // Find the maximum cell indexes for this Feature
+        // Find the cell indexes for this Feature
+        int minI = originalCellIndexForCoordinateX(envelope.getMinX());
         int maxI = originalCellIndexForCoordinateX(envelope.getMaxX());
+        int minJ = originalCellIndexForCoordinateY(envelope.getMinY());
         int maxJ = originalCellIndexForCoordinateY(envelope.getMaxY());
 
-        // Create a new Geometry Factory
-        // We need to create a new geometry with the cell in order to know
-        // whether the cell intersects with the feature
-        GeometryFactory factory = new GeometryFactory();
-
-        Geometry cellEnvGeom;
-        Envelope cellEnv;
-        double minX;
-        double minY;
-        for (int j = originalCellIndexForCoordinateY(envelope.getMinY()); j <= maxJ; j++) {
-            for (int i = originalCellIndexForCoordinateX(envelope.getMinX()); i <= maxI; i++) {
-                // We treat this cell only if it does not intersect with a
-                // deformation feature or if it is already a constrained
-                // deformation cell
-                if (iCellConstrainedDeformation[i][j] == -1) {
-                    minX = coordinateXForOriginalCellIndex(i);
-                    minY = coordinateYForOriginalCellIndex(j);
-
-                    cellEnv = new Envelope(minX, minX + iCellSize[0], minY,
-                            minY + iCellSize[1]);
-                    cellEnvGeom = factory.toGeometry(cellEnv);
-                    if (geometry.contains(cellEnvGeom)
-                            || geometry.intersects(cellEnvGeom)) {
-                        iCellConstrainedDeformation[i][j] = 1;
-                    }
+        // We treat a cell only if it does not intersect with a deformation
+        // feature or if it is already a constrained deformation cell. The
+        // cells touched by the feature are found from its segments and its
+        // interior, without building a geometry for each cell.
+        new CartogramRasterizer(geometry, iEnvelope, iCellSize)
+                .markTouchedCells(iCellConstrainedDeformation,
+                        iGridSize[0] - 1, minI, maxI, minJ, maxJ, (short) -1,
+                        (short) 1);
+    }
+
+    /**
+     * Returns the feature index of a layer for this grid. The index is taken
+     * from the cache or the feature index file if they contain the index of
+     * the same layer and grid, otherwise it is computed and stored in both.
+     * 
+     * @param aLayer
+     *            the layer
+     * @param aStatus
+     *            the cartogram status
+     * @param aExecutor
+     *            the executor running the tiles
+     * @return the feature index
+     * @throws InterruptedException
+     *             when was interrupted
+     */
+    private CartogramFeatureIndex getFeatureIndex(CartogramLayer aLayer,
+            ICartogramStatus aStatus, CartogramExecutor aExecutor)
+            throws InterruptedException {
+        String key = CartogramFeatureIndex.createKey(aLayer,
+                iGridSize[0] - 1, iGridSize[1] - 1, iEnvelope);
+        CartogramFeatureIndex index = CartogramFeatureIndex.getCached(key);
+        if (index != null) {
+            return index;
+        }
+
+        if (iFeatureIndexFile != null) {
+            try {
+                index = CartogramFeatureIndex.read(iFeatureIndexFile, key);
+            } catch (IOException e) {
+                logger.warn("Unable to read the feature index", e);
+            }
+        }
+
+        if (index == null) {
+            index = new CartogramFeatureIndex(key, iGridSize[0] - 1,
+                    iGridSize[1] - 1);
+            rasterizeFeatures(aLayer.getFeatures(), null, index, null,
+                    aStatus, aExecutor);
+
+            if (iFeatureIndexFile != null) {
+                try {
+                    index.write(iFeatureIndexFile);
+                } catch (IOException e) {
+                    logger.warn("Unable to save the feature index", e);
                 }
             }
         }
+
+        CartogramFeatureIndex.putCached(index);
+        return index;
     }
 
     /**
-     * Updates the optimal density value for the grid cells inside the provided
-     * Feature.
+     * Rasterizes the features, either into a feature index or as area
+     * weighted densities. The grid is split into tiles of rows which are
+     * rasterized concurrently, each one with the features whose envelope
+     * overlaps it. A tile treats its features in the layer order and only
+     * writes its own rows, so no lock is needed and the result doesn't depend
+     * on the number of threads.
+     * 
+     * @param aFeatures
+     *            the features
+     * @param aDensities
+     *            the density of each feature, for the area weighted densities
+     * @param aIndex
+     *            the feature index to fill, <code>null</code> for the area
+     *            weighted densities
+     * @param aCoverage
+     *            the covered fraction of each cell for the area weighted
+     *            densities, <code>null</code> otherwise
+     * @param aStatus
+     *            the cartogram status
+     * @param aExecutor
+     *            the executor running the tiles
+     * @throws InterruptedException
+     *             when was interrupted
+     */
+    private void rasterizeFeatures(final List<CartogramFeature> aFeatures,
+            final double[] aDensities, final CartogramFeatureIndex aIndex,
+            final double[] aCoverage, final ICartogramStatus aStatus,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        // Bin the features by the tiles of rows their envelope overlaps.
+        int nFeat = aFeatures.size();
+        final int[][] cells = new int[nFeat][];
+        final int[] bounds = aExecutor.splitRange(iGridSize[1] - 1);
+        int tileCount = bounds.length - 1;
+        List<List<Integer>> bins = new ArrayList<List<Integer>>(tileCount);
+        for (int k = 0; k < tileCount; k++) {
+            bins.add(new ArrayList<Integer>());
+        }
+        int pieceCount = 0;
+        for (int f = 0; f < nFeat; f++) {
+            Envelope envelope = aFeatures.get(f).getGeometry()
+                    .getEnvelopeInternal();
+            cells[f] = new int[] {
+                    originalCellIndexForCoordinateX(envelope.getMinX()),
+                    originalCellIndexForCoordinateX(envelope.getMaxX()),
+                    originalCellIndexForCoordinateY(envelope.getMinY()),
+                    originalCellIndexForCoordinateY(envelope.getMaxY()) };
+            if (cells[f][1] < cells[f][0]) {
+                continue;
+            }
+            for (int k = 0; k < tileCount; k++) {
+                if (cells[f][2] < bounds[k + 1] && cells[f][3] >= bounds[k]) {
+                    bins.get(k).add(Integer.valueOf(f));
+                    pieceCount++;
+                }
+            }
+        }
+
+        // Rasterize the tiles; the progress is shared by all the tiles.
+        final int total = Math.max(1, pieceCount);
+        final AtomicInteger done = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(tileCount);
+        for (int k = 0; k < tileCount; k++) {
+            final int fromJ = bounds[k];
+            final int toJ = bounds[k + 1];
+            final List<Integer> bin = bins.get(k);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    for (Integer feature : bin) {
+                        int f = feature.intValue();
+                        rasterizeTile(aFeatures.get(f), f, aDensities, cells[f],
+                                fromJ, toJ, aIndex, aCoverage);
+                        reportProgress(aStatus, done.incrementAndGet(),
+                                total);
+                    }
+                    return null;
+                }
+            });
+        }
+        aExecutor.invokeAll(tasks);
+    }
+
+    /**
+     * Rasterizes a Feature into the rows of a tile.
      * 
      * @param aFeature
-     *            the CartoramFeature which serves as update source.
-     * @param aDensityAttribute
-     *            the name of the attribute containing the density value for the
-     *            Feature.
+     *            the Feature
+     * @param aF
+     *            the index of the Feature in the layer
+     * @param aDensities
+     *            the density of each feature, for the area weighted densities
+     * @param aCells
+     *            the cell range of the Feature envelope: minimum i, maximum i,
+     *            minimum j and maximum j
+     * @param aFromJ
+     *            the first row of the tile
+     * @param aToJ
+     *            the row after the last row of the tile
+     * @param aIndex
+     *            the feature index to fill, <code>null</code> for the area
+     *            weighted densities
+     * @param aCoverage
+     *            the covered fraction of each cell for the area weighted
+     *            densities, <code>null</code> otherwise
+     * @throws InterruptedException
+     *             when was interrupted
      */
-    private void fillDensityValueWithFeature(CartogramFeature aFeature,
-            String aDensityAttribute) {
-        // Extract the minimum and maximum coordinates from the Feature.
-        Geometry geometry = aFeature.getGeometry();
-        Envelope envelope = aFeature.getGeometry().getEnvelopeInternal();
+    private void rasterizeTile(CartogramFeature aFeature, int aF,
+            double[] aDensities, int[] aCells, int aFromJ, int aToJ,
+            CartogramFeatureIndex aIndex, double[] aCoverage)
+            throws InterruptedException {
+        // Interrupt the process ?
+        if (Thread.interrupted()) {
+            // Raise an InterruptedException.
+            throw new InterruptedException(
+                    "Computation has been interrupted by the user.");
+        }
 
-        // Get the density attribute value.
-        double densityValue = aFeature.getAttributeAsDouble(aDensityAttribute);
+        CartogramRasterizer rasterizer = new CartogramRasterizer(
+                aFeature.getGeometry(), iEnvelope, iCellSize);
+        int minJ = Math.max(aCells[2], aFromJ);
+        int maxJ = Math.min(aCells[3], aToJ - 1);
+        if (aIndex != null) {
+            fillFeatureIndex(rasterizer, aF, aCells[0], aCells[1], minJ, maxJ,
+                    aIndex);
+        } else {
+            addDensityValueWithFeature(rasterizer, aDensities[aF], aCells[0],
+                    aCells[1], minJ, maxJ, aCoverage);
+        }
+    }
 
-        // Find the maximum cell indexes for this Feature
-        int maxI = originalCellIndexForCoordinateX(envelope.getMaxX());
-        int maxJ = originalCellIndexForCoordinateY(envelope.getMaxY());
+    /**
+     * Reports the rasterization progress, only when the percentage changes.
+     * 
+     * @param aStatus
+     *            the cartogram status
+     * @param aDone
+     *            the number of rasterized pieces
+     * @param aTotal
+     *            the total number of pieces
+     */
+    private static void reportProgress(ICartogramStatus aStatus, int aDone,
+            int aTotal) {
+        long perc = aDone * 100L / aTotal;
+        if (perc != (aDone - 1) * 100L / aTotal) {
+            aStatus.updateRunningStatus(100 + (int) perc,
+                    "Computing the density for the cartogram grid...",
+                    "Rasterizing the features: %1$s%% done", perc);
+        }
+    }
 
-        // Create a new Geometry Factory.
-        GeometryFactory factory = new GeometryFactory();
-
-        for (int j = originalCellIndexForCoordinateY(envelope.getMinY()); j <= maxJ; j++) {
-            for (int i = originalCellIndexForCoordinateX(envelope.getMinX()); i <= maxI; i++) {
-                if (geometry
-                        .contains(factory.createPoint(new Coordinate(
-                                coordinateXForOriginalCellIndex(i)
-                                        + iCellSize[0] / 2,
-                                coordinateYForOriginalCellIndex(j)
-                                        + iCellSize[1] / 2)))) {
-                    iCellOriginalDensity[i][j] = densityValue;
-                    iCellCurrentDensity[i][j] = densityValue;
-                    iCellConstrainedDeformation[i][j] = 0;
+    /**
+     * Sets the Feature in the feature index for the grid cells of a row range
+     * whose centre is inside the Feature.
+     * 
+     * @param aRasterizer
+     *            the rasterizer of the Feature
+     * @param aF
+     *            the index of the Feature in the layer
+     * @param aMinI
+     *            the first cell column of the Feature
+     * @param aMaxI
+     *            the last cell column of the Feature
+     * @param aMinJ
+     *            the first cell row to fill
+     * @param aMaxJ
+     *            the last cell row to fill
+     * @param aIndex
+     *            the feature index
+     */
+    private static void fillFeatureIndex(CartogramRasterizer aRasterizer,
+            int aF, int aMinI, int aMaxI, int aMinJ, int aMaxJ,
+            CartogramFeatureIndex aIndex) {
+        // Fill the cells whose centre is inside the Feature, row by row.
+        boolean[] inside = new boolean[aMaxI - aMinI + 1];
+        for (int j = aMinJ; j <= aMaxJ; j++) {
+            aRasterizer.rasterizeRow(j, aMinI, aMaxI, inside);
+            for (int i = aMinI; i <= aMaxI; i++) {
+                if (inside[i - aMinI]) {
+                    aIndex.setFeature(i, j, aF);
                 }
             }
         }
     }
 
+    /**
+     * Adds the density of the provided Feature to the grid cells of a row
+     * range, weighted by the area of the cell covered by the Feature.
+     * 
+     * @param aRasterizer
+     *            the rasterizer of the Feature
+     * @param aDensityValue
+     *            the density value of the Feature
+     * @param aMinI
+     *            the first cell column of the Feature
+     * @param aMaxI
+     *            the last cell column of the Feature
+     * @param aMinJ
+     *            the first cell row to fill
+     * @param aMaxJ
+     *            the last cell row to fill
+     * @param aCoverage
+     *            the covered fraction of each cell, updated
+     */
+    private void addDensityValueWithFeature(CartogramRasterizer aRasterizer,
+            double aDensityValue, int aMinI, int aMaxI, int aMinJ, int aMaxJ,
+            double[] aCoverage) {
+        double[] fraction = new double[aMaxI - aMinI + 1];
+        for (int j = aMinJ; j <= aMaxJ; j++) {
+            aRasterizer.coverageRow(j, aMinI, aMaxI, fraction);
+            for (int i = aMinI; i <= aMaxI; i++) {
+                if (fraction[i - aMinI] > 0) {
+                    iCellOriginalDensity[cell(i, j)] += fraction[i - aMinI]
+                            * aDensityValue;
+                    aCoverage[cell(i, j)] += fraction[i - aMinI];
+                    iCellConstrainedDeformation[cell(i, j)] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes the area weighted densities. The uncovered part of a cell has
+     * the mean density; if overlapping Features cover more than the cell, the
+     * weights are normalized.
+     * 
+     * @param aCoverage
+     *            the covered fraction of each cell
+     */
+    private void mixDensityValues(double[] aCoverage) {
+        for (int j = 0; j < iGridSize[1] - 1; j++) {
+            for (int i = 0; i < iGridSize[0] - 1; i++) {
+                int c = cell(i, j);
+                double covered = aCoverage[c];
+                if (covered > 1) {
+                    iCellOriginalDensity[c] /= covered;
+                } else {
+                    iCellOriginalDensity[c] += (1 - covered) * iMeanDensity;
+                }
+                iCellCurrentDensity[c] = iCellOriginalDensity[c];
+            }
+        }
+    }
+
     /**
      * Corrects the grid for corresponding the constrained deformation
      * information computed by the prepareGridForConstrainedDeformation method.
@@ -445,82 +915,223 @@ public class CartogramGrid {
         // (no topologic problem)
         // 5. If yes, move point.
 
-        boolean canMove;
         for (int j = 0; j < iGridSize[1] - 1; j++) {
             for (int i = 0; i < iGridSize[0] - 1; i++) {
-                if (iCellConstrainedDeformation[i][j] == 1) {
-                    // Can we move a node ?
-                    canMove = false;
-
-                    // If there is a corner, we can move.
-                    if (i == 0 && j == 0 || i == 0 && j == iGridSize[1] - 2
-                            || i == iGridSize[0] - 2 && j == 0
-                            || i == iGridSize[0] - 2 && j == iGridSize[1] - 1) {
-                        canMove = true;
-                    }
-
-                    // If the cell is on the border but not a corner,
-                    // we can move depending on the neighbours.
+                // Try to apply the constrained deformation to the node.
+                if (isMovableConstrainedCell(i, j)) {
+                    applyConstrainedDeformationToCell(i, j);
+                }
+            }
+        }
+    }
 
-                    else if (i == 0 || i == iGridSize[0] - 2) {
-                        // Left or right border
-                        if (iCellConstrainedDeformation[i][j + 1] != 0
-                                || iCellConstrainedDeformation[i][j - 1] != 0) {
-                            canMove = true;
+    /**
+     * Corrects the grid like conformToConstrainedDeformation(), in several
+     * sweeps whose cells are processed concurrently. Moving the nodes of a
+     * cell reads the nodes up to one node around the cell, so the cells are
+     * partitioned into 9 colours by their indexes modulo 3: two cells of the
+     * same colour never share a node which one of them moves and the other
+     * one reads. The colours are processed in turn and the cells of a colour
+     * concurrently, so the result doesn't depend on the number of threads.
+     * The sweeps stop when no node moves more than the tolerance.
+     * 
+     * @param aExecutor
+     *            the executor processing the cells
+     * @param aMaxSweeps
+     *            the maximum number of sweeps
+     * @param aTolerance
+     *            the node motion, in cell sizes, below which the sweeps stop
+     * @return the number of sweeps done
+     * @throws InterruptedException
+     *             when was interrupted
+     */
+    public int conformToConstrainedDeformation(CartogramExecutor aExecutor,
+            int aMaxSweeps, double aTolerance) throws InterruptedException {
+        // The movable cells of each colour, as their index in the cell arrays.
+        final int cellsX = iGridSize[0] - 1;
+        int[][] colours = new int[9][];
+        int[] counts = new int[9];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < iGridSize[1] - 1; j++) {
+                for (int i = 0; i < cellsX; i++) {
+                    if (isMovableConstrainedCell(i, j)) {
+                        int colour = i % 3 * 3 + j % 3;
+                        if (pass == 1) {
+                            colours[colour][counts[colour]] = cell(i, j);
                         }
+                        counts[colour]++;
                     }
+                }
+            }
+            if (pass == 0) {
+                for (int c = 0; c < 9; c++) {
+                    colours[c] = new int[counts[c]];
+                    counts[c] = 0;
+                }
+            }
+        }
 
-                    else if (j == 0 || j == iGridSize[1] - 2) {
-                        // Lower or upper border
-                        if (iCellConstrainedDeformation[i - 1][j] != 0
-                                || iCellConstrainedDeformation[i + 1][j] != 0) {
-                            canMove = true;
-                        }
+        // The nodes of the movable cells, as their index in the node arrays,
+        // and their position before each sweep.
+        int nodesX = iGridSize[0];
+        boolean[] movable = new boolean[iNodeX.length];
+        int nodeCount = 0;
+        for (int[] cells : colours) {
+            for (int cell : cells) {
+                int node = node(cell % cellsX, cell / cellsX);
+                for (int corner : new int[] { node, node + 1, node + nodesX,
+                        node + nodesX + 1 }) {
+                    if (!movable[corner]) {
+                        movable[corner] = true;
+                        nodeCount++;
                     }
+                }
+            }
+        }
+        int[] nodes = new int[nodeCount];
+        nodeCount = 0;
+        for (int node = 0; node < movable.length; node++) {
+            if (movable[node]) {
+                nodes[nodeCount++] = node;
+            }
+        }
+        double[] previousX = new double[nodes.length];
+        double[] previousY = new double[nodes.length];
 
-                    // If there is an empty cell or a constrained cell
-                    // in the neighbourhood, we can propably move (it
-                    // depends on the exact configuration). We have to test
-                    // for each node of the cell whether it can move or not.
-
-                    if (i > 0 && j > 0 && i < iGridSize[0] - 2
-                            && j < iGridSize[1] - 2) {
-                        // Test upper left node.
-                        if (iCellConstrainedDeformation[i - 1][j] != 0
-                                && iCellConstrainedDeformation[i - 1][j + 1] != 0
-                                && iCellConstrainedDeformation[i][j + 1] != 0) {
-                            canMove = true;
-                        }
+        int sweeps = 0;
+        while (sweeps < aMaxSweeps) {
+            // Interrupt the process ?
+            if (Thread.interrupted()) {
+                // Raise an InterruptedException.
+                throw new InterruptedException(
+                        "Computation has been interrupted by the user.");
+            }
 
-                        // Test upper right node.
-                        if (iCellConstrainedDeformation[i][j + 1] != 0
-                                && iCellConstrainedDeformation[i + 1][j + 1] != 0
-                                && iCellConstrainedDeformation[i + 1][j] != 0) {
-                            canMove = true;
-                        }
+            for (int k = 0; k < nodes.length; k++) {
+                previousX[k] = iNodeX[nodes[k]];
+                previousY[k] = iNodeY[nodes[k]];
+            }
 
-                        // Test lower left node.
-                        if (iCellConstrainedDeformation[i - 1][j] != 0
-                                && iCellConstrainedDeformation[i - 1][j - 1] != 0
-                                && iCellConstrainedDeformation[i][j - 1] != 0) {
-                            canMove = true;
-                        }
+            for (final int[] cells : colours) {
+                if (cells.length == 0) {
+                    continue;
+                }
 
-                        // Test lower right node.
-                        if (iCellConstrainedDeformation[i][j - 1] != 0
-                                && iCellConstrainedDeformation[i + 1][j - 1] != 0
-                                && iCellConstrainedDeformation[i + 1][j] != 0) {
-                            canMove = true;
+                int[] bounds = aExecutor.splitRange(cells.length);
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                        bounds.length - 1);
+                for (int k = 0; k < bounds.length - 1; k++) {
+                    final int from = bounds[k];
+                    final int to = bounds[k + 1];
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            for (int c = from; c < to; c++) {
+                                applyConstrainedDeformationToCell(cells[c]
+                                        % cellsX, cells[c] / cellsX);
+                            }
+                            return null;
                         }
-                    }
-
-                    // Try to apply the constrained deformation to the node.
-                    if (canMove) {
-                        applyConstrainedDeformationToCell(i, j);
-                    }
+                    });
                 }
+                aExecutor.invokeAll(tasks);
+            }
+            sweeps++;
+
+            // Stop when the nodes don't move anymore.
+            double maxMove = 0;
+            for (int k = 0; k < nodes.length; k++) {
+                maxMove = Math.max(maxMove, Math.hypot(iNodeX[nodes[k]]
+                        - previousX[k], iNodeY[nodes[k]] - previousY[k]));
+            }
+            if (maxMove <= aTolerance * iCellSize[0]) {
+                break;
+            }
+        }
+        return sweeps;
+    }
+
+    /**
+     * Tells whether a cell is constrained and has a node which can move.
+     * 
+     * @param aI
+     *            the cell index in x
+     * @param aJ
+     *            the cell index in y
+     * @return <code>true</code> if the constrained deformation can be applied
+     *         to the cell
+     */
+    private boolean isMovableConstrainedCell(int aI, int aJ) {
+        if (iCellConstrainedDeformation[cell(aI, aJ)] != 1) {
+            return false;
+        }
+
+        // Can we move a node ?
+        boolean canMove = false;
+
+        // If there is a corner, we can move.
+        if (aI == 0 && aJ == 0 || aI == 0 && aJ == iGridSize[1] - 2
+                || aI == iGridSize[0] - 2 && aJ == 0
+                || aI == iGridSize[0] - 2 && aJ == iGridSize[1] - 2) {
+            canMove = true;
+        }
+
+        // If the cell is on the border but not a corner,
+        // we can move depending on the neighbours.
+
+        else if (aI == 0 || aI == iGridSize[0] - 2) {
+            // Left or right border
+            if (iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0
+                    || iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0) {
+                canMove = true;
+            }
+        }
+
+        else if (aJ == 0 || aJ == iGridSize[1] - 2) {
+            // Lower or upper border
+            if (iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0
+                    || iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0) {
+                canMove = true;
             }
         }
+
+        // If there is an empty cell or a constrained cell
+        // in the neighbourhood, we can propably move (it
+        // depends on the exact configuration). We have to test
+        // for each node of the cell whether it can move or not.
+
+        if (aI > 0 && aJ > 0 && aI < iGridSize[0] - 2
+                && aJ < iGridSize[1] - 2) {
+            // Test upper left node.
+            if (iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0
+                    && iCellConstrainedDeformation[cell(aI - 1, aJ + 1)] != 0
+                    && iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0) {
+                canMove = true;
+            }
+
+            // Test upper right node.
+            if (iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0
+                    && iCellConstrainedDeformation[cell(aI + 1, aJ + 1)] != 0
+                    && iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0) {
+                canMove = true;
+            }
+
+            // Test lower left node.
+            if (iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0
+                    && iCellConstrainedDeformation[cell(aI - 1, aJ - 1)] != 0
+                    && iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0) {
+                canMove = true;
+            }
+
+            // Test lower right node.
+            if (iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0
+                    && iCellConstrainedDeformation[cell(aI + 1, aJ - 1)] != 0
+                    && iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0) {
+                canMove = true;
+            }
+        }
+
+        return canMove;
     }
 
     /**
@@ -535,10 +1146,12 @@ public class CartogramGrid {
         // Compute the location where each of the 4 nodes should go.
 
         // Compute the ideal x/y values for the cell.
-        double minX = (iNodeX[aI][aJ + 1] + iNodeX[aI][aJ]) / 2;
-        double maxX = (iNodeX[aI + 1][aJ + 1] + iNodeX[aI + 1][aJ]) / 2;
-        double minY = (iNodeY[aI][aJ] + iNodeY[aI + 1][aJ]) / 2;
-        double maxY = (iNodeY[aI][aJ + 1] + iNodeX[aI + 1][aJ + 1]) / 2;
+        int ll = node(aI, aJ);
+        int ul = ll + iGridSize[0];
+        double minX = (iNodeX[ul] + iNodeX[ll]) / 2;
+        double maxX = (iNodeX[ul + 1] + iNodeX[ll + 1]) / 2;
+        double minY = (iNodeY[ll] + iNodeY[ll + 1]) / 2;
+        double maxY = (iNodeY[ul] + iNodeY[ul + 1]) / 2;
 
         double edgeLength = Math.sqrt((maxX - minX) * (maxY - minY));
 
@@ -554,44 +1167,44 @@ public class CartogramGrid {
 
         // Upper left node
         if (aI == 0 && aJ == iGridSize[1] - 2 || aI == 0
-                && iCellConstrainedDeformation[aI][aJ + 1] != 0
+                && iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0
                 || aJ == iGridSize[1] - 2
-                && iCellConstrainedDeformation[aI - 1][aJ] != 0
-                || iCellConstrainedDeformation[aI - 1][aJ] != 0
-                && iCellConstrainedDeformation[aI - 1][aJ + 1] != 0
-                && iCellConstrainedDeformation[aI][aJ + 1] != 0) {
+                && iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0
+                || iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0
+                && iCellConstrainedDeformation[cell(aI - 1, aJ + 1)] != 0
+                && iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0) {
             tryToMoveNode(aI, aJ + 1, minX, maxY);
         }
 
         // Upper right node
         if (aI == iGridSize[0] - 2 && aJ == iGridSize[1] - 2
                 || aI == iGridSize[0] - 2
-                && iCellConstrainedDeformation[aI][aJ + 1] != 0
+                && iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0
                 || aJ == iGridSize[1] - 2
-                && iCellConstrainedDeformation[aI + 1][aJ] != 0
-                || iCellConstrainedDeformation[aI + 1][aJ] != 0
-                && iCellConstrainedDeformation[aI + 1][aJ + 1] != 0
-                && iCellConstrainedDeformation[aI][aJ + 1] != 0) {
+                && iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0
+                || iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0
+                && iCellConstrainedDeformation[cell(aI + 1, aJ + 1)] != 0
+                && iCellConstrainedDeformation[cell(aI, aJ + 1)] != 0) {
             tryToMoveNode(aI + 1, aJ + 1, maxX, maxY);
         }
 
         // Lower right node
         if (aI == iGridSize[0] - 2 && aJ == 0 || aI == iGridSize[0] - 2
-                && iCellConstrainedDeformation[aI][aJ - 1] != 0 || aJ == 0
-                && iCellConstrainedDeformation[aI + 1][aJ] != 0
-                || iCellConstrainedDeformation[aI + 1][aJ] != 0
-                && iCellConstrainedDeformation[aI + 1][aJ - 1] != 0
-                && iCellConstrainedDeformation[aI][aJ - 1] != 0) {
+                && iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0 || aJ == 0
+                && iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0
+                || iCellConstrainedDeformation[cell(aI + 1, aJ)] != 0
+                && iCellConstrainedDeformation[cell(aI + 1, aJ - 1)] != 0
+                && iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0) {
             tryToMoveNode(aI + 1, aJ, maxX, minY);
         }
 
         // Lower left node
         if (aI == 0 && aJ == 0 || aI == 0
-                && iCellConstrainedDeformation[aI][aJ - 1] != 0 || aJ == 0
-                && iCellConstrainedDeformation[aI - 1][aJ] != 0
-                || iCellConstrainedDeformation[aI][aJ - 1] != 0
-                && iCellConstrainedDeformation[aI - 1][aJ - 1] != 0
-                && iCellConstrainedDeformation[aI - 1][aJ] != 0) {
+                && iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0 || aJ == 0
+                && iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0
+                || iCellConstrainedDeformation[cell(aI, aJ - 1)] != 0
+                && iCellConstrainedDeformation[cell(aI - 1, aJ - 1)] != 0
+                && iCellConstrainedDeformation[cell(aI - 1, aJ)] != 0) {
             tryToMoveNode(aI, aJ, minX, minY);
         }
     }
@@ -620,86 +1233,86 @@ public class CartogramGrid {
         // move too far. There is a maximum distance which is 1/10 of the
         // original cell size.
 
-        double moveDistance = Math.sqrt((iNodeX[aI][aJ] - x)
-                * (iNodeX[aI][aJ] - x) + (iNodeY[aI][aJ] - y)
-                * (iNodeY[aI][aJ] - y));
+        double moveDistance = Math.sqrt((iNodeX[node(aI, aJ)] - x)
+                * (iNodeX[node(aI, aJ)] - x) + (iNodeY[node(aI, aJ)] - y)
+                * (iNodeY[node(aI, aJ)] - y));
 
         // If the distance to move is too big, we compute a new, closer
         // location.
         if (moveDistance > iCellSize[0] / 10) {
             double newMoveDistance = iCellSize[0] / 10;
 
-            double moveVectorX = x - iNodeX[aI][aJ];
-            double moveVectorY = y - iNodeY[aI][aJ];
+            double moveVectorX = x - iNodeX[node(aI, aJ)];
+            double moveVectorY = y - iNodeY[node(aI, aJ)];
 
             double correctionFactor = newMoveDistance / moveDistance;
 
-            x = iNodeX[aI][aJ] + correctionFactor * moveVectorX;
-            y = iNodeY[aI][aJ] + correctionFactor * moveVectorY;
+            x = iNodeX[node(aI, aJ)] + correctionFactor * moveVectorX;
+            y = iNodeY[node(aI, aJ)] + correctionFactor * moveVectorY;
             moveDistance = newMoveDistance;
         }
 
         boolean canMove = true;
 
         if (aI > 0) {
-            if (aJ < iGridSize[1] - 2 && iNodeX[aI - 1][aJ + 1] >= x) {
+            if (aJ < iGridSize[1] - 2 && iNodeX[node(aI - 1, aJ + 1)] >= x) {
                 canMove = false;
             }
 
-            if (iNodeX[aI - 1][aJ] >= x) {
+            if (iNodeX[node(aI - 1, aJ)] >= x) {
                 canMove = false;
             }
 
-            if (aJ > 0 && iNodeX[aI - 1][aJ - 1] >= x) {
+            if (aJ > 0 && iNodeX[node(aI - 1, aJ - 1)] >= x) {
                 canMove = false;
             }
         }
 
         if (aI < iGridSize[0] - 2) {
-            if (aJ < iGridSize[1] - 2 && iNodeX[aI + 1][aJ + 1] <= x) {
+            if (aJ < iGridSize[1] - 2 && iNodeX[node(aI + 1, aJ + 1)] <= x) {
                 canMove = false;
             }
 
-            if (iNodeX[aI + 1][aJ] <= x) {
+            if (iNodeX[node(aI + 1, aJ)] <= x) {
                 canMove = false;
             }
 
-            if (aJ > 0 && iNodeX[aI + 1][aJ - 1] <= x) {
+            if (aJ > 0 && iNodeX[node(aI + 1, aJ - 1)] <= x) {
                 canMove = false;
             }
         }
 
         if (aJ > 0) {
-            if (aI > 0 && iNodeY[aI - 1][aJ - 1] >= y) {
+            if (aI > 0 && iNodeY[node(aI - 1, aJ - 1)] >= y) {
                 canMove = false;
             }
 
-            if (iNodeY[aI][aJ - 1] >= y) {
+            if (iNodeY[node(aI, aJ - 1)] >= y) {
                 canMove = false;
             }
 
-            if (aI < iGridSize[0] - 2 && iNodeY[aI + 1][aJ - 1] >= y) {
+            if (aI < iGridSize[0] - 2 && iNodeY[node(aI + 1, aJ - 1)] >= y) {
                 canMove = false;
             }
         }
 
         if (aJ < iGridSize[1] - 2) {
-            if (aI > 0 && iNodeY[aI - 1][aJ + 1] <= y) {
+            if (aI > 0 && iNodeY[node(aI - 1, aJ + 1)] <= y) {
                 canMove = false;
             }
 
-            if (iNodeY[aI][aJ + 1] <= y) {
+            if (iNodeY[node(aI, aJ + 1)] <= y) {
                 canMove = false;
             }
 
-            if (aI < iGridSize[0] - 2 && iNodeY[aI + 1][aJ + 1] <= y) {
+            if (aI < iGridSize[0] - 2 && iNodeY[node(aI + 1, aJ + 1)] <= y) {
                 canMove = false;
             }
         }
 
         if (canMove) {
-            iNodeX[aI][aJ] = x;
-            iNodeY[aI][aJ] = y;
+            iNodeX[node(aI, aJ)] = x;
+            iNodeY[node(aI, aJ)] = y;
         }
     }
 
@@ -815,29 +1428,31 @@ public class CartogramGrid {
             }
         }
 
-        for (int i = 0; i < iGridSize[0] - 1; i++) {
-            for (int j = 0; j < iGridSize[1] - 1; j++) {
+        for (int j = 0; j < iGridSize[1] - 1; j++) {
+            for (int i = 0; i < iGridSize[0] - 1; i++) {
                 // Compute the cell index in which the node is located.
+                int ll = node(i, j);
+                int ul = ll + iGridSize[0];
 
-                int llx = (int) Math.round(Math.floor((iNodeX[i][j] - aMinX)
+                int llx = (int) Math.round(Math.floor((iNodeX[ll] - aMinX)
                         / cellSizeX));
-                int lly = (int) Math.round(Math.floor((iNodeY[i][j] - aMinY)
+                int lly = (int) Math.round(Math.floor((iNodeY[ll] - aMinY)
                         / cellSizeY));
 
                 int lrx = (int) Math.round(Math
-                        .floor((iNodeX[i + 1][j] - aMinX) / cellSizeX));
+                        .floor((iNodeX[ll + 1] - aMinX) / cellSizeX));
                 int lry = (int) Math.round(Math
-                        .floor((iNodeY[i + 1][j] - aMinY) / cellSizeY));
+                        .floor((iNodeY[ll + 1] - aMinY) / cellSizeY));
 
                 int urx = (int) Math.round(Math
-                        .floor((iNodeX[i + 1][j + 1] - aMinX) / cellSizeX));
+                        .floor((iNodeX[ul + 1] - aMinX) / cellSizeX));
                 int ury = (int) Math.round(Math
-                        .floor((iNodeY[i + 1][j + 1] - aMinY) / cellSizeY));
+                        .floor((iNodeY[ul + 1] - aMinY) / cellSizeY));
 
                 int ulx = (int) Math.round(Math
-                        .floor((iNodeX[i][j + 1] - aMinX) / cellSizeX));
+                        .floor((iNodeX[ul] - aMinX) / cellSizeX));
                 int uly = (int) Math.round(Math
-                        .floor((iNodeY[i][j + 1] - aMinY) / cellSizeY));
+                        .floor((iNodeY[ul] - aMinY) / cellSizeY));
 
                 int x, y;
                 int minx = Math.max(Math.min(llx, ulx), 0);
@@ -846,7 +1461,7 @@ public class CartogramGrid {
                 int maxy = Math.min(Math.max(uly, ury), gridSizeY - 1);
                 for (x = minx; x <= maxx; x++) {
                     for (y = miny; y <= maxy; y++) {
-                        aDensityGrid[x][y] += iCellCurrentDensity[i][j];
+                        aDensityGrid[x][y] += iCellCurrentDensity[cell(i, j)];
                         cntgrid[x][y]++;
                     }
                 }
@@ -875,14 +1490,80 @@ public class CartogramGrid {
      * @return a double array with the coordinates of the projected point.
      */
     public double[] projectPoint(double aX, double aY) {
-        double p1x = (aX - iEnvelope.getMinX()) * iGridSize[0]
-                / iEnvelope.getWidth();
+        double[] coord = new double[2];
+        project(aX, aY, coord, 0, coord, 1);
+        return coord;
+    }
+
+    /**
+     * Projects one point using this grid, without allocating anything.
+     * 
+     * @param aX
+     *            the x coordinate of the point to project.
+     * @param aY
+     *            the y coordinate of the point to project.
+     * @param aResult
+     *            receives the x and y coordinates of the projected point.
+     */
+    public void projectPoint(double aX, double aY, double[] aResult) {
+        project(aX, aY, aResult, 0, aResult, 1);
+    }
+
+    /**
+     * Projects a batch of points using this grid, without allocating
+     * anything. The output arrays may be the input arrays.
+     * 
+     * @param aX
+     *            the x coordinates of the points to project.
+     * @param aY
+     *            the y coordinates of the points to project.
+     * @param aOutX
+     *            receives the x coordinates of the projected points.
+     * @param aOutY
+     *            receives the y coordinates of the projected points.
+     */
+    public void projectPoints(double[] aX, double[] aY, double[] aOutX,
+            double[] aOutY) {
+        for (int k = 0; k < aX.length; k++) {
+            project(aX[k], aY[k], aOutX, k, aOutY, k);
+        }
+    }
+
+    /**
+     * Projects one point using this grid. The point is located in the
+     * original (regular) cell containing it and takes the same relative
+     * position in the deformed cell, by bilinear interpolation of its four
+     * nodes. This is the intersection of the two lines joining the points at
+     * the same relative position on the opposite sides of the deformed cell.
+     * Points outside the grid are extrapolated from the nearest border cell.
+     * The points in the projection cache are not projected again.
+     * 
+     * @param aX
+     *            the x coordinate of the point to project.
+     * @param aY
+     *            the y coordinate of the point to project.
+     * @param aOutX
+     *            receives the x coordinate of the projected point.
+     * @param aIndexX
+     *            the index of the x coordinate in aOutX.
+     * @param aOutY
+     *            receives the y coordinate of the projected point.
+     * @param aIndexY
+     *            the index of the y coordinate in aOutY.
+     */
+    private void project(double aX, double aY, double[] aOutX, int aIndexX,
+            double[] aOutY, int aIndexY) {
+        if (iProjectionCache != null
+                && iProjectionCache.get(aX, aY, aOutX, aIndexX, aOutY,
+                        aIndexY)) {
+            return;
+        }
 
-        double p1y = (aY - iEnvelope.getMinY()) * iGridSize[1]
-                / iEnvelope.getHeight();
+        double p1x = (aX - iEnvelope.getMinX()) / iCellSize[0];
+        double p1y = (aY - iEnvelope.getMinY()) / iCellSize[1];
 
-        int i = (int) Math.round(Math.floor(p1x));
-        int j = (int) Math.round(Math.floor(p1y));
+        int i = (int) Math.floor(p1x);
+        int j = (int) Math.floor(p1y);
 
         if (i < 0) {
             i = 0;
@@ -900,19 +1581,27 @@ public class CartogramGrid {
         double ti = p1x - i;
         double tj = p1y - j;
 
-        double ax = iNodeX[i][j];
-        double ay = iNodeY[i][j];
-        double bx = iNodeX[i + 1][j];
-        double by = iNodeY[i + 1][j];
-        double cx = iNodeX[i + 1][j + 1];
-        double cy = iNodeY[i + 1][j + 1];
-        double dx = iNodeX[i][j + 1];
-        double dy = iNodeY[i][j + 1];
-
-        return ch.epfl.scapetoad.Geometry.intersectionOfSegments(ax
-                + ti * (bx - ax), ay + ti * (by - ay), dx + ti * (cx - dx), dy
-                + ti * (cy - dy), bx + tj * (cx - bx), by + tj * (cy - by), ax
-                + tj * (dx - ax), ay + tj * (dy - ay));
+        double ax = iNodeX[node(i, j)];
+        double ay = iNodeY[node(i, j)];
+        double bx = iNodeX[node(i + 1, j)];
+        double by = iNodeY[node(i + 1, j)];
+        double cx = iNodeX[node(i + 1, j + 1)];
+        double cy = iNodeY[node(i + 1, j + 1)];
+        double dx = iNodeX[node(i, j + 1)];
+        double dy = iNodeY[node(i, j + 1)];
+
+        // Interpolate along the lower (a-b) and upper (d-c) sides, then
+        // between them.
+        double lowerX = ax + ti * (bx - ax);
+        double lowerY = ay + ti * (by - ay);
+        double projectedX = lowerX + tj * (dx + ti * (cx - dx) - lowerX);
+        double projectedY = lowerY + tj * (dy + ti * (cy - dy) - lowerY);
+        aOutX[aIndexX] = projectedX;
+        aOutY[aIndexY] = projectedY;
+
+        if (iProjectionCache != null) {
+            iProjectionCache.put(aX, aY, projectedX, projectedY);
+        }
     }
 
     /**
@@ -930,129 +1619,65 @@ public class CartogramGrid {
     }
 
     /**
-     * Projects a line segment. Returns two or more coordinates.
+     * Adds the intersections of a line segment with the grid lines to a
+     * buffer, in their order along the segment. The grid lines are visited
+     * incrementally (Amanatides-Woo traversal): the parameter of the next
+     * vertical and of the next horizontal line are kept, and the nearest one
+     * is taken at each step. The end points are not added.
      * 
      * @param aCoordinate1
      *            the first coordinate
      * @param aCoordinate2
      *            the second coordinate
-     * @return the result coordinates
+     * @param aBuffer
+     *            the buffer receiving the intersections
      */
-    private Coordinate[] projectLineSegment(Coordinate aCoordinate1,
-            Coordinate aCoordinate2) {
-        // Compute the index of the grid cells for each coordinate.
+    private void addGridIntersections(Coordinate aCoordinate1,
+            Coordinate aCoordinate2, PointBuffer aBuffer) {
+        double deltaX = aCoordinate2.x - aCoordinate1.x;
+        double deltaY = aCoordinate2.y - aCoordinate1.y;
+
+        // The segment in cell units.
         double d1x = (aCoordinate1.x - iEnvelope.getMinX()) / iCellSize[0];
         double d1y = (aCoordinate1.y - iEnvelope.getMinY()) / iCellSize[1];
-        double d2x = (aCoordinate2.x - iEnvelope.getMinX()) / iCellSize[0];
-        double d2y = (aCoordinate2.y - iEnvelope.getMinY()) / iCellSize[1];
-
-        int i1x = (int) Math.round(Math.floor(d1x));
-        int i1y = (int) Math.round(Math.floor(d1y));
-        int i2x = (int) Math.round(Math.floor(d2x));
-        int i2y = (int) Math.round(Math.floor(d2y));
-        if (d1x - i1x > 0.99) {
-            i1x++;
-        }
-        if (d1y - i1y > 0.99) {
-            i2y++;
-        }
-        if (d2x - i2x > 0.99) {
-            i2x++;
-        }
-        if (d2y - i2y > 0.99) {
-            i2y++;
-        }
-
-        // Get the minimum and maximum index for x and y.
-        int iminx = Math.min(i1x, i2x);
-        int imaxx = Math.max(i1x, i2x);
-        int iminy = Math.min(i1y, i2y);
-        int imaxy = Math.max(i1y, i2y);
-
-        // Compute the parameters a and b of the equation :
-        // y = a*x + b
-        double d = d2x - d1x;
-        double a = 0, b = 0;
-        boolean aIsInfinite = false;
-        if (d > 0.0001 || d < -0.0001) {
-            a = (d2y - d1y) / (d2x - d1x);
-            b = d2y - d2x * (d2y - d1y) / (d2x - d1x);
-        } else {
-            aIsInfinite = true;
-        }
-
-        // Compute the number of intersections and allocate the t value array.
-        int nIntersections = imaxx - iminx + imaxy - iminy;
-        double[] tValues = new double[nIntersections];
-
-        // For each intersection, compute the t value (between 0 and 1).
-        int tcnt = 0;
-        int i;
-        for (i = iminx + 1; i <= imaxx; i++) {
-            if (!aIsInfinite) {
-                // Compute the y coordinate for each intersection with
-                // a vertical grid line.
-                double sy = a * i + b;
-
-                // Compute the t value for the intersection point S(i,sy).
-                tValues[tcnt] = Math.sqrt((i - d1x) * (i - d1x) + (sy - d1y)
-                        * (sy - d1y))
-                        / Math.sqrt((d2x - d1x) * (d2x - d1x) + (d2y - d1y)
-                                * (d2y - d1y));
-                tcnt++;
-            } else {
-                logger.warn("a is infinite");
+        double ddx = deltaX / iCellSize[0];
+        double ddy = deltaY / iCellSize[1];
+
+        // The next grid line in each direction and its parameter t along the
+        // segment.
+        int stepX = ddx > 0 ? 1 : -1;
+        int stepY = ddy > 0 ? 1 : -1;
+        double lineX = ddx > 0 ? Math.floor(d1x) + 1 : Math.ceil(d1x) - 1;
+        double lineY = ddy > 0 ? Math.floor(d1y) + 1 : Math.ceil(d1y) - 1;
+        double inverseX = ddx != 0 ? 1 / ddx : 0;
+        double inverseY = ddy != 0 ? 1 / ddy : 0;
+        double tx = ddx != 0 ? (lineX - d1x) * inverseX
+                : Double.POSITIVE_INFINITY;
+        double ty = ddy != 0 ? (lineY - d1y) * inverseY
+                : Double.POSITIVE_INFINITY;
+
+        while (tx < 1 || ty < 1) {
+            double t = Math.min(tx, ty);
+            aBuffer.add(aCoordinate1.x + t * deltaX, aCoordinate1.y + t
+                    * deltaY);
+
+            // Step over the line(s) just crossed, both at a grid node (up to
+            // the rounding of t).
+            if (tx - t < 1e-9) {
+                lineX += stepX;
+                tx = (lineX - d1x) * inverseX;
             }
-        }
-
-        for (i = iminy + 1; i <= imaxy; i++) {
-            // Compute the x coordinate for each intersection with
-            // a horizontal grid line.
-            double sx;
-            if (!aIsInfinite) {
-                sx = (i - b) / a;
-            } else {
-                sx = (d1x + d2x) / 2;
-            }
-
-            // Compute the t value for the intersection point S(i,sy).
-            tValues[tcnt] = Math.sqrt((sx - d1x) * (sx - d1x) + (i - d1y)
-                    * (i - d1y))
-                    / Math.sqrt((d2x - d1x) * (d2x - d1x) + (d2y - d1y)
-                            * (d2y - d1y));
-            tcnt++;
-        }
-
-        // Sort the array of t values.
-        Arrays.sort(tValues);
-
-        // Project all coordinate points.
-
-        Coordinate[] coords = new Coordinate[2 + nIntersections];
-        coords[0] = projectPointAsCoordinate(aCoordinate1.x, aCoordinate1.y);
-
-        tcnt = 1;
-        for (i = 0; i < nIntersections; i++) {
-            // Compute the coordinates of the given intersection using
-            // the associated t value.
-            // Compute only if the t value is between 0 and 1.
-            if (tValues[i] > 0 && tValues[i] < 1) {
-                double sx = aCoordinate1.x + tValues[i]
-                        * (aCoordinate2.x - aCoordinate1.x);
-                double sy = aCoordinate1.y + tValues[i]
-                        * (aCoordinate2.y - aCoordinate1.y);
-                coords[tcnt] = projectPointAsCoordinate(sx, sy);
-                tcnt++;
+            if (ty - t < 1e-9) {
+                lineY += stepY;
+                ty = (lineY - d1y) * inverseY;
             }
         }
-
-        coords[tcnt] = projectPointAsCoordinate(aCoordinate2.x, aCoordinate2.y);
-
-        return coords;
     }
 
     /**
-     * Projects a coordinate sequence using this grid.
+     * Projects a coordinate sequence using this grid. A point is added at
+     * each intersection of the segments with the grid lines, so that the
+     * projected lines follow the deformation of the cells they cross.
      * 
      * @param aCoordinates
      *            the coordinates
@@ -1060,39 +1685,77 @@ public class CartogramGrid {
      */
     public Coordinate[] projectCoordinates(Coordinate[] aCoordinates) {
         int ncoords = aCoordinates.length;
-        List<Coordinate> projCoords = new ArrayList<Coordinate>();
-
-        // Project each line segment in the coordinate sequence.
-        int i, j, nProjCoords = 0;
-        Coordinate[] cs = null;
-        for (i = 0; i < ncoords - 1; i++) {
-            cs = projectLineSegment(aCoordinates[i], aCoordinates[i + 1]);
-
-            // Copy the coordinates into a Vector.
-            // Don't copy the last coordinate, otherwise it will be twice
-            // in the vector. Instead, we add the last coordinate at the end
-            // of the process.
-            nProjCoords = cs.length;
-            for (j = 0; j < nProjCoords; j++) {
-                if (cs[j] != null) {
-                    projCoords.add(cs[j]);
-                }
-            }
-            if (i < ncoords - 2) {
-                projCoords.remove(projCoords.size() - 1);
-            }
+        if (ncoords == 0) {
+            return new Coordinate[0];
         }
 
-        // Add the last coordinate.
-        // projCoords.add(cs[(nProjCoords - 1)]);
-
-        // Transform the Vector into an array.
-        nProjCoords = projCoords.size();
-        cs = new Coordinate[nProjCoords];
-        for (i = 0; i < nProjCoords; i++) {
-            cs[i] = projCoords.get(i);
+        // Collect the points of the whole sequence.
+        PointBuffer buffer = new PointBuffer(2 * ncoords);
+        buffer.add(aCoordinates[0].x, aCoordinates[0].y);
+        for (int i = 0; i < ncoords - 1; i++) {
+            addGridIntersections(aCoordinates[i], aCoordinates[i + 1], buffer);
+            buffer.add(aCoordinates[i + 1].x, aCoordinates[i + 1].y);
         }
 
+        // Project them in place.
+        int count = buffer.iSize;
+        double[] x = buffer.iX;
+        double[] y = buffer.iY;
+        Coordinate[] cs = new Coordinate[count];
+        for (int i = 0; i < count; i++) {
+            project(x[i], y[i], x, i, y, i);
+            cs[i] = new Coordinate(x[i], y[i]);
+        }
         return cs;
     }
+
+    /**
+     * A growable buffer of points, stored as two arrays of coordinates.
+     */
+    private static class PointBuffer {
+
+        /**
+         * The x coordinates.
+         */
+        double[] iX;
+
+        /**
+         * The y coordinates.
+         */
+        double[] iY;
+
+        /**
+         * The number of points.
+         */
+        int iSize = 0;
+
+        /**
+         * Constructor.
+         * 
+         * @param aCapacity
+         *            the initial capacity
+         */
+        PointBuffer(int aCapacity) {
+            iX = new double[aCapacity];
+            iY = new double[aCapacity];
+        }
+
+        /**
+         * Adds a point.
+         * 
+         * @param aX
+         *            the x coordinate
+         * @param aY
+         *            the y coordinate
+         */
+        void add(double aX, double aY) {
+            if (iSize == iX.length) {
+                iX = Arrays.copyOf(iX, 2 * iSize);
+                iY = Arrays.copyOf(iY, 2 * iSize);
+            }
+            iX[iSize] = aX;
+            iY[iSize] = aY;
+            iSize++;
+        }
+    }
 }
\ No newline at end of file
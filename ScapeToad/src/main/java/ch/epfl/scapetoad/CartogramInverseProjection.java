@@ -0,0 +1,475 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The inverse projection of a deformed cartogram grid: it maps the points of
+ * the cartogram back to their original position. The deformed cells are
+ * indexed by a uniform grid of buckets over their bounding box, each bucket
+ * listing the cells whose bounding box overlaps it, so that a point is only
+ * tested against a few cells. In a candidate cell, the inverse of the
+ * bilinear interpolation of the forward projection is found by Newton
+ * iterations.
+ * 
+ * The index reads the node arrays of the grid, which must not be deformed
+ * anymore.
+ */
+public class CartogramInverseProjection {
+
+    /**
+     * The maximum number of Newton iterations in a cell.
+     */
+    private static final int MAX_ITERATIONS = 16;
+
+    /**
+     * The Newton iterations stop when the parameters move less than this.
+     */
+    private static final double CONVERGENCE = 1e-13;
+
+    /**
+     * The margin of the cell parameters, for the points on a cell side.
+     */
+    private static final double MARGIN = 1e-9;
+
+    /**
+     * The x coordinates of the deformed nodes, row by row.
+     */
+    private double[] iNodeX;
+
+    /**
+     * The y coordinates of the deformed nodes, row by row.
+     */
+    private double[] iNodeY;
+
+    /**
+     * The number of nodes in x direction.
+     */
+    private int iNodesX;
+
+    /**
+     * The original envelope of the grid.
+     */
+    private Envelope iEnvelope;
+
+    /**
+     * The original size of a cell in x and y direction.
+     */
+    private double[] iCellSize = new double[2];
+
+    /**
+     * The bounding box of the deformed grid: min x, min y, max x, max y.
+     */
+    private double[] iBounds = new double[4];
+
+    /**
+     * The number of buckets in x and y direction.
+     */
+    private int[] iBuckets = new int[2];
+
+    /**
+     * The number of buckets per unit of length in x and y direction.
+     */
+    private double[] iBucketScale = new double[2];
+
+    /**
+     * The start of the cell list of each bucket in iBucketCells, row by row,
+     * and the end of the last list.
+     */
+    private int[] iBucketStart;
+
+    /**
+     * The cells of all the buckets, as j * cellsX + i.
+     */
+    private int[] iBucketCells;
+
+    /**
+     * Constructor. Indexes the deformed cells of the grid.
+     * 
+     * @param aGrid
+     *            the deformed grid
+     */
+    public CartogramInverseProjection(CartogramGrid aGrid) {
+        iNodeX = aGrid.getNodeX();
+        iNodeY = aGrid.getNodeY();
+        iNodesX = aGrid.getGridSize()[0];
+        iEnvelope = aGrid.getEnvelope();
+        int cellsX = iNodesX - 1;
+        int cellsY = aGrid.getGridSize()[1] - 1;
+        iCellSize[0] = iEnvelope.getWidth() / cellsX;
+        iCellSize[1] = iEnvelope.getHeight() / cellsY;
+
+        iBounds[0] = Double.MAX_VALUE;
+        iBounds[1] = Double.MAX_VALUE;
+        iBounds[2] = -Double.MAX_VALUE;
+        iBounds[3] = -Double.MAX_VALUE;
+        for (int k = 0; k < iNodeX.length; k++) {
+            iBounds[0] = Math.min(iBounds[0], iNodeX[k]);
+            iBounds[1] = Math.min(iBounds[1], iNodeY[k]);
+            iBounds[2] = Math.max(iBounds[2], iNodeX[k]);
+            iBounds[3] = Math.max(iBounds[3], iNodeY[k]);
+        }
+
+        // About one bucket per cell, with the shape of the deformed grid.
+        double width = Math.max(iBounds[2] - iBounds[0], Double.MIN_VALUE);
+        double height = Math.max(iBounds[3] - iBounds[1], Double.MIN_VALUE);
+        int cells = cellsX * cellsY;
+        iBuckets[0] = (int) Math.max(1,
+                Math.min(cells, Math.round(Math.sqrt(cells * width / height))));
+        iBuckets[1] = Math.max(1, cells / iBuckets[0]);
+        iBucketScale[0] = iBuckets[0] / width;
+        iBucketScale[1] = iBuckets[1] / height;
+
+        // Count the cells of each bucket, then fill the lists.
+        int[] range = new int[4];
+        iBucketStart = new int[iBuckets[0] * iBuckets[1] + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < cellsY; j++) {
+                for (int i = 0; i < cellsX; i++) {
+                    bucketRange(i, j, range);
+                    for (int by = range[2]; by <= range[3]; by++) {
+                        for (int bx = range[0]; bx <= range[1]; bx++) {
+                            int bucket = by * iBuckets[0] + bx;
+                            if (pass == 1) {
+                                iBucketCells[iBucketStart[bucket]] = j
+                                        * cellsX + i;
+                            }
+                            iBucketStart[bucket]++;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                // Turn the counts into the starts of the lists.
+                int total = 0;
+                for (int b = 0; b < iBucketStart.length - 1; b++) {
+                    int count = iBucketStart[b];
+                    iBucketStart[b] = total;
+                    total += count;
+                }
+                iBucketStart[iBucketStart.length - 1] = total;
+                iBucketCells = new int[total];
+            }
+        }
+
+        // Filling the lists moved each start to the next one.
+        for (int b = iBucketStart.length - 1; b > 0; b--) {
+            iBucketStart[b] = iBucketStart[b - 1];
+        }
+        iBucketStart[0] = 0;
+    }
+
+    /**
+     * Computes the range of the buckets overlapped by the bounding box of a
+     * deformed cell.
+     * 
+     * @param aI
+     *            the cell index in x
+     * @param aJ
+     *            the cell index in y
+     * @param aRange
+     *            receives the first and last bucket in x, then in y
+     */
+    private void bucketRange(int aI, int aJ, int[] aRange) {
+        int a = aJ * iNodesX + aI;
+        int d = a + iNodesX;
+        double minX = Math.min(Math.min(iNodeX[a], iNodeX[a + 1]),
+                Math.min(iNodeX[d], iNodeX[d + 1]));
+        double maxX = Math.max(Math.max(iNodeX[a], iNodeX[a + 1]),
+                Math.max(iNodeX[d], iNodeX[d + 1]));
+        double minY = Math.min(Math.min(iNodeY[a], iNodeY[a + 1]),
+                Math.min(iNodeY[d], iNodeY[d + 1]));
+        double maxY = Math.max(Math.max(iNodeY[a], iNodeY[a + 1]),
+                Math.max(iNodeY[d], iNodeY[d + 1]));
+        aRange[0] = bucketX(minX);
+        aRange[1] = bucketX(maxX);
+        aRange[2] = bucketY(minY);
+        aRange[3] = bucketY(maxY);
+    }
+
+    /**
+     * Returns the bucket column of an x coordinate, clamped to the buckets.
+     * 
+     * @param aX
+     *            the x coordinate
+     * @return the bucket column
+     */
+    private int bucketX(double aX) {
+        int bucket = (int) ((aX - iBounds[0]) * iBucketScale[0]);
+        return Math.max(0, Math.min(iBuckets[0] - 1, bucket));
+    }
+
+    /**
+     * Returns the bucket row of a y coordinate, clamped to the buckets.
+     * 
+     * @param aY
+     *            the y coordinate
+     * @return the bucket row
+     */
+    private int bucketY(double aY) {
+        int bucket = (int) ((aY - iBounds[1]) * iBucketScale[1]);
+        return Math.max(0, Math.min(iBuckets[1] - 1, bucket));
+    }
+
+    /**
+     * Maps a point of the cartogram back to its original position.
+     * 
+     * @param aX
+     *            the x coordinate in the cartogram
+     * @param aY
+     *            the y coordinate in the cartogram
+     * @param aResult
+     *            receives the original x and y coordinates, or NaN if the
+     *            point is outside the deformed grid
+     * @return <code>true</code> if the point is inside the deformed grid
+     */
+    public boolean inverseProjectPoint(double aX, double aY, double[] aResult) {
+        return locate(aX, aY, -1, aResult, 0, aResult, 1) >= 0;
+    }
+
+    /**
+     * Maps points of the cartogram back to their original position. The
+     * output arrays can be the input arrays. The cell of the previous point
+     * is tested first, which avoids the index for the points following a
+     * line.
+     * 
+     * @param aX
+     *            the x coordinates in the cartogram
+     * @param aY
+     *            the y coordinates in the cartogram
+     * @param aOutX
+     *            receives the original x coordinates, or NaN for the points
+     *            outside the deformed grid
+     * @param aOutY
+     *            receives the original y coordinates, or NaN for the points
+     *            outside the deformed grid
+     * @return the number of points inside the deformed grid
+     */
+    public int inverseProjectPoints(double[] aX, double[] aY, double[] aOutX,
+            double[] aOutY) {
+        return inverseProjectPoints(aX, aY, aOutX, aOutY, 0, aX.length);
+    }
+
+    /**
+     * Maps points of the cartogram back to their original position like
+     * inverseProjectPoints(), by ranges of points processed concurrently.
+     * 
+     * @param aX
+     *            the x coordinates in the cartogram
+     * @param aY
+     *            the y coordinates in the cartogram
+     * @param aOutX
+     *            receives the original x coordinates, or NaN for the points
+     *            outside the deformed grid
+     * @param aOutY
+     *            receives the original y coordinates, or NaN for the points
+     *            outside the deformed grid
+     * @param aExecutor
+     *            the executor processing the ranges
+     * @return the number of points inside the deformed grid
+     * @throws InterruptedException
+     *             when the projection was interrupted
+     */
+    public int inverseProjectPoints(final double[] aX, final double[] aY,
+            final double[] aOutX, final double[] aOutY,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        int[] bounds = aExecutor.splitRange(aX.length);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(
+                bounds.length - 1);
+        for (int k = 0; k < bounds.length - 1; k++) {
+            final int from = bounds[k];
+            final int to = bounds[k + 1];
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return Integer.valueOf(inverseProjectPoints(aX, aY, aOutX,
+                            aOutY, from, to));
+                }
+            });
+        }
+
+        int found = 0;
+        for (Integer count : aExecutor.invokeAll(tasks)) {
+            found += count.intValue();
+        }
+        return found;
+    }
+
+    /**
+     * Maps a range of points of the cartogram back to their original
+     * position.
+     * 
+     * @param aX
+     *            the x coordinates in the cartogram
+     * @param aY
+     *            the y coordinates in the cartogram
+     * @param aOutX
+     *            receives the original x coordinates
+     * @param aOutY
+     *            receives the original y coordinates
+     * @param aFrom
+     *            the first point
+     * @param aTo
+     *            the end of the range, excluded
+     * @return the number of points inside the deformed grid
+     */
+    private int inverseProjectPoints(double[] aX, double[] aY, double[] aOutX,
+            double[] aOutY, int aFrom, int aTo) {
+        int found = 0;
+        int cell = -1;
+        for (int k = aFrom; k < aTo; k++) {
+            int located = locate(aX[k], aY[k], cell, aOutX, k, aOutY, k);
+            if (located >= 0) {
+                cell = located;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the deformed cell containing a point and its original position.
+     * 
+     * @param aX
+     *            the x coordinate in the cartogram
+     * @param aY
+     *            the y coordinate in the cartogram
+     * @param aHint
+     *            the cell to test first, or -1
+     * @param aOutX
+     *            receives the original x coordinate, or NaN
+     * @param aIndexX
+     *            the index of the x coordinate in aOutX
+     * @param aOutY
+     *            receives the original y coordinate, or NaN
+     * @param aIndexY
+     *            the index of the y coordinate in aOutY
+     * @return the cell containing the point, or -1
+     */
+    private int locate(double aX, double aY, int aHint, double[] aOutX,
+            int aIndexX, double[] aOutY, int aIndexY) {
+        if (aHint >= 0
+                && invertCell(aHint, aX, aY, aOutX, aIndexX, aOutY, aIndexY)) {
+            return aHint;
+        }
+
+        if (aX >= iBounds[0] && aX <= iBounds[2] && aY >= iBounds[1]
+                && aY <= iBounds[3]) {
+            int bucket = bucketY(aY) * iBuckets[0] + bucketX(aX);
+            int end = iBucketStart[bucket + 1];
+            for (int k = iBucketStart[bucket]; k < end; k++) {
+                int cell = iBucketCells[k];
+                if (cell != aHint
+                        && invertCell(cell, aX, aY, aOutX, aIndexX, aOutY,
+                                aIndexY)) {
+                    return cell;
+                }
+            }
+        }
+
+        aOutX[aIndexX] = Double.NaN;
+        aOutY[aIndexY] = Double.NaN;
+        return -1;
+    }
+
+    /**
+     * Inverts the bilinear interpolation of a deformed cell by Newton
+     * iterations, starting from the cell centre.
+     * 
+     * @param aCell
+     *            the cell, as j * cellsX + i
+     * @param aX
+     *            the x coordinate in the cartogram
+     * @param aY
+     *            the y coordinate in the cartogram
+     * @param aOutX
+     *            receives the original x coordinate if the point is inside
+     * @param aIndexX
+     *            the index of the x coordinate in aOutX
+     * @param aOutY
+     *            receives the original y coordinate if the point is inside
+     * @param aIndexY
+     *            the index of the y coordinate in aOutY
+     * @return <code>true</code> if the point is inside the cell
+     */
+    private boolean invertCell(int aCell, double aX, double aY,
+            double[] aOutX, int aIndexX, double[] aOutY, int aIndexY) {
+        int i = aCell % (iNodesX - 1);
+        int j = aCell / (iNodesX - 1);
+        int a = j * iNodesX + i;
+        int d = a + iNodesX;
+        double ax = iNodeX[a];
+        double ay = iNodeY[a];
+        double bx = iNodeX[a + 1];
+        double by = iNodeY[a + 1];
+        double cx = iNodeX[d + 1];
+        double cy = iNodeY[d + 1];
+        double dx = iNodeX[d];
+        double dy = iNodeY[d];
+
+        // Reject the points outside the bounding box of the cell.
+        if (aX < Math.min(Math.min(ax, bx), Math.min(cx, dx))
+                || aX > Math.max(Math.max(ax, bx), Math.max(cx, dx))
+                || aY < Math.min(Math.min(ay, by), Math.min(cy, dy))
+                || aY > Math.max(Math.max(ay, by), Math.max(cy, dy))) {
+            return false;
+        }
+
+        // P(u, v) = a + u (b - a) + v (d - a) + u v (a - b + c - d)
+        double ex = ax - bx + cx - dx;
+        double ey = ay - by + cy - dy;
+        double u = 0.5;
+        double v = 0.5;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            double pux = bx - ax + v * ex;
+            double puy = by - ay + v * ey;
+            double pvx = dx - ax + u * ex;
+            double pvy = dy - ay + u * ey;
+            double fx = ax + u * (bx - ax) + v * pvx - aX;
+            double fy = ay + u * (by - ay) + v * pvy - aY;
+            double det = pux * pvy - pvx * puy;
+            if (det == 0) {
+                return false;
+            }
+            double du = (fx * pvy - fy * pvx) / det;
+            double dv = (pux * fy - puy * fx) / det;
+            u -= du;
+            v -= dv;
+            if (Math.abs(du) + Math.abs(dv) < CONVERGENCE) {
+                break;
+            }
+        }
+
+        if (!(u >= -MARGIN && u <= 1 + MARGIN && v >= -MARGIN
+                && v <= 1 + MARGIN)) {
+            return false;
+        }
+        aOutX[aIndexX] = iEnvelope.getMinX() + (i + u) * iCellSize[0];
+        aOutY[aIndexY] = iEnvelope.getMinY() + (j + v) * iCellSize[1];
+        return true;
+    }
+}
\ No newline at end of file
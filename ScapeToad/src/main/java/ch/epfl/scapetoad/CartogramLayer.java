@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.zip.DataFormatException;
 
 import com.vividsolutions.jts.geom.Envelope;
@@ -437,6 +438,37 @@ public class CartogramLayer {
         }
     }
 
+    /**
+     * Regularizes a layer, the features being regularized concurrently.
+     * 
+     * @param aMaxlen
+     *            the maximum length of the line segments
+     * @param aExecutor
+     *            the executor regularizing ranges of features
+     * @throws InterruptedException
+     *             when the regularization was interrupted
+     */
+    public void regularizeLayer(final double aMaxlen,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        int[] bounds = aExecutor.splitRange(iFeatures.size());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                bounds.length - 1);
+        for (int k = 0; k < bounds.length - 1; k++) {
+            final List<CartogramFeature> features = iFeatures.subList(
+                    bounds[k], bounds[k + 1]);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (CartogramFeature feature : features) {
+                        feature.regularizeGeometry(aMaxlen);
+                    }
+                    return null;
+                }
+            });
+        }
+        aExecutor.invokeAll(tasks);
+    }
+
     /**
      * Projects a layer using a cartogram grid. Returns the projected layer.
      * 
@@ -460,6 +492,48 @@ public class CartogramLayer {
         return new CartogramLayer(this, featires);
     }
 
+    /**
+     * Projects a layer using a cartogram grid, the lines and rings of the
+     * features being projected concurrently. The projected features are the
+     * ones of {@link #projectLayerWithGrid(CartogramGrid)}, in the same order.
+     * 
+     * @param aGrid
+     *            the grid, which must not change during the projection
+     * @param aExecutor
+     *            the executor projecting the lines and rings
+     * @return the projected layer
+     * @throws InterruptedException
+     *             when the projection was interrupted
+     */
+    public CartogramLayer projectLayerWithGrid(CartogramGrid aGrid,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        return new CartogramLayer(this, new CartogramTopology(iFeatures,
+                false).project(aGrid, 0, aExecutor));
+    }
+
+    /**
+     * Projects the layer using the provided grid, through the arc topology of
+     * its features. The borders shared by several features are densified and
+     * projected once, so the projected features fit exactly along them.
+     * 
+     * @param aGrid
+     *            the grid
+     * @param aMaxLength
+     *            the maximum segment length of the densified borders, 0 to
+     *            keep the segments
+     * @param aExecutor
+     *            the executor projecting the borders
+     * @return the projected layer
+     * @throws InterruptedException
+     *             when the projection was interrupted
+     */
+    public CartogramLayer projectLayerWithTopology(CartogramGrid aGrid,
+            double aMaxLength, CartogramExecutor aExecutor)
+            throws InterruptedException {
+        return new CartogramLayer(this, new CartogramTopology(iFeatures)
+                .project(aGrid, aMaxLength, aExecutor));
+    }
+
     /**
      * Computes the cartogram size error and stores it in the layer's attribute
      * with the provided name. The size error is computed as follows: err = 100
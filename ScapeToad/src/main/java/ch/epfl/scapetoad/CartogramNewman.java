@@ -8,10 +8,13 @@
 
 package ch.epfl.scapetoad;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 
 import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
@@ -22,6 +25,89 @@ import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
  */
 public class CartogramNewman {
 
+    /**
+     * The criteria which can end the diffusion process.
+     */
+    public enum StopReason {
+        /**
+         * No grid point moved during the last step.
+         */
+        CONVERGED("converged"),
+
+        /**
+         * No grid point moved more than the maximum displacement.
+         */
+        DISPLACEMENT("maximum displacement reached"),
+
+        /**
+         * The maximum number of steps was done.
+         */
+        STEPS("maximum number of steps reached"),
+
+        /**
+         * The time limit was exceeded.
+         */
+        TIME_LIMIT("time limit exceeded");
+
+        /**
+         * The description of the reason for the report.
+         */
+        private String iDescription;
+
+        /**
+         * Constructor.
+         * 
+         * @param aDescription
+         *            the description
+         */
+        private StopReason(String aDescription) {
+            iDescription = aDescription;
+        }
+
+        @Override
+        public String toString() {
+            return iDescription;
+        }
+    }
+
+    /**
+     * The controllers of the integration time step.
+     */
+    public enum StepController {
+        /**
+         * The original controller: every step is accepted and the next step
+         * is scaled by the fifth root of the error ratio.
+         */
+        RATIO("ratio"),
+
+        /**
+         * Proportional-integral controller: the steps whose error exceeds the
+         * target are rejected and retried with a shorter step, the next step
+         * also depends on the error of the previous accepted step.
+         */
+        PI("pi");
+
+        /**
+         * The description of the controller for the report.
+         */
+        private String iDescription;
+
+        /**
+         * Constructor.
+         * 
+         * @param aDescription
+         *            the description
+         */
+        private StepController(String aDescription) {
+            iDescription = aDescription;
+        }
+
+        @Override
+        public String toString() {
+            return iDescription;
+        }
+    }
+
     /**
      * The logger.
      */
@@ -35,7 +121,7 @@ public class CartogramNewman {
     /**
      * The size of the diffusion grid.
      */
-    private int[] iGridSize = new int[2];
+    protected int[] iGridSize = new int[2];
 
     /**
      * The cartogram bounding box. It is slightly larger than the grid bounding
@@ -44,24 +130,34 @@ public class CartogramNewman {
     private Envelope iExtent;
 
     /**
-     * Pop density at time t (five snaps needed).
+     * Pop density at time t (five snaps needed). Each snapshot is stored in a
+     * single array, the density of the cell (x, y) is at the index x *
+     * gridSizeY + y.
      */
-    private double[][][] iRhot;
+    private double[][] iRhot;
 
     /**
-     * FT of initial density.
+     * FT of initial density, stored like the snapshots.
      */
-    private double[][] iFftrho;
+    private double[] iFftrho;
 
     /**
-     * FT of density at time t.
+     * The number of density snapshots computed together by a two-step
+     * integration.
      */
-    private double[][] iFftexpt;
+    protected static final int BATCH_SIZE = 4;
 
     /**
-     * Array needed for the Gaussian convolution.
+     * Arrays needed for the Gaussian convolution, one for each snapshot of a
+     * batch.
      */
-    private double[] iExpky;
+    protected double[][] iExpky;
+
+    /**
+     * The DCT plans, one for each snapshot of a batch, so that the snapshots
+     * can be back-transformed concurrently. A plan is not thread-safe.
+     */
+    private DoubleDCT_2D[] iDct;
 
     /**
      * Array for storing the X grid points.
@@ -73,6 +169,17 @@ public class CartogramNewman {
      */
     private double[] iGridPointsY;
 
+    /**
+     * The X grid points after the current step, swapped with the grid points
+     * when the step is accepted.
+     */
+    private double[] iNextPointsX;
+
+    /**
+     * The Y grid points after the current step.
+     */
+    private double[] iNextPointsY;
+
     /**
      * Initial size of a time step.
      */
@@ -88,6 +195,33 @@ public class CartogramNewman {
      */
     private static double MAXRATIO = 4.0;
 
+    /**
+     * Min ratio to decrease step size by (PI controller).
+     */
+    private static double MINRATIO = 0.2;
+
+    /**
+     * Safety factor applied to the step size ratio (PI controller).
+     */
+    private static double SAFETY = 0.9;
+
+    /**
+     * Exponent of the current error (PI controller), 0.2 - 0.75 * beta for the
+     * fourth order Runge-Kutta step with a fifth order error estimate.
+     */
+    private static double PI_ALPHA = 0.17;
+
+    /**
+     * Exponent of the previous error (PI controller).
+     */
+    private static double PI_BETA = 0.04;
+
+    /**
+     * Smallest relative error remembered by the PI controller, which avoids
+     * a zero factor after an exact step.
+     */
+    private static double PI_MIN_ERROR = 1e-4;
+
     /**
      * Guess of the time it will take. Only used for the completion estimation.
      */
@@ -127,6 +261,89 @@ public class CartogramNewman {
      */
     private String iStatusMessage;
 
+    /**
+     * The executor running the Runge-Kutta integration of the grid points.
+     */
+    private CartogramExecutor iExecutor;
+
+    /**
+     * <code>true</code> if the velocity field is computed once for each
+     * density snapshot instead of for each call to the velocity method.
+     */
+    protected boolean iPrecomputeVelocity = false;
+
+    /**
+     * The x velocities at the cell corners for each snapshot, or
+     * <code>null</code> if they are not precomputed. The velocity of the
+     * corner (x, y) is at the index y * (gridSizeX + 1) + x.
+     */
+    private double[][] iVelocityX;
+
+    /**
+     * The y velocities at the cell corners for each snapshot, or
+     * <code>null</code> if they are not precomputed.
+     */
+    private double[][] iVelocityY;
+
+    /**
+     * The diffusion stops when no grid point moves more than this distance
+     * during a step, in cell units.
+     */
+    private double iMaxDisplacement = 0;
+
+    /**
+     * The maximum number of integration steps, 0 for no limit.
+     */
+    private int iMaxSteps = 0;
+
+    /**
+     * The time limit of the diffusion process in milliseconds, 0 for no limit.
+     */
+    private long iTimeLimit = 0;
+
+    /**
+     * The controller of the integration time step.
+     */
+    private StepController iStepController = StepController.RATIO;
+
+    /**
+     * The smallest time step of the PI controller. A step this short is
+     * accepted whatever its error.
+     */
+    private double iMinStep = 1e-6;
+
+    /**
+     * The largest time step of the PI controller.
+     */
+    private double iMaxStep = Double.POSITIVE_INFINITY;
+
+    /**
+     * The number of integration steps done by the last computation.
+     */
+    private int iStepCount;
+
+    /**
+     * The number of rejected integration steps of the last computation.
+     */
+    private int iRejectedStepCount;
+
+    /**
+     * The number of density snapshots (DCT back-transforms) of the last
+     * computation.
+     */
+    private int iSnapshotCount;
+
+    /**
+     * The duration of the diffusion process of the last computation, in
+     * milliseconds.
+     */
+    private long iDiffusionTime;
+
+    /**
+     * The criterion which ended the last computation.
+     */
+    private StopReason iStopReason;
+
     /**
      * Constructor for the CartogramNewman class.
      * 
@@ -160,6 +377,136 @@ public class CartogramNewman {
         iStatusMessage = aStatusMessage;
     }
 
+    /**
+     * Sets the executor used for integrating the grid points. The points are
+     * split into disjoint ranges which are integrated concurrently; the result
+     * is identical to the one computed by a single thread. If no executor is
+     * set, the points are integrated by the calling thread.
+     * 
+     * @param aExecutor
+     *            the executor
+     */
+    public void setExecutor(CartogramExecutor aExecutor) {
+        iExecutor = aExecutor;
+    }
+
+    /**
+     * Defines whether the velocity field is computed once for each density
+     * snapshot. The integration then only interpolates between the cell
+     * corners, at the cost of two more grid-sized arrays for each snapshot.
+     * The result is the same.
+     * 
+     * @param aPrecomputeVelocity
+     *            <code>true</code> to precompute the velocity field
+     */
+    public void setPrecomputeVelocity(boolean aPrecomputeVelocity) {
+        iPrecomputeVelocity = aPrecomputeVelocity;
+    }
+
+    /**
+     * Sets the maximum displacement of a converged grid. The diffusion stops
+     * when no grid point moved more than this distance during the last step,
+     * once the displacements are decreasing. The default value of 0 waits
+     * until no point moves at all.
+     * 
+     * @param aMaxDisplacement
+     *            the maximum displacement in cell units
+     */
+    public void setMaxDisplacement(double aMaxDisplacement) {
+        iMaxDisplacement = aMaxDisplacement;
+    }
+
+    /**
+     * Sets the maximum number of integration steps.
+     * 
+     * @param aMaxSteps
+     *            the maximum number of steps, 0 for no limit
+     */
+    public void setMaxSteps(int aMaxSteps) {
+        iMaxSteps = aMaxSteps;
+    }
+
+    /**
+     * Sets the time limit of the diffusion process. The limit is checked
+     * after each step; when it is exceeded the grid computed so far is used.
+     * 
+     * @param aTimeLimit
+     *            the time limit in milliseconds, 0 for no limit
+     */
+    public void setTimeLimit(long aTimeLimit) {
+        iTimeLimit = aTimeLimit;
+    }
+
+    /**
+     * Selects the controller of the integration time step.
+     * 
+     * @param aStepController
+     *            the step controller
+     */
+    public void setStepController(StepController aStepController) {
+        iStepController = aStepController;
+    }
+
+    /**
+     * Sets the bounds of the time step of the PI controller.
+     * 
+     * @param aMinStep
+     *            the smallest time step, which is accepted whatever its error
+     * @param aMaxStep
+     *            the largest time step
+     */
+    public void setStepLimits(double aMinStep, double aMaxStep) {
+        iMinStep = aMinStep;
+        iMaxStep = aMaxStep;
+    }
+
+    /**
+     * Returns the number of integration steps done by the last computation.
+     * 
+     * @return the number of steps
+     */
+    public int getStepCount() {
+        return iStepCount;
+    }
+
+    /**
+     * Returns the number of rejected integration steps of the last
+     * computation. They are not counted in the step count.
+     * 
+     * @return the number of rejected steps
+     */
+    public int getRejectedStepCount() {
+        return iRejectedStepCount;
+    }
+
+    /**
+     * Returns the number of density snapshots of the last computation. Each
+     * snapshot is a DCT back-transform.
+     * 
+     * @return the number of snapshots
+     */
+    public int getSnapshotCount() {
+        return iSnapshotCount;
+    }
+
+    /**
+     * Returns the duration of the diffusion process of the last computation.
+     * 
+     * @return the duration in milliseconds
+     */
+    public long getDiffusionTime() {
+        return iDiffusionTime;
+    }
+
+    /**
+     * Returns the criterion which ended the last computation.
+     * 
+     * @return the stop reason, <code>null</code> before the computation
+     */
+    public StopReason getStopReason() {
+        return iStopReason;
+    }
+
     /**
      * Starts the cartogram computation.
      * 
@@ -167,6 +514,38 @@ public class CartogramNewman {
      *             when it was interrupted
      */
     public void compute() throws InterruptedException {
+        // Integrate in the calling thread if there is no executor.
+        CartogramExecutor ownExecutor = null;
+        if (iExecutor == null) {
+            ownExecutor = new CartogramExecutor(1);
+            iExecutor = ownExecutor;
+        }
+
+        try {
+            // Prepare the density and the grid of points.
+            prepare();
+
+            // Compute the cartogram.
+            makeCartogram(0.0);
+
+            // Project the cartogram grid.
+            projectCartogramGrid();
+        } finally {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+                iExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Allocates the arrays, transforms the initial density and creates the grid
+     * of points. Afterwards the density snapshots can be computed.
+     * 
+     * @throws InterruptedException
+     *             when there is not enough memory
+     */
+    void prepare() throws InterruptedException {
         // Allocate space for the cartogram code to use
         initializeArrays();
 
@@ -175,12 +554,6 @@ public class CartogramNewman {
 
         // Create the grid of points.
         createGridOfPoints();
-
-        // Compute the cartogram.
-        makeCartogram(0.0);
-
-        // Project the cartogram grid.
-        projectCartogramGrid();
     }
 
     /**
@@ -191,10 +564,8 @@ public class CartogramNewman {
      */
     private void initializeArrays() throws InterruptedException {
         try {
-            iRhot = new double[5][iGridSize[0]][iGridSize[1]];
-            iFftrho = new double[iGridSize[0]][iGridSize[1]];
-            iFftexpt = new double[iGridSize[0]][iGridSize[1]];
-            iExpky = new double[iGridSize[1]];
+            iExpky = new double[BATCH_SIZE][iGridSize[1]];
+            allocateDensityArrays();
         } catch (Exception e) {
             logger.error("Out of memory error.");
             throw new InterruptedException(
@@ -202,6 +573,27 @@ public class CartogramNewman {
         }
     }
 
+    /**
+     * Allocates the density snapshots, the transformed density, the DCT plans
+     * and, if needed, the velocity fields.
+     */
+    protected void allocateDensityArrays() {
+        iRhot = new double[5][iGridSize[0] * iGridSize[1]];
+        iFftrho = new double[iGridSize[0] * iGridSize[1]];
+        iDct = new DoubleDCT_2D[BATCH_SIZE];
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            iDct[k] = new DoubleDCT_2D(iGridSize[0], iGridSize[1]);
+        }
+        if (iPrecomputeVelocity) {
+            int corners = (iGridSize[0] + 1) * (iGridSize[1] + 1);
+            iVelocityX = new double[5][corners];
+            iVelocityY = new double[5][corners];
+        } else {
+            iVelocityX = null;
+            iVelocityY = null;
+        }
+    }
+
     /**
      * Method to read population data, transform it, and store it in fftrho.
      */
@@ -210,8 +602,14 @@ public class CartogramNewman {
         readPopulationDensity();
 
         // Transform fftrho.
-        DoubleDCT_2D transform = new DoubleDCT_2D(iGridSize[0], iGridSize[1]);
-        transform.forward(iFftrho, false);
+        transformInitialDensity();
+    }
+
+    /**
+     * Transforms fftrho with a DCT.
+     */
+    protected void transformInitialDensity() {
+        iDct[0].forward(iFftrho, false);
     }
 
     /**
@@ -226,15 +624,18 @@ public class CartogramNewman {
     }
 
     /**
-     * Fills fftrho using the provided grid values.
+     * Fills fftrho using the provided grid values. The values are stored row
+     * by row like the cells of the cartogram grid, and fftrho column by
+     * column, as expected by the DCT.
      * 
      * @param aValue
      *            the grid values
      */
-    private void fillDiffusionGrid(double[][] aValue) {
-        for (int i = 0; i < iGridSize[0]; i++) {
-            for (int j = 0; j < iGridSize[1]; j++) {
-                iFftrho[i][j] = aValue[i][j];
+    protected void fillDiffusionGrid(double[] aValue) {
+        int i = 0;
+        for (int x = 0; x < iGridSize[0]; x++) {
+            for (int y = 0; y < iGridSize[1]; y++) {
+                iFftrho[i++] = aValue[y * iGridSize[0] + x];
             }
         }
     }
@@ -246,6 +647,8 @@ public class CartogramNewman {
     private void createGridOfPoints() {
         iGridPointsX = new double[(iGridSize[0] + 1) * (iGridSize[1] + 1)];
         iGridPointsY = new double[(iGridSize[0] + 1) * (iGridSize[1] + 1)];
+        iNextPointsX = new double[iGridPointsX.length];
+        iNextPointsY = new double[iGridPointsY.length];
 
         int i = 0;
         for (int y = 0; y <= iGridSize[1]; y++) {
@@ -262,11 +665,20 @@ public class CartogramNewman {
      * 
      * @param aBlur
      *            the blur value
+     * @throws InterruptedException
+     *             when it was interrupted
      */
-    private void makeCartogram(double aBlur) {
+    private void makeCartogram(double aBlur) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = 0;
+        if (iTimeLimit > 0) {
+            deadline = start + iTimeLimit;
+        }
+
         // Calculate the initial density for snapshot zero */
         int s = 0;
         densitySnapshot(0.0, s);
+        iSnapshotCount = 1;
 
         // Integrate the points.
         double t = 0.5 * aBlur * aBlur;
@@ -275,27 +687,102 @@ public class CartogramNewman {
         int sp;
         iDrp = 1.0f;
         double desiredratio;
+        double previousDrp = 0.0;
+        double previousError = 1.0;
+        iStepCount = 0;
+        iRejectedStepCount = 0;
+        iStopReason = null;
         do {
             // Do a combined (triple) integration step
             sp = integrateTwoSteps(t, h, s);
-
-            // Increase the time by 2h and rotate snapshots
-            t += 2.0 * h;
-            s = sp;
-
-            // Adjust the time-step.
-            // Factor of 2 arises because the target for the two-step process is
-            // twice the target for an individual step
-            desiredratio = Math.pow(2 * TARGETERROR / iErrorp, 0.2);
-
-            if (desiredratio > MAXRATIO) {
-                h *= MAXRATIO;
+            iSnapshotCount += 4;
+
+            if (iStepController == StepController.PI) {
+                // The error relative to the target of the two-step process.
+                double error = iErrorp / (2 * TARGETERROR);
+                double ratio;
+                if (error <= 1.0 || h <= iMinStep) {
+                    ratio = SAFETY * Math.pow(error, -PI_ALPHA)
+                            * Math.pow(previousError, PI_BETA);
+                    previousError = Math.max(error, PI_MIN_ERROR);
+                } else {
+                    // Reject the step: keep the grid points and the initial
+                    // snapshot, and retry with a shorter step.
+                    ratio = SAFETY * Math.pow(error, -0.2);
+                    if (!(ratio >= MINRATIO)) {
+                        ratio = MINRATIO;
+                    }
+                    iRejectedStepCount++;
+                    h = Math.max(h * ratio, iMinStep);
+                    if (deadline > 0
+                            && System.currentTimeMillis() >= deadline) {
+                        iStopReason = StopReason.TIME_LIMIT;
+                    }
+                    continue;
+                }
+
+                // Accept the step and adjust the time step.
+                acceptStep();
+                t += 2.0 * h;
+                s = sp;
+                if (!(ratio >= MINRATIO)) {
+                    ratio = MINRATIO;
+                } else if (ratio > MAXRATIO) {
+                    ratio = MAXRATIO;
+                }
+                h = Math.min(Math.max(h * ratio, iMinStep), iMaxStep);
             } else {
-                h *= desiredratio;
+                acceptStep();
+
+                // Increase the time by 2h and rotate snapshots
+                t += 2.0 * h;
+                s = sp;
+
+                // Adjust the time-step.
+                // Factor of 2 arises because the target for the two-step
+                // process is twice the target for an individual step
+                desiredratio = Math.pow(2 * TARGETERROR / iErrorp, 0.2);
+
+                if (desiredratio > MAXRATIO) {
+                    h *= MAXRATIO;
+                } else {
+                    h *= desiredratio;
+                }
             }
 
             updateRunningStatus(t);
-        } while (iDrp > 0.0f); // If no point moved then we are finished
+            iStepCount++;
+
+            // The grid points are only updated by complete steps, so the
+            // grid is consistent whatever criterion ends the process. The
+            // first steps are very short, the displacement criterion only
+            // applies once the displacements decrease.
+            if (!(iDrp > 0.0f)) {
+                iStopReason = StopReason.CONVERGED;
+            } else if (iDrp <= iMaxDisplacement && iDrp < previousDrp) {
+                iStopReason = StopReason.DISPLACEMENT;
+            } else if (iMaxSteps > 0 && iStepCount >= iMaxSteps) {
+                iStopReason = StopReason.STEPS;
+            } else if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+                iStopReason = StopReason.TIME_LIMIT;
+            }
+            previousDrp = iDrp;
+        } while (iStopReason == null);
+
+        iDiffusionTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Accepts the current step: the positions computed by the step become the
+     * grid points.
+     */
+    private void acceptStep() {
+        double[] swap = iGridPointsX;
+        iGridPointsX = iNextPointsX;
+        iNextPointsX = swap;
+        swap = iGridPointsY;
+        iGridPointsY = iNextPointsY;
+        iNextPointsY = swap;
     }
 
     /**
@@ -306,34 +793,160 @@ public class CartogramNewman {
      *            the time
      * @param aS
      *            the snapshot
+     * @throws InterruptedException
+     *             when it was interrupted
      */
-    private void densitySnapshot(double aT, int aS) {
+    void densitySnapshot(double aT, int aS) throws InterruptedException {
+        densitySnapshots(new double[] { aT }, new int[] { aS });
+    }
+
+    /**
+     * Calculates the population density at several times at once. The FT of
+     * the density is read only once for all the snapshots, and the snapshots
+     * are back-transformed concurrently.
+     * 
+     * @param aT
+     *            the times, at most BATCH_SIZE
+     * @param aS
+     *            the snapshot of each time
+     * @throws InterruptedException
+     *             when it was interrupted
+     */
+    void densitySnapshots(final double[] aT, final int[] aS)
+            throws InterruptedException {
         double ky;
 
-        // Calculate the expky array, to save time in the next part
-        for (int y = 0; y < iGridSize[1]; y++) {
-            ky = Math.PI * y / iGridSize[1];
-            iExpky[y] = Math.exp(-ky * ky * aT);
+        // Calculate the expky arrays, to save time in the next part
+        for (int k = 0; k < aT.length; k++) {
+            for (int y = 0; y < iGridSize[1]; y++) {
+                ky = Math.PI * y / iGridSize[1];
+                iExpky[k][y] = Math.exp(-ky * ky * aT[k]);
+            }
+        }
+
+        // Multiply the FT of the density by the factors of all the times in
+        // a single sweep, split into ranges of x.
+        int[] bounds = iExecutor.splitRange(iGridSize[0]);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                bounds.length - 1);
+        for (int k = 0; k < bounds.length - 1; k++) {
+            final int from = bounds[k];
+            final int to = bounds[k + 1];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    multiplySnapshots(aT, aS, from, to);
+                    return null;
+                }
+            });
+        }
+        iExecutor.invokeAll(tasks);
+
+        // Back-transform the snapshots concurrently, each with its own plan.
+        tasks.clear();
+        for (int k = 0; k < aT.length; k++) {
+            final int plan = k;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    inverseSnapshot(plan, aS[plan]);
+                    return null;
+                }
+            });
+        }
+        iExecutor.invokeAll(tasks);
+    }
+
+    /**
+     * Multiplies the FT of the density by the Gaussian factors of the given
+     * times, directly into the snapshot arrays on which the DCT
+     * back-transforms will be performed. The expky arrays are already
+     * computed.
+     * 
+     * @param aT
+     *            the times
+     * @param aS
+     *            the snapshot of each time
+     * @param aFromX
+     *            the first x
+     * @param aToX
+     *            the x after the last x
+     */
+    protected void multiplySnapshots(double[] aT, int[] aS, int aFromX,
+            int aToX) {
+        int count = aT.length;
+        double[][] rho = new double[count][];
+        for (int k = 0; k < count; k++) {
+            rho[k] = iRhot[aS[k]];
         }
 
         double kx;
-        double expkx;
-        // Multiply the FT of the density by the appropriate factors
-        for (int x = 0; x < iGridSize[0]; x++) {
+        double[] expkx = new double[count];
+        int i = aFromX * iGridSize[1];
+        for (int x = aFromX; x < aToX; x++) {
             kx = Math.PI * x / iGridSize[0];
-            expkx = Math.exp(-kx * kx * aT);
+            for (int k = 0; k < count; k++) {
+                expkx[k] = Math.exp(-kx * kx * aT[k]);
+            }
             for (int y = 0; y < iGridSize[1]; y++) {
-                iFftexpt[x][y] = expkx * iExpky[y] * iFftrho[x][y];
-
-                // Save a copy to the rhot[s] array on which we will perform the
-                // DCT back-transform.
-                iRhot[aS][x][y] = iFftexpt[x][y];
+                double fftrho = iFftrho[i];
+                for (int k = 0; k < count; k++) {
+                    rho[k][i] = expkx[k] * iExpky[k][y] * fftrho;
+                }
+                i++;
             }
         }
+    }
+
+    /**
+     * Back-transforms a snapshot and, if needed, computes its velocity field.
+     * 
+     * @param aPlan
+     *            the index of the DCT plan, which is not used concurrently
+     * @param aS
+     *            the snapshot
+     */
+    protected void inverseSnapshot(int aPlan, int aS) {
+        iDct[aPlan].inverse(iRhot[aS], false);
+
+        if (iVelocityX != null) {
+            computeVelocityField(aS);
+        }
+    }
+
+    /**
+     * Computes the velocities at all the cell corners for the given snapshot.
+     * The velocity of a corner is computed from the densities of the four
+     * cells around it, clamped to the grid like in the velocity method, so
+     * that the interpolation gives exactly the same result.
+     * 
+     * @param aS
+     *            the snapshot
+     */
+    private void computeVelocityField(int aS) {
+        double[] rho = iRhot[aS];
+        double[] velocityX = iVelocityX[aS];
+        double[] velocityY = iVelocityY[aS];
+
+        int i = 0;
+        for (int y = 0; y <= iGridSize[1]; y++) {
+            int ya = Math.max(0, y - 1);
+            int yb = Math.min(y, iGridSize[1] - 1);
+            for (int x = 0; x <= iGridSize[0]; x++) {
+                int xa = Math.max(0, x - 1) * iGridSize[1];
+                int xb = Math.min(x, iGridSize[0] - 1) * iGridSize[1];
+
+                double rhoaa = rho[xa + ya];
+                double rhoba = rho[xb + ya];
+                double rhoab = rho[xa + yb];
+                double rhobb = rho[xb + yb];
 
-        // Perform the back-transform
-        DoubleDCT_2D dct = new DoubleDCT_2D(iGridSize[0], iGridSize[1]);
-        dct.inverse(iRhot[aS], false);
+                double mid = rhoaa + rhoba + rhoab + rhobb;
+                velocityX[i] = -2.0 * (rhoba - rhoaa + rhobb - rhoab) / mid;
+                velocityY[i] = -2.0 * (rhoab - rhoaa + rhobb - rhoba) / mid;
+                i++;
+            }
+        }
     }
 
     /**
@@ -351,42 +964,110 @@ public class CartogramNewman {
      *            snapshot index of the initial time
      * 
      * @return the snapshot index for the final function evaluation
+     * @throws InterruptedException
+     *             when it was interrupted
      */
-    private int integrateTwoSteps(double aT, double aH, int aS) {
-        int s0 = aS;
-        int s1 = (aS + 1) % 5;
-        int s2 = (aS + 2) % 5;
-        int s3 = (aS + 3) % 5;
-        int s4 = (aS + 4) % 5;
+    private int integrateTwoSteps(double aT, final double aH, int aS)
+            throws InterruptedException {
+        final int s0 = aS;
+        final int s1 = (aS + 1) % 5;
+        final int s2 = (aS + 2) % 5;
+        final int s3 = (aS + 3) % 5;
+        final int s4 = (aS + 4) % 5;
 
         // Compute the density field for the four new time slices.
-        densitySnapshot(aT + 0.5 * aH, s1);
-        densitySnapshot(aT + 1.0 * aH, s2);
-        densitySnapshot(aT + 1.5 * aH, s3);
-        densitySnapshot(aT + 2.0 * aH, s4);
+        densitySnapshots(new double[] { aT + 0.5 * aH, aT + 1.0 * aH,
+                aT + 1.5 * aH, aT + 2.0 * aH }, new int[] { s1, s2, s3, s4 });
 
-        // Do all three Runga-Kutta steps for each point in turn.
+        // Do all three Runga-Kutta steps for each point in turn. The points
+        // are split into disjoint ranges which can be integrated concurrently.
+        int npoints = (iGridSize[0] + 1) * (iGridSize[1] + 1);
+        int[] bounds = iExecutor.splitRange(npoints);
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>(
+                bounds.length - 1);
+        for (int k = 0; k < bounds.length - 1; k++) {
+            final int from = bounds[k];
+            final int to = bounds[k + 1];
+            tasks.add(new Callable<double[]>() {
+                @Override
+                public double[] call() {
+                    return integratePoints(from, to, aH, s0, s1, s2, s3, s4);
+                }
+            });
+        }
+
+        // Reduce the maximum error and displacement of all the ranges.
         double esqmax = 0.0;
         double drsqmax = 0.0;
-        int npoints = (iGridSize[0] + 1) * (iGridSize[1] + 1);
-        for (int p = 0; p < npoints; p++) {
+        for (double[] max : iExecutor.invokeAll(tasks)) {
+            if (max[0] > esqmax) {
+                esqmax = max[0];
+            }
+            if (max[1] > drsqmax) {
+                drsqmax = max[1];
+            }
+        }
+
+        iErrorp = Math.sqrt(esqmax);
+        iDrp = Math.sqrt(drsqmax);
+
+        return s4;
+    }
+
+    /**
+     * Integrates the grid points in the range [aFrom, aTo) over the time 2h.
+     * The density snapshots must already be computed. The new positions are
+     * stored in the next points, which become the grid points when the step
+     * is accepted. Each point is only read and written by the call
+     * integrating its range.
+     * 
+     * @param aFrom
+     *            the first point index
+     * @param aTo
+     *            the point index after the last point
+     * @param aH
+     *            delta t
+     * @param aS0
+     *            snapshot index of the initial time
+     * @param aS1
+     *            snapshot index of the time t + h/2
+     * @param aS2
+     *            snapshot index of the time t + h
+     * @param aS3
+     *            snapshot index of the time t + 3h/2
+     * @param aS4
+     *            snapshot index of the time t + 2h
+     * @return the maximum squared error and the maximum squared displacement
+     *         of the points in the range
+     */
+    double[] integratePoints(int aFrom, int aTo, double aH, int aS0,
+            int aS1, int aS2, int aS3, int aS4) {
+        // Scratch array receiving the interpolated velocities, so that the
+        // integration loop does not allocate any object.
+        double[] v = new double[2];
+
+        double esqmax = 0.0;
+        double drsqmax = 0.0;
+        for (int p = aFrom; p < aTo; p++) {
             double rx1 = iGridPointsX[p];
             double ry1 = iGridPointsY[p];
 
             // Do the big combined (2h) Runga-Kutta step.
 
-            Coordinate v1 = velocity(rx1, ry1, s0);
-            double k1x = 2 * aH * v1.x;
-            double k1y = 2 * aH * v1.y;
-            Coordinate v2 = velocity(rx1 + 0.5 * k1x, ry1 + 0.5 * k1y, s2);
-            double k2x = 2 * aH * v2.x;
-            double k2y = 2 * aH * v2.y;
-            Coordinate v3 = velocity(rx1 + 0.5 * k2x, ry1 + 0.5 * k2y, s2);
-            double k3x = 2 * aH * v3.x;
-            double k3y = 2 * aH * v3.y;
-            Coordinate v4 = velocity(rx1 + k3x, ry1 + k3y, s4);
-            double k4x = 2 * aH * v4.x;
-            double k4y = 2 * aH * v4.y;
+            velocity(rx1, ry1, aS0, v);
+            double v1x = v[0];
+            double v1y = v[1];
+            double k1x = 2 * aH * v1x;
+            double k1y = 2 * aH * v1y;
+            velocity(rx1 + 0.5 * k1x, ry1 + 0.5 * k1y, aS2, v);
+            double k2x = 2 * aH * v[0];
+            double k2y = 2 * aH * v[1];
+            velocity(rx1 + 0.5 * k2x, ry1 + 0.5 * k2y, aS2, v);
+            double k3x = 2 * aH * v[0];
+            double k3y = 2 * aH * v[1];
+            velocity(rx1 + k3x, ry1 + k3y, aS4, v);
+            double k4x = 2 * aH * v[0];
+            double k4y = 2 * aH * v[1];
 
             double dx12 = (k1x + k4x + 2.0 * (k2x + k3x)) / 6.0;
             double dy12 = (k1y + k4y + 2.0 * (k2y + k3y)) / 6.0;
@@ -396,17 +1077,17 @@ public class CartogramNewman {
             // because it would be the same as the one above, so there's no need
             // to do it again
 
-            k1x = aH * v1.x;
-            k1y = aH * v1.y;
-            v2 = velocity(rx1 + 0.5 * k1x, ry1 + 0.5 * k1y, s1);
-            k2x = aH * v2.x;
-            k2y = aH * v2.y;
-            v3 = velocity(rx1 + 0.5 * k2x, ry1 + 0.5 * k2y, s1);
-            k3x = aH * v3.x;
-            k3y = aH * v3.y;
-            v4 = velocity(rx1 + k3x, ry1 + k3y, s2);
-            k4x = aH * v4.x;
-            k4y = aH * v4.y;
+            k1x = aH * v1x;
+            k1y = aH * v1y;
+            velocity(rx1 + 0.5 * k1x, ry1 + 0.5 * k1y, aS1, v);
+            k2x = aH * v[0];
+            k2y = aH * v[1];
+            velocity(rx1 + 0.5 * k2x, ry1 + 0.5 * k2y, aS1, v);
+            k3x = aH * v[0];
+            k3y = aH * v[1];
+            velocity(rx1 + k3x, ry1 + k3y, aS2, v);
+            k4x = aH * v[0];
+            k4y = aH * v[1];
 
             double dx1 = (k1x + k4x + 2.0 * (k2x + k3x)) / 6.0;
             double dy1 = (k1y + k4y + 2.0 * (k2y + k3y)) / 6.0;
@@ -416,18 +1097,18 @@ public class CartogramNewman {
             double rx2 = rx1 + dx1;
             double ry2 = ry1 + dy1;
 
-            v1 = velocity(rx2, ry2, s2);
-            k1x = aH * v1.x;
-            k1y = aH * v1.y;
-            v2 = velocity(rx2 + 0.5 * k1x, ry2 + 0.5 * k1y, s3);
-            k2x = aH * v2.x;
-            k2y = aH * v2.y;
-            v3 = velocity(rx2 + 0.5 * k2x, ry2 + 0.5 * k2y, s3);
-            k3x = aH * v3.x;
-            k3y = aH * v3.y;
-            v4 = velocity(rx2 + k3x, ry2 + k3y, s4);
-            k4x = aH * v4.x;
-            k4y = aH * v4.y;
+            velocity(rx2, ry2, aS2, v);
+            k1x = aH * v[0];
+            k1y = aH * v[1];
+            velocity(rx2 + 0.5 * k1x, ry2 + 0.5 * k1y, aS3, v);
+            k2x = aH * v[0];
+            k2y = aH * v[1];
+            velocity(rx2 + 0.5 * k2x, ry2 + 0.5 * k2y, aS3, v);
+            k3x = aH * v[0];
+            k3y = aH * v[1];
+            velocity(rx2 + k3x, ry2 + k3y, aS4, v);
+            k4x = aH * v[0];
+            k4y = aH * v[1];
 
             double dx2 = (k1x + k4x + 2.0 * (k2x + k3x)) / 6.0;
             double dy2 = (k1y + k4y + 2.0 * (k2y + k3y)) / 6.0;
@@ -472,14 +1153,11 @@ public class CartogramNewman {
                 ry3 = iGridSize[1];
             }
 
-            iGridPointsX[p] = rx3;
-            iGridPointsY[p] = ry3;
+            iNextPointsX[p] = rx3;
+            iNextPointsY[p] = ry3;
         }
 
-        iErrorp = Math.sqrt(esqmax);
-        iDrp = Math.sqrt(drsqmax);
-
-        return s4;
+        return new double[] { esqmax, drsqmax };
     }
 
     /**
@@ -501,9 +1179,12 @@ public class CartogramNewman {
      * @param aS
      *            the snapshot
      * 
-     * @return the velocity in x and y as a coordinate.
+     * @param aVelocity
+     *            the array receiving the velocity in x (index 0) and y (index
+     *            1). It is owned by the caller, so that the method does not
+     *            allocate anything.
      */
-    private Coordinate velocity(double aRx, double aRy, int aS) {
+    void velocity(double aRx, double aRy, int aS, double[] aVelocity) {
         // Deal with the boundary conditions.
 
         int ix = (int) aRx;
@@ -513,15 +1194,6 @@ public class CartogramNewman {
             ix = iGridSize[0] - 1;
         }
 
-        int ixm1 = ix - 1;
-        if (ixm1 < 0) {
-            ixm1 = 0;
-        }
-        int ixp1 = ix + 1;
-        if (ixp1 >= iGridSize[0]) {
-            ixp1 = iGridSize[0] - 1;
-        }
-
         int iy = (int) aRy;
         if (iy < 0) {
             iy = 0;
@@ -529,25 +1201,65 @@ public class CartogramNewman {
             iy = iGridSize[1] - 1;
         }
 
-        int iym1 = iy - 1;
+        // Only interpolate if the velocity field is precomputed.
+        if (iPrecomputeVelocity) {
+            interpolateVelocity(aRx - ix, aRy - iy, ix, iy, aS, aVelocity);
+        } else {
+            stencilVelocity(aRx - ix, aRy - iy, ix, iy, aS, aVelocity);
+        }
+    }
+
+    /**
+     * Computes the velocity at a point of a cell from the densities of the
+     * nine cells around it.
+     * 
+     * @param aDx
+     *            the x offset of the point in the cell
+     * @param aDy
+     *            the y offset of the point in the cell
+     * @param aIx
+     *            the x index of the cell
+     * @param aIy
+     *            the y index of the cell
+     * @param aS
+     *            the snapshot
+     * @param aVelocity
+     *            the array receiving the velocity in x and y
+     */
+    protected void stencilVelocity(double aDx, double aDy, int aIx, int aIy,
+            int aS, double[] aVelocity) {
+        int ixm1 = aIx - 1;
+        if (ixm1 < 0) {
+            ixm1 = 0;
+        }
+        int ixp1 = aIx + 1;
+        if (ixp1 >= iGridSize[0]) {
+            ixp1 = iGridSize[0] - 1;
+        }
+
+        int iym1 = aIy - 1;
         if (iym1 < 0) {
             iym1 = 0;
         }
-        int iyp1 = iy + 1;
+        int iyp1 = aIy + 1;
         if (iyp1 >= iGridSize[1]) {
             iyp1 = iGridSize[1] - 1;
         }
 
         // Calculate the densities at the nine surrounding grid points
-        double rho00 = iRhot[aS][ixm1][iym1];
-        double rho10 = iRhot[aS][ix][iym1];
-        double rho20 = iRhot[aS][ixp1][iym1];
-        double rho01 = iRhot[aS][ixm1][iy];
-        double rho11 = iRhot[aS][ix][iy];
-        double rho21 = iRhot[aS][ixp1][iy];
-        double rho02 = iRhot[aS][ixm1][iyp1];
-        double rho12 = iRhot[aS][ix][iyp1];
-        double rho22 = iRhot[aS][ixp1][iyp1];
+        double[] rho = iRhot[aS];
+        int row0 = ixm1 * iGridSize[1];
+        int row1 = aIx * iGridSize[1];
+        int row2 = ixp1 * iGridSize[1];
+        double rho00 = rho[row0 + iym1];
+        double rho10 = rho[row1 + iym1];
+        double rho20 = rho[row2 + iym1];
+        double rho01 = rho[row0 + aIy];
+        double rho11 = rho[row1 + aIy];
+        double rho21 = rho[row2 + aIy];
+        double rho02 = rho[row0 + iyp1];
+        double rho12 = rho[row1 + iyp1];
+        double rho22 = rho[row2 + iyp1];
 
         // Calculate velocities at the four surrounding grid points
 
@@ -569,48 +1281,83 @@ public class CartogramNewman {
 
         // Calculate the weights for the bilinear interpolation
 
-        double dx = aRx - ix;
-        double dy = aRy - iy;
-
-        double dx1m = 1.0 - dx;
-        double dy1m = 1.0 - dy;
+        double dx1m = 1.0 - aDx;
+        double dy1m = 1.0 - aDy;
 
         double w11 = dx1m * dy1m;
-        double w21 = dx * dy1m;
-        double w12 = dx1m * dy;
-        double w22 = dx * dy;
+        double w21 = aDx * dy1m;
+        double w12 = dx1m * aDy;
+        double w22 = aDx * aDy;
 
         // Perform the interpolation for x and y components of velocity
-        return new Coordinate(
-                w11 * vx11 + w21 * vx21 + w12 * vx12 + w22 * vx22, w11 * vy11
-                        + w21 * vy21 + w12 * vy12 + w22 * vy22);
+        aVelocity[0] = w11 * vx11 + w21 * vx21 + w12 * vx12 + w22 * vx22;
+        aVelocity[1] = w11 * vy11 + w21 * vy21 + w12 * vy12 + w22 * vy22;
     }
 
     /**
+     * Interpolates the precomputed velocities of the four corners of a cell.
      * 
+     * @param aDx
+     *            the x offset of the point in the cell
+     * @param aDy
+     *            the y offset of the point in the cell
+     * @param aIx
+     *            the x index of the cell
+     * @param aIy
+     *            the y index of the cell
+     * @param aS
+     *            the snapshot
+     * @param aVelocity
+     *            the array receiving the velocity in x and y
      */
-    private void projectCartogramGrid() {
-        // Project each point in the cartogram grid.
-        double[][] x = iCartogramGrid.getXCoordinates();
-        double[][] y = iCartogramGrid.getYCoordinates();
+    protected void interpolateVelocity(double aDx, double aDy, int aIx,
+            int aIy, int aS, double[] aVelocity) {
+        double[] velocityX = iVelocityX[aS];
+        double[] velocityY = iVelocityY[aS];
 
-        int gridSizeX = x.length;
-        int gridSizeY = x[0].length;
+        int i11 = aIy * (iGridSize[0] + 1) + aIx;
+        int i21 = i11 + 1;
+        int i12 = i11 + iGridSize[0] + 1;
+        int i22 = i12 + 1;
 
+        double dx1m = 1.0 - aDx;
+        double dy1m = 1.0 - aDy;
+
+        double w11 = dx1m * dy1m;
+        double w21 = aDx * dy1m;
+        double w12 = dx1m * aDy;
+        double w22 = aDx * aDy;
+
+        aVelocity[0] = w11 * velocityX[i11] + w21 * velocityX[i21] + w12
+                * velocityX[i12] + w22 * velocityX[i22];
+        aVelocity[1] = w11 * velocityY[i11] + w21 * velocityY[i21] + w12
+                * velocityY[i12] + w22 * velocityY[i22];
+    }
+
+    /**
+     * Moves the nodes of the cartogram grid to the grid points. The grid points
+     * are the nodes of the cartogram grid, in the same order; they are
+     * converted in place to real world coordinates and handed over to the
+     * cartogram grid without a copy.
+     */
+    private void projectCartogramGrid() {
         double cellSizeX = iExtent.getWidth() / iGridSize[0];
         double cellSizeY = iExtent.getHeight() / iGridSize[1];
 
         double minX = iExtent.getMinX();
         double minY = iExtent.getMinY();
 
-        int index = 0;
-        for (int j = 0; j < gridSizeY; j++) {
-            for (int i = 0; i < gridSizeX; i++) {
-                x[i][j] = iGridPointsX[index] * cellSizeX + minX;
-                y[i][j] = iGridPointsY[index] * cellSizeY + minY;
-                index++;
-            }
+        for (int i = 0; i < iGridPointsX.length; i++) {
+            iGridPointsX[i] = iGridPointsX[i] * cellSizeX + minX;
+            iGridPointsY[i] = iGridPointsY[i] * cellSizeY + minY;
         }
+        iCartogramGrid.setNodes(iGridPointsX, iGridPointsY);
+
+        // The arrays belong to the cartogram grid now.
+        iGridPointsX = null;
+        iGridPointsY = null;
+        iNextPointsX = null;
+        iNextPointsY = null;
     }
 
     /**
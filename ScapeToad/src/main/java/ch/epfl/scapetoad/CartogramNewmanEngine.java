@@ -0,0 +1,257 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+/**
+ * The diffusion cartogram engine of Gastner and Newman (see CartogramNewman).
+ * It is the default engine.
+ */
+public class CartogramNewmanEngine implements ICartogramEngine {
+
+    /**
+     * The name of the engine.
+     */
+    public static final String NAME = "diffusion";
+
+    /**
+     * <code>true</code> if the velocity field is precomputed for each density
+     * snapshot.
+     */
+    private boolean iPrecomputeVelocity = false;
+
+    /**
+     * The maximum displacement of a converged grid, in cell units.
+     */
+    private double iMaxDisplacement = 0;
+
+    /**
+     * The maximum number of integration steps, 0 for no limit.
+     */
+    private int iMaxSteps = 0;
+
+    /**
+     * The time limit in milliseconds, 0 for no limit.
+     */
+    private long iTimeLimit = 0;
+
+    /**
+     * The controller of the integration time step.
+     */
+    private CartogramNewman.StepController iStepController =
+            CartogramNewman.StepController.RATIO;
+
+    /**
+     * The smallest time step of the PI controller.
+     */
+    private double iMinStep = 1e-6;
+
+    /**
+     * The largest time step of the PI controller.
+     */
+    private double iMaxStep = Double.POSITIVE_INFINITY;
+
+    /**
+     * The number of integration steps of the last computation.
+     */
+    private int iStepCount;
+
+    /**
+     * The number of rejected integration steps of the last computation.
+     */
+    private int iRejectedStepCount;
+
+    /**
+     * The number of density snapshots of the last computation.
+     */
+    private int iSnapshotCount;
+
+    /**
+     * The duration of the diffusion process of the last computation.
+     */
+    private long iDiffusionTime;
+
+    /**
+     * The criterion which ended the last computation.
+     */
+    private CartogramNewman.StopReason iStopReason;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Defines whether the diffusion velocity field is precomputed once for
+     * each density snapshot. It is faster but needs more memory. The result
+     * is the same.
+     * 
+     * @param aPrecomputeVelocity
+     *            <code>true</code> to precompute the velocity field
+     */
+    public void setPrecomputeVelocity(boolean aPrecomputeVelocity) {
+        iPrecomputeVelocity = aPrecomputeVelocity;
+    }
+
+    /**
+     * Selects the controller of the integration time step.
+     * 
+     * @param aStepController
+     *            the step controller
+     */
+    public void setStepController(
+            CartogramNewman.StepController aStepController) {
+        iStepController = aStepController;
+    }
+
+    /**
+     * Sets the bounds of the time step of the PI controller (see
+     * CartogramNewman.setStepLimits).
+     * 
+     * @param aMinStep
+     *            the smallest time step, which is accepted whatever its error
+     * @param aMaxStep
+     *            the largest time step
+     */
+    public void setStepLimits(double aMinStep, double aMaxStep) {
+        iMinStep = aMinStep;
+        iMaxStep = aMaxStep;
+    }
+
+    /**
+     * Sets the maximum displacement of a converged grid (see
+     * CartogramNewman.setMaxDisplacement).
+     * 
+     * @param aMaxDisplacement
+     *            the maximum displacement in cell units
+     */
+    public void setMaxDisplacement(double aMaxDisplacement) {
+        iMaxDisplacement = aMaxDisplacement;
+    }
+
+    /**
+     * Sets the maximum number of integration steps.
+     * 
+     * @param aMaxSteps
+     *            the maximum number of steps, 0 for no limit
+     */
+    public void setMaxSteps(int aMaxSteps) {
+        iMaxSteps = aMaxSteps;
+    }
+
+    /**
+     * Sets the time limit of the diffusion process. When it is exceeded, the
+     * grid computed so far is used.
+     * 
+     * @param aTimeLimit
+     *            the time limit in milliseconds, 0 for no limit
+     */
+    public void setTimeLimit(long aTimeLimit) {
+        iTimeLimit = aTimeLimit;
+    }
+
+    @Override
+    public void compute(CartogramGrid aGrid, ICartogramStatus aStatus,
+            int aMinimumStatus, int aMaximumStatus, String aStatusTitle,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        CartogramNewman cnewm = createNewman(aGrid);
+
+        // Enable the CartogramNewman instance to update the running status.
+        cnewm.initializeStatus(aStatus, aMinimumStatus, aMaximumStatus,
+                aStatusTitle);
+
+        // Integrate the grid points concurrently.
+        cnewm.setExecutor(aExecutor);
+        cnewm.setPrecomputeVelocity(iPrecomputeVelocity);
+        cnewm.setStepController(iStepController);
+        cnewm.setStepLimits(iMinStep, iMaxStep);
+
+        // Configure the stopping criteria.
+        cnewm.setMaxDisplacement(iMaxDisplacement);
+        cnewm.setMaxSteps(iMaxSteps);
+        cnewm.setTimeLimit(iTimeLimit);
+
+        // Let's go!
+        cnewm.compute();
+
+        iStepCount = cnewm.getStepCount();
+        iRejectedStepCount = cnewm.getRejectedStepCount();
+        iSnapshotCount = cnewm.getSnapshotCount();
+        iDiffusionTime = cnewm.getDiffusionTime();
+        iStopReason = cnewm.getStopReason();
+    }
+
+    /**
+     * Creates the diffusion algorithm for the given grid.
+     * 
+     * @param aGrid
+     *            the grid
+     * @return the diffusion algorithm
+     */
+    protected CartogramNewman createNewman(CartogramGrid aGrid) {
+        return new CartogramNewman(aGrid);
+    }
+
+    /**
+     * Returns the diffusion precision for the report.
+     * 
+     * @return the precision
+     */
+    protected String getPrecision() {
+        return "double";
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Diffusion precision: ");
+        builder.append(getPrecision());
+        builder.append('\n');
+        builder.append("Precomputed velocity field: ");
+        builder.append(iPrecomputeVelocity ? "yes" : "no");
+        builder.append('\n');
+        builder.append("Step controller: ");
+        builder.append(iStepController);
+        builder.append('\n');
+        if (iStepController == CartogramNewman.StepController.PI) {
+            builder.append("Time step limits: ");
+            builder.append(iMinStep);
+            builder.append(" to ");
+            builder.append(iMaxStep);
+            builder.append('\n');
+        }
+        builder.append("Diffusion steps: ");
+        builder.append(iStepCount);
+        builder.append(" accepted, ");
+        builder.append(iRejectedStepCount);
+        builder.append(" rejected\n");
+        builder.append("Density snapshots: ");
+        builder.append(iSnapshotCount);
+        builder.append('\n');
+        builder.append("Diffusion time: ");
+        builder.append(iDiffusionTime);
+        builder.append(" ms\n");
+        builder.append("Diffusion stopped: ");
+        builder.append(iStopReason);
+        builder.append('\n');
+        return builder.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,255 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import edu.emory.mathcs.jtransforms.dct.FloatDCT_2D;
+
+/**
+ * Single precision variant of the diffusion algorithm. The density snapshots,
+ * the transformed density and the velocity fields are stored as floats, which
+ * halves the memory used by the diffusion grids. The velocities are still
+ * computed and the grid points integrated in double precision.
+ */
+public class CartogramNewmanFloat extends CartogramNewman {
+
+    /**
+     * Pop density at time t (five snaps needed), stored like in the double
+     * precision version.
+     */
+    private float[][] iRhot;
+
+    /**
+     * FT of initial density.
+     */
+    private float[] iFftrho;
+
+    /**
+     * The x velocities at the cell corners for each snapshot, or
+     * <code>null</code> if they are not precomputed.
+     */
+    private float[][] iVelocityX;
+
+    /**
+     * The y velocities at the cell corners for each snapshot, or
+     * <code>null</code> if they are not precomputed.
+     */
+    private float[][] iVelocityY;
+
+    /**
+     * The DCT plans, one for each snapshot of a batch.
+     */
+    private FloatDCT_2D[] iDct;
+
+    /**
+     * Constructor.
+     * 
+     * @param aCartogramGrid
+     *            the grid
+     */
+    public CartogramNewmanFloat(CartogramGrid aCartogramGrid) {
+        super(aCartogramGrid);
+    }
+
+    @Override
+    protected void allocateDensityArrays() {
+        iRhot = new float[5][iGridSize[0] * iGridSize[1]];
+        iFftrho = new float[iGridSize[0] * iGridSize[1]];
+        iDct = new FloatDCT_2D[BATCH_SIZE];
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            iDct[k] = new FloatDCT_2D(iGridSize[0], iGridSize[1]);
+        }
+        if (iPrecomputeVelocity) {
+            int corners = (iGridSize[0] + 1) * (iGridSize[1] + 1);
+            iVelocityX = new float[5][corners];
+            iVelocityY = new float[5][corners];
+        } else {
+            iVelocityX = null;
+            iVelocityY = null;
+        }
+    }
+
+    @Override
+    protected void fillDiffusionGrid(double[] aValue) {
+        int i = 0;
+        for (int x = 0; x < iGridSize[0]; x++) {
+            for (int y = 0; y < iGridSize[1]; y++) {
+                iFftrho[i++] = (float) aValue[y * iGridSize[0] + x];
+            }
+        }
+    }
+
+    @Override
+    protected void transformInitialDensity() {
+        iDct[0].forward(iFftrho, false);
+    }
+
+    @Override
+    protected void multiplySnapshots(double[] aT, int[] aS, int aFromX,
+            int aToX) {
+        int count = aT.length;
+        float[][] rho = new float[count][];
+        for (int k = 0; k < count; k++) {
+            rho[k] = iRhot[aS[k]];
+        }
+
+        double kx;
+        double[] expkx = new double[count];
+        int i = aFromX * iGridSize[1];
+        for (int x = aFromX; x < aToX; x++) {
+            kx = Math.PI * x / iGridSize[0];
+            for (int k = 0; k < count; k++) {
+                expkx[k] = Math.exp(-kx * kx * aT[k]);
+            }
+            for (int y = 0; y < iGridSize[1]; y++) {
+                float fftrho = iFftrho[i];
+                for (int k = 0; k < count; k++) {
+                    rho[k][i] = (float) (expkx[k] * iExpky[k][y] * fftrho);
+                }
+                i++;
+            }
+        }
+    }
+
+    @Override
+    protected void inverseSnapshot(int aPlan, int aS) {
+        iDct[aPlan].inverse(iRhot[aS], false);
+
+        if (iVelocityX != null) {
+            computeVelocityField(aS);
+        }
+    }
+
+    /**
+     * Computes the velocities at all the cell corners for the given snapshot,
+     * like the double precision version.
+     * 
+     * @param aS
+     *            the snapshot
+     */
+    private void computeVelocityField(int aS) {
+        float[] rho = iRhot[aS];
+        float[] velocityX = iVelocityX[aS];
+        float[] velocityY = iVelocityY[aS];
+
+        int i = 0;
+        for (int y = 0; y <= iGridSize[1]; y++) {
+            int ya = Math.max(0, y - 1);
+            int yb = Math.min(y, iGridSize[1] - 1);
+            for (int x = 0; x <= iGridSize[0]; x++) {
+                int xa = Math.max(0, x - 1) * iGridSize[1];
+                int xb = Math.min(x, iGridSize[0] - 1) * iGridSize[1];
+
+                double rhoaa = rho[xa + ya];
+                double rhoba = rho[xb + ya];
+                double rhoab = rho[xa + yb];
+                double rhobb = rho[xb + yb];
+
+                double mid = rhoaa + rhoba + rhoab + rhobb;
+                velocityX[i] = (float) (-2.0
+                        * (rhoba - rhoaa + rhobb - rhoab) / mid);
+                velocityY[i] = (float) (-2.0
+                        * (rhoab - rhoaa + rhobb - rhoba) / mid);
+                i++;
+            }
+        }
+    }
+
+    @Override
+    protected void stencilVelocity(double aDx, double aDy, int aIx, int aIy,
+            int aS, double[] aVelocity) {
+        int ixm1 = Math.max(0, aIx - 1);
+        int ixp1 = Math.min(aIx + 1, iGridSize[0] - 1);
+        int iym1 = Math.max(0, aIy - 1);
+        int iyp1 = Math.min(aIy + 1, iGridSize[1] - 1);
+
+        // Calculate the densities at the nine surrounding grid points
+        float[] rho = iRhot[aS];
+        int row0 = ixm1 * iGridSize[1];
+        int row1 = aIx * iGridSize[1];
+        int row2 = ixp1 * iGridSize[1];
+        double rho00 = rho[row0 + iym1];
+        double rho10 = rho[row1 + iym1];
+        double rho20 = rho[row2 + iym1];
+        double rho01 = rho[row0 + aIy];
+        double rho11 = rho[row1 + aIy];
+        double rho21 = rho[row2 + aIy];
+        double rho02 = rho[row0 + iyp1];
+        double rho12 = rho[row1 + iyp1];
+        double rho22 = rho[row2 + iyp1];
+
+        // Calculate velocities at the four surrounding grid points
+
+        double mid11 = rho00 + rho10 + rho01 + rho11;
+        double vx11 = -2.0 * (rho10 - rho00 + rho11 - rho01) / mid11;
+        double vy11 = -2.0 * (rho01 - rho00 + rho11 - rho10) / mid11;
+
+        double mid21 = rho10 + rho20 + rho11 + rho21;
+        double vx21 = -2.0 * (rho20 - rho10 + rho21 - rho11) / mid21;
+        double vy21 = -2.0 * (rho11 - rho10 + rho21 - rho20) / mid21;
+
+        double mid12 = rho01 + rho11 + rho02 + rho12;
+        double vx12 = -2.0 * (rho11 - rho01 + rho12 - rho02) / mid12;
+        double vy12 = -2.0 * (rho02 - rho01 + rho12 - rho11) / mid12;
+
+        double mid22 = rho11 + rho21 + rho12 + rho22;
+        double vx22 = -2.0 * (rho21 - rho11 + rho22 - rho12) / mid22;
+        double vy22 = -2.0 * (rho12 - rho11 + rho22 - rho21) / mid22;
+
+        // Perform the bilinear interpolation
+
+        double dx1m = 1.0 - aDx;
+        double dy1m = 1.0 - aDy;
+
+        double w11 = dx1m * dy1m;
+        double w21 = aDx * dy1m;
+        double w12 = dx1m * aDy;
+        double w22 = aDx * aDy;
+
+        aVelocity[0] = w11 * vx11 + w21 * vx21 + w12 * vx12 + w22 * vx22;
+        aVelocity[1] = w11 * vy11 + w21 * vy21 + w12 * vy12 + w22 * vy22;
+    }
+
+    @Override
+    protected void interpolateVelocity(double aDx, double aDy, int aIx,
+            int aIy, int aS, double[] aVelocity) {
+        float[] velocityX = iVelocityX[aS];
+        float[] velocityY = iVelocityY[aS];
+
+        int i11 = aIy * (iGridSize[0] + 1) + aIx;
+        int i21 = i11 + 1;
+        int i12 = i11 + iGridSize[0] + 1;
+        int i22 = i12 + 1;
+
+        double dx1m = 1.0 - aDx;
+        double dy1m = 1.0 - aDy;
+
+        double w11 = dx1m * dy1m;
+        double w21 = aDx * dy1m;
+        double w12 = dx1m * aDy;
+        double w22 = aDx * aDy;
+
+        aVelocity[0] = w11 * velocityX[i11] + w21 * velocityX[i21] + w12
+                * velocityX[i12] + w22 * velocityX[i22];
+        aVelocity[1] = w11 * velocityY[i11] + w21 * velocityY[i21] + w12
+                * velocityY[i12] + w22 * velocityY[i22];
+    }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+/**
+ * The diffusion cartogram engine with single precision diffusion grids (see
+ * CartogramNewmanFloat). It needs half of the memory of the double precision
+ * engine.
+ */
+public class CartogramNewmanFloatEngine extends CartogramNewmanEngine {
+
+    /**
+     * The name of the engine.
+     */
+    public static final String NAME = "diffusion-float";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected CartogramNewman createNewman(CartogramGrid aGrid) {
+        return new CartogramNewmanFloat(aGrid);
+    }
+
+    @Override
+    protected String getPrecision() {
+        return "single";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,322 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+/**
+ * A cache of the projected positions of the points, keyed by the exact bits
+ * of their coordinates. Adjacent features share the vertices of their common
+ * borders, and the slave layers often repeat the borders of the master
+ * layer, so most of these points are projected only once.
+ * 
+ * The cache is split into stripes, each an open addressing hash table with
+ * linear probing stored in primitive arrays, and guarded by its own lock, so
+ * that the features can be projected concurrently.
+ */
+public class CartogramProjectionCache {
+
+    /**
+     * The number of stripes, a power of 2.
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * The initial capacity of a stripe, a power of 2.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 8;
+
+    /**
+     * The stripes.
+     */
+    private final Stripe[] iStripes = new Stripe[STRIPES];
+
+    /**
+     * Constructor of an empty cache.
+     */
+    public CartogramProjectionCache() {
+        for (int k = 0; k < STRIPES; k++) {
+            iStripes[k] = new Stripe();
+        }
+    }
+
+    /**
+     * Looks for the projected position of a point.
+     * 
+     * @param aX
+     *            the x coordinate of the point
+     * @param aY
+     *            the y coordinate of the point
+     * @param aOutX
+     *            receives the projected x coordinate if the point is found
+     * @param aIndexX
+     *            the index of the x coordinate in aOutX
+     * @param aOutY
+     *            receives the projected y coordinate if the point is found
+     * @param aIndexY
+     *            the index of the y coordinate in aOutY
+     * @return <code>true</code> if the point is in the cache
+     */
+    public boolean get(double aX, double aY, double[] aOutX, int aIndexX,
+            double[] aOutY, int aIndexY) {
+        long keyX = Double.doubleToLongBits(aX);
+        long keyY = Double.doubleToLongBits(aY);
+        int hash = hash(keyX, keyY);
+        Stripe stripe = iStripes[hash >>> 26];
+        synchronized (stripe) {
+            stripe.iLookups++;
+            int slot = stripe.find(keyX, keyY, hash);
+            if (slot < 0) {
+                return false;
+            }
+            stripe.iHits++;
+            aOutX[aIndexX] = stripe.iValueX[slot];
+            aOutY[aIndexY] = stripe.iValueY[slot];
+            return true;
+        }
+    }
+
+    /**
+     * Adds the projected position of a point. Nothing is done if another
+     * thread added the point in the meantime.
+     * 
+     * @param aX
+     *            the x coordinate of the point
+     * @param aY
+     *            the y coordinate of the point
+     * @param aProjectedX
+     *            the projected x coordinate
+     * @param aProjectedY
+     *            the projected y coordinate
+     */
+    public void put(double aX, double aY, double aProjectedX,
+            double aProjectedY) {
+        long keyX = Double.doubleToLongBits(aX);
+        long keyY = Double.doubleToLongBits(aY);
+        int hash = hash(keyX, keyY);
+        Stripe stripe = iStripes[hash >>> 26];
+        synchronized (stripe) {
+            int slot = stripe.find(keyX, keyY, hash);
+            if (slot < 0) {
+                stripe.insert(-slot - 1, keyX, keyY, aProjectedX, aProjectedY);
+            }
+        }
+    }
+
+    /**
+     * @return the number of points in the cache
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : iStripes) {
+            synchronized (stripe) {
+                size += stripe.iSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of lookups
+     */
+    public long getLookups() {
+        long lookups = 0;
+        for (Stripe stripe : iStripes) {
+            synchronized (stripe) {
+                lookups += stripe.iLookups;
+            }
+        }
+        return lookups;
+    }
+
+    /**
+     * @return the number of lookups finding the point
+     */
+    public long getHits() {
+        long hits = 0;
+        for (Stripe stripe : iStripes) {
+            synchronized (stripe) {
+                hits += stripe.iHits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Mixes the bits of the coordinates, so that the points of a regular
+     * pattern spread over the stripes and their slots.
+     * 
+     * @param aKeyX
+     *            the bits of the x coordinate
+     * @param aKeyY
+     *            the bits of the y coordinate
+     * @return the hash
+     */
+    private static int hash(long aKeyX, long aKeyY) {
+        long h = aKeyX * 0x9E3779B97F4A7C15L + aKeyY;
+        h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return (int) h;
+    }
+
+    /**
+     * A stripe of the cache. The slots are chosen by the low bits of the
+     * hash, the stripe by its high bits.
+     */
+    private static class Stripe {
+
+        /**
+         * The bits of the x coordinates of the points.
+         */
+        long[] iKeyX;
+
+        /**
+         * The bits of the y coordinates of the points.
+         */
+        long[] iKeyY;
+
+        /**
+         * The projected x coordinates.
+         */
+        double[] iValueX;
+
+        /**
+         * The projected y coordinates.
+         */
+        double[] iValueY;
+
+        /**
+         * The used slots.
+         */
+        boolean[] iUsed;
+
+        /**
+         * The number of points in the stripe.
+         */
+        int iSize = 0;
+
+        /**
+         * The number of lookups.
+         */
+        long iLookups = 0;
+
+        /**
+         * The number of lookups finding the point.
+         */
+        long iHits = 0;
+
+        /**
+         * Constructor of an empty stripe.
+         */
+        Stripe() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Looks for a point.
+         * 
+         * @param aKeyX
+         *            the bits of the x coordinate
+         * @param aKeyY
+         *            the bits of the y coordinate
+         * @param aHash
+         *            the hash of the point
+         * @return the slot of the point if it is in the stripe, or
+         *         <code>(-(insertion slot) - 1)</code> if it is not
+         */
+        int find(long aKeyX, long aKeyY, int aHash) {
+            int mask = iUsed.length - 1;
+            int slot = aHash & mask;
+            while (iUsed[slot]) {
+                if (iKeyX[slot] == aKeyX && iKeyY[slot] == aKeyY) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+
+        /**
+         * Inserts a point in a free slot.
+         * 
+         * @param aSlot
+         *            the free slot
+         * @param aKeyX
+         *            the bits of the x coordinate
+         * @param aKeyY
+         *            the bits of the y coordinate
+         * @param aProjectedX
+         *            the projected x coordinate
+         * @param aProjectedY
+         *            the projected y coordinate
+         */
+        void insert(int aSlot, long aKeyX, long aKeyY, double aProjectedX,
+                double aProjectedY) {
+            iKeyX[aSlot] = aKeyX;
+            iKeyY[aSlot] = aKeyY;
+            iValueX[aSlot] = aProjectedX;
+            iValueY[aSlot] = aProjectedY;
+            iUsed[aSlot] = true;
+            iSize++;
+
+            // Keep the load factor under 1/2.
+            if (2 * iSize > iUsed.length) {
+                rehash();
+            }
+        }
+
+        /**
+         * Allocates the arrays.
+         * 
+         * @param aCapacity
+         *            the number of slots, a power of 2
+         */
+        private void allocate(int aCapacity) {
+            iKeyX = new long[aCapacity];
+            iKeyY = new long[aCapacity];
+            iValueX = new double[aCapacity];
+            iValueY = new double[aCapacity];
+            iUsed = new boolean[aCapacity];
+        }
+
+        /**
+         * Doubles the capacity and inserts the points again.
+         */
+        private void rehash() {
+            long[] keyX = iKeyX;
+            long[] keyY = iKeyY;
+            double[] valueX = iValueX;
+            double[] valueY = iValueY;
+            boolean[] used = iUsed;
+            allocate(2 * used.length);
+            for (int k = 0; k < used.length; k++) {
+                if (used[k]) {
+                    int slot = -find(keyX[k], keyY[k],
+                            hash(keyX[k], keyY[k])) - 1;
+                    iKeyX[slot] = keyX[k];
+                    iKeyY[slot] = keyY[k];
+                    iValueX[slot] = valueX[k];
+                    iValueY[slot] = valueY[k];
+                    iUsed[slot] = true;
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,769 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Finds the grid cells whose centre lies inside a geometry, one row of cells
+ * at a time. For polygons and multipolygons, the rings are intersected with
+ * the horizontal line through the cell centres and the cells between the
+ * crossings are inside (even-odd rule), which costs O(vertices) per row
+ * instead of O(vertices) per cell. The result is the same as the one of
+ * Geometry.contains for the cell centre: the cells whose centre is on or very
+ * close to the boundary, the rows passing through a vertex and the other
+ * geometry types are tested with JTS.
+ * 
+ * The rasterizer also computes the fraction of each cell covered by a
+ * polygonal geometry. The rings are clipped to the row of cells
+ * (Sutherland-Hodgman), and the area of the clipped rings is distributed to
+ * the cells by integrating y dx along their edges. The vertical cell sides
+ * have dx = 0 and need not be clipped.
+ * 
+ * Finally, it marks the cells touched by any geometry (supercover), by walking
+ * its segments row by row and filling the polygon interiors by scanlines.
+ */
+public class CartogramRasterizer {
+
+    /**
+     * The geometry.
+     */
+    private Geometry iGeometry;
+
+    /**
+     * The rings of each polygon, the shell first. The coordinates of a ring
+     * are stored as x0, y0, x1, y1... with the first point repeated at the
+     * end. <code>null</code> if the geometry is not polygonal.
+     */
+    private double[][][] iRings;
+
+    /**
+     * The sign of the area of each ring, 1 for a shell and -1 for a hole
+     * whatever the ring orientation.
+     */
+    private double[][] iRingSigns;
+
+    /**
+     * The minimum y coordinate of each ring.
+     */
+    private double[][] iRingMinY;
+
+    /**
+     * The maximum y coordinate of each ring.
+     */
+    private double[][] iRingMaxY;
+
+    /**
+     * The x coordinate of the grid envelope.
+     */
+    private double iMinX;
+
+    /**
+     * The y coordinate of the grid envelope.
+     */
+    private double iMinY;
+
+    /**
+     * The cell size in x.
+     */
+    private double iCellSizeX;
+
+    /**
+     * The cell size in y.
+     */
+    private double iCellSizeY;
+
+    /**
+     * The distance between a cell centre and a crossing below which the cell
+     * is tested with JTS.
+     */
+    private double iTolerance;
+
+    /**
+     * The margin added around the segments when finding the cells they touch,
+     * so that the cells only touched at a corner or a side are not missed.
+     */
+    private double iMargin;
+
+    /**
+     * The factory of the cell centre points tested with JTS.
+     */
+    private GeometryFactory iFactory = new GeometryFactory();
+
+    /**
+     * Constructor.
+     * 
+     * @param aGeometry
+     *            the geometry
+     * @param aEnvelope
+     *            the envelope of the grid
+     * @param aCellSize
+     *            the cell size in x and y
+     */
+    public CartogramRasterizer(Geometry aGeometry, Envelope aEnvelope,
+            double[] aCellSize) {
+        iGeometry = aGeometry;
+        iMinX = aEnvelope.getMinX();
+        iMinY = aEnvelope.getMinY();
+        iCellSizeX = aCellSize[0];
+        iCellSizeY = aCellSize[1];
+        iTolerance = 1e-9 * Math.max(
+                Math.max(Math.abs(aEnvelope.getMinX()),
+                        Math.abs(aEnvelope.getMaxX())), iCellSizeX);
+        iMargin = 1e-9 * Math.max(
+                Math.max(Math.max(Math.abs(aEnvelope.getMinX()),
+                        Math.abs(aEnvelope.getMaxX())), Math.max(
+                        Math.abs(aEnvelope.getMinY()),
+                        Math.abs(aEnvelope.getMaxY()))), Math.max(
+                        iCellSizeX, iCellSizeY));
+
+        if (aGeometry instanceof Polygon) {
+            iRings = new double[][][] { rings((Polygon) aGeometry) };
+        } else if (aGeometry instanceof MultiPolygon) {
+            int count = aGeometry.getNumGeometries();
+            iRings = new double[count][][];
+            for (int k = 0; k < count; k++) {
+                iRings[k] = rings((Polygon) aGeometry.getGeometryN(k));
+            }
+        }
+
+        if (iRings != null) {
+            iRingSigns = new double[iRings.length][];
+            iRingMinY = new double[iRings.length][];
+            iRingMaxY = new double[iRings.length][];
+            for (int p = 0; p < iRings.length; p++) {
+                int count = iRings[p].length;
+                iRingSigns[p] = new double[count];
+                iRingMinY[p] = new double[count];
+                iRingMaxY[p] = new double[count];
+                for (int r = 0; r < count; r++) {
+                    double[] ring = iRings[p][r];
+                    double orientation = signedArea(ring) >= 0 ? 1 : -1;
+                    iRingSigns[p][r] = r == 0 ? orientation : -orientation;
+                    iRingMinY[p][r] = Double.POSITIVE_INFINITY;
+                    iRingMaxY[p][r] = Double.NEGATIVE_INFINITY;
+                    for (int k = 1; k < ring.length; k += 2) {
+                        iRingMinY[p][r] = Math.min(iRingMinY[p][r], ring[k]);
+                        iRingMaxY[p][r] = Math.max(iRingMaxY[p][r], ring[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the signed area of a closed ring, positive for a
+     * counter-clockwise ring.
+     * 
+     * @param aRing
+     *            the ring coordinates
+     * @return the signed area
+     */
+    private static double signedArea(double[] aRing) {
+        double area = 0;
+        for (int k = 2; k < aRing.length; k += 2) {
+            area += (aRing[k - 2] - aRing[k]) * (aRing[k - 1] + aRing[k + 1]);
+        }
+        return area / 2;
+    }
+
+    /**
+     * Extracts the ring coordinates of a polygon.
+     * 
+     * @param aPolygon
+     *            the polygon
+     * @return the rings, the shell first
+     */
+    private static double[][] rings(Polygon aPolygon) {
+        double[][] rings = new double[aPolygon.getNumInteriorRing() + 1][];
+        rings[0] = ring(aPolygon.getExteriorRing().getCoordinates());
+        for (int k = 0; k < aPolygon.getNumInteriorRing(); k++) {
+            rings[k + 1] = ring(aPolygon.getInteriorRingN(k).getCoordinates());
+        }
+        return rings;
+    }
+
+    /**
+     * Stores the coordinates of a ring in a flat array.
+     * 
+     * @param aCoordinates
+     *            the coordinates
+     * @return the coordinates as x0, y0, x1, y1...
+     */
+    private static double[] ring(Coordinate[] aCoordinates) {
+        double[] ring = new double[2 * aCoordinates.length];
+        for (int k = 0; k < aCoordinates.length; k++) {
+            ring[2 * k] = aCoordinates[k].x;
+            ring[2 * k + 1] = aCoordinates[k].y;
+        }
+        return ring;
+    }
+
+    /**
+     * Returns the x coordinate of the centre of a cell, computed like in the
+     * cartogram grid.
+     * 
+     * @param aI
+     *            the cell index in x
+     * @return the x coordinate
+     */
+    private double centreX(int aI) {
+        return iMinX + aI * iCellSizeX + iCellSizeX / 2;
+    }
+
+    /**
+     * Returns the y coordinate of the centre of a cell.
+     * 
+     * @param aJ
+     *            the cell index in y
+     * @return the y coordinate
+     */
+    private double centreY(int aJ) {
+        return iMinY + aJ * iCellSizeY + iCellSizeY / 2;
+    }
+
+    /**
+     * Tests a cell centre with JTS.
+     * 
+     * @param aI
+     *            the cell index in x
+     * @param aJ
+     *            the cell index in y
+     * @return <code>true</code> if the geometry contains the cell centre
+     */
+    private boolean contains(int aI, int aJ) {
+        return iGeometry.contains(iFactory.createPoint(new Coordinate(
+                centreX(aI), centreY(aJ))));
+    }
+
+    /**
+     * Finds the cells of a row whose centre is inside the geometry. This
+     * method can be called concurrently.
+     * 
+     * @param aJ
+     *            the row (cell index in y)
+     * @param aMinI
+     *            the first cell index in x
+     * @param aMaxI
+     *            the last cell index in x
+     * @param aInside
+     *            receives for each cell from aMinI to aMaxI whether it is
+     *            inside, at the index i - aMinI
+     */
+    public void rasterizeRow(int aJ, int aMinI, int aMaxI, boolean[] aInside) {
+        Arrays.fill(aInside, 0, aMaxI - aMinI + 1, false);
+
+        double y = centreY(aJ);
+        if (iRings == null || passesThroughVertex(y)) {
+            for (int i = aMinI; i <= aMaxI; i++) {
+                aInside[i - aMinI] = contains(i, aJ);
+            }
+            return;
+        }
+
+        for (double[][] polygon : iRings) {
+            double[] shell = crossings(polygon[0], y);
+            double[][] holes = new double[polygon.length - 1][];
+            for (int k = 1; k < polygon.length; k++) {
+                holes[k - 1] = crossings(polygon[k], y);
+            }
+
+            // The shell spans between pairs of crossings.
+            for (int k = 0; k + 1 < shell.length; k += 2) {
+                double a = shell[k];
+                double b = shell[k + 1];
+                int i = Math.max(aMinI,
+                        (int) Math.floor((a - iMinX) / iCellSizeX - 0.5));
+                for (; i <= aMaxI; i++) {
+                    double x = centreX(i);
+                    if (x > b + iTolerance) {
+                        break;
+                    }
+                    if (x < a - iTolerance || aInside[i - aMinI]) {
+                        continue;
+                    }
+
+                    if (x - a <= iTolerance || b - x <= iTolerance) {
+                        aInside[i - aMinI] = contains(i, aJ);
+                        continue;
+                    }
+
+                    // Inside the shell, check the holes.
+                    int holeState = holeState(holes, x);
+                    if (holeState < 0) {
+                        aInside[i - aMinI] = contains(i, aJ);
+                    } else {
+                        aInside[i - aMinI] = holeState == 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a horizontal line passes through a vertex of the
+     * geometry. The crossings of such a line are ambiguous.
+     * 
+     * @param aY
+     *            the y coordinate of the line
+     * @return <code>true</code> if a vertex is on the line
+     */
+    private boolean passesThroughVertex(double aY) {
+        for (double[][] polygon : iRings) {
+            for (double[] ring : polygon) {
+                for (int k = 1; k < ring.length; k += 2) {
+                    if (ring[k] == aY) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the sorted x coordinates of the crossings of a ring with a
+     * horizontal line. An edge is crossed if one end is above the line and
+     * the other one is not.
+     * 
+     * @param aRing
+     *            the ring coordinates
+     * @param aY
+     *            the y coordinate of the line
+     * @return the x coordinates of the crossings
+     */
+    private static double[] crossings(double[] aRing, double aY) {
+        double[] crossings = new double[aRing.length / 2];
+        int count = 0;
+        for (int k = 2; k < aRing.length; k += 2) {
+            double x0 = aRing[k - 2];
+            double y0 = aRing[k - 1];
+            double x1 = aRing[k];
+            double y1 = aRing[k + 1];
+            if ((y0 > aY) != (y1 > aY)) {
+                crossings[count++] = x0 + (aY - y0) * (x1 - x0) / (y1 - y0);
+            }
+        }
+        double[] sorted = Arrays.copyOf(crossings, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Checks whether a point of the current row is inside one of the holes.
+     * 
+     * @param aHoles
+     *            the sorted crossings of each hole with the row
+     * @param aX
+     *            the x coordinate of the point
+     * @return 0 if the point is outside all the holes, 1 if it is inside a
+     *         hole, -1 if it is too close to a hole boundary to decide
+     */
+    private int holeState(double[][] aHoles, double aX) {
+        int state = 0;
+        for (double[] hole : aHoles) {
+            int index = Arrays.binarySearch(hole, aX);
+            if (index >= 0) {
+                return -1;
+            }
+            index = -index - 1;
+            if ((index > 0 && aX - hole[index - 1] <= iTolerance)
+                    || (index < hole.length && hole[index] - aX <= iTolerance)) {
+                return -1;
+            }
+            if (index % 2 == 1) {
+                state = 1;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Computes the fraction of each cell of a row covered by the geometry.
+     * Only polygonal geometries cover an area; for the other geometries the
+     * fraction is 1 if the geometry contains the cell centre and 0 otherwise.
+     * This method can be called concurrently.
+     * 
+     * @param aJ
+     *            the row (cell index in y)
+     * @param aMinI
+     *            the first cell index in x
+     * @param aMaxI
+     *            the last cell index in x
+     * @param aCoverage
+     *            receives for each cell from aMinI to aMaxI the covered
+     *            fraction between 0 and 1, at the index i - aMinI
+     */
+    public void coverageRow(int aJ, int aMinI, int aMaxI, double[] aCoverage) {
+        int count = aMaxI - aMinI + 1;
+        Arrays.fill(aCoverage, 0, count, 0.0);
+
+        if (iRings == null) {
+            boolean[] inside = new boolean[count];
+            rasterizeRow(aJ, aMinI, aMaxI, inside);
+            for (int i = 0; i < count; i++) {
+                aCoverage[i] = inside[i] ? 1.0 : 0.0;
+            }
+            return;
+        }
+
+        double minY = iMinY + aJ * iCellSizeY;
+        double maxY = minY + iCellSizeY;
+        for (int p = 0; p < iRings.length; p++) {
+            for (int r = 0; r < iRings[p].length; r++) {
+                if (iRingMaxY[p][r] <= minY || iRingMinY[p][r] >= maxY) {
+                    continue;
+                }
+
+                // Clip the ring to the row and integrate along its edges.
+                double[] ring = clip(iRings[p][r], minY, true);
+                ring = clip(ring, maxY, false);
+                integrate(ring, minY, iRingSigns[p][r], aMinI, aMaxI,
+                        aCoverage);
+            }
+        }
+
+        // Convert the areas into fractions.
+        double cellArea = iCellSizeX * iCellSizeY;
+        for (int i = 0; i < count; i++) {
+            aCoverage[i] = Math.min(Math.max(aCoverage[i] / cellArea, 0.0),
+                    1.0);
+        }
+    }
+
+    /**
+     * Clips a closed ring with a horizontal line (Sutherland-Hodgman). The
+     * result is a closed ring, possibly with edges along the line, whose
+     * area is the area of the part of the ring on the kept side.
+     * 
+     * @param aRing
+     *            the ring coordinates
+     * @param aY
+     *            the y coordinate of the line
+     * @param aKeepAbove
+     *            <code>true</code> to keep the part above the line,
+     *            <code>false</code> for the part below
+     * @return the clipped ring coordinates
+     */
+    private static double[] clip(double[] aRing, double aY, boolean aKeepAbove) {
+        int points = aRing.length / 2;
+        double[] clipped = new double[4 * points + 2];
+        int count = 0;
+        for (int k = 2; k < aRing.length; k += 2) {
+            double x0 = aRing[k - 2];
+            double y0 = aRing[k - 1];
+            double x1 = aRing[k];
+            double y1 = aRing[k + 1];
+            boolean inside0 = aKeepAbove ? y0 >= aY : y0 <= aY;
+            boolean inside1 = aKeepAbove ? y1 >= aY : y1 <= aY;
+            if (inside0 != inside1) {
+                clipped[count++] = x0 + (aY - y0) * (x1 - x0) / (y1 - y0);
+                clipped[count++] = aY;
+            }
+            if (inside1) {
+                clipped[count++] = x1;
+                clipped[count++] = y1;
+            }
+        }
+
+        // Close the ring.
+        if (count > 0) {
+            clipped[count++] = clipped[0];
+            clipped[count++] = clipped[1];
+        }
+        return Arrays.copyOf(clipped, count);
+    }
+
+    /**
+     * Adds the signed area of a ring clipped to a row to the cells it covers.
+     * The area of the part left of x = c is the integral of -(y - y0) dx
+     * along the edges left of c, so each piece of edge adds its integral to
+     * the cell containing it.
+     * 
+     * @param aRing
+     *            the clipped ring coordinates
+     * @param aMinY
+     *            the y coordinate of the bottom of the row
+     * @param aSign
+     *            the sign of the ring area
+     * @param aMinI
+     *            the first cell index in x
+     * @param aMaxI
+     *            the last cell index in x
+     * @param aArea
+     *            the cell areas, at the index i - aMinI
+     */
+    private void integrate(double[] aRing, double aMinY, double aSign,
+            int aMinI, int aMaxI, double[] aArea) {
+        for (int k = 2; k < aRing.length; k += 2) {
+            double xa = aRing[k - 2];
+            double ya = aRing[k - 1] - aMinY;
+            double xb = aRing[k];
+            double yb = aRing[k + 1] - aMinY;
+            if (xa == xb) {
+                continue;
+            }
+
+            // Walk the edge from left to right; the direction gives the sign.
+            double sign = aSign;
+            if (xa > xb) {
+                double swap = xa;
+                xa = xb;
+                xb = swap;
+                swap = ya;
+                ya = yb;
+                yb = swap;
+            } else {
+                sign = -sign;
+            }
+            double slope = (yb - ya) / (xb - xa);
+
+            int first = Math.max(aMinI,
+                    (int) Math.floor((xa - iMinX) / iCellSizeX));
+            int last = Math.min(aMaxI,
+                    (int) Math.floor((xb - iMinX) / iCellSizeX));
+            for (int i = first; i <= last; i++) {
+                double left = Math.max(xa, iMinX + i * iCellSizeX);
+                double right = Math.min(xb, iMinX + (i + 1) * iCellSizeX);
+                if (right > left) {
+                    double yLeft = ya + (left - xa) * slope;
+                    double yRight = ya + (right - xa) * slope;
+                    aArea[i - aMinI] += sign * (right - left)
+                            * (yLeft + yRight) / 2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the cells touched by the geometry, i.e. the cells whose closed
+     * rectangle intersects it. The segments of the geometry are walked row by
+     * row, marking the cells between the points where they enter and leave
+     * each row; the cells inside a polygon without any segment are found with
+     * the scanline rasterization of the cell centres. A cell touched only at a
+     * corner or a side is marked; the margin may mark a cell which is less
+     * than 1e-9 cell away from the geometry. The interior is only filled for
+     * polygons and multipolygons, the other geometries only mark their
+     * segments and points.
+     * 
+     * @param aCells
+     *            the cell values, row by row: the cell (i, j) is at the index
+     *            j * aCellsX + i
+     * @param aCellsX
+     *            the number of cells in x
+     * @param aMinI
+     *            the first cell index in x
+     * @param aMaxI
+     *            the last cell index in x
+     * @param aMinJ
+     *            the first cell index in y
+     * @param aMaxJ
+     *            the last cell index in y
+     * @param aFree
+     *            the value of the cells which can be marked
+     * @param aMark
+     *            the value of the marked cells
+     */
+    public void markTouchedCells(short[] aCells, int aCellsX, int aMinI,
+            int aMaxI, int aMinJ, int aMaxJ, short aFree, short aMark) {
+        if (aMaxI < aMinI || aMaxJ < aMinJ) {
+            return;
+        }
+
+        // The cells crossed by the boundary or the lines.
+        int[] range = { aMinI, aMaxI, aMinJ, aMaxJ };
+        markGeometry(iGeometry, aCells, aCellsX, range, aFree, aMark);
+
+        // The cells inside the polygons.
+        if (iRings != null) {
+            boolean[] inside = new boolean[aMaxI - aMinI + 1];
+            for (int j = aMinJ; j <= aMaxJ; j++) {
+                rasterizeRow(j, aMinI, aMaxI, inside);
+                int row = j * aCellsX;
+                for (int i = aMinI; i <= aMaxI; i++) {
+                    if (inside[i - aMinI] && aCells[row + i] == aFree) {
+                        aCells[row + i] = aMark;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the cells crossed by the segments of a geometry.
+     * 
+     * @param aGeometry
+     *            the geometry
+     * @param aCells
+     *            the cell values, row by row: the cell (i, j) is at the index
+     *            j * aCellsX + i
+     * @param aCellsX
+     *            the number of cells in x
+     * @param aRange
+     *            the first and last cell indexes in x and in y
+     * @param aFree
+     *            the value of the cells which can be marked
+     * @param aMark
+     *            the value of the marked cells
+     */
+    private void markGeometry(Geometry aGeometry, short[] aCells,
+            int aCellsX, int[] aRange, short aFree, short aMark) {
+        if (aGeometry instanceof Polygon) {
+            Polygon polygon = (Polygon) aGeometry;
+            markLine(polygon.getExteriorRing().getCoordinates(), aCells,
+                    aCellsX, aRange, aFree, aMark);
+            for (int k = 0; k < polygon.getNumInteriorRing(); k++) {
+                markLine(polygon.getInteriorRingN(k).getCoordinates(), aCells,
+                        aCellsX, aRange, aFree, aMark);
+            }
+        } else if (aGeometry instanceof LineString
+                || aGeometry instanceof Point) {
+            markLine(aGeometry.getCoordinates(), aCells, aCellsX, aRange,
+                    aFree, aMark);
+        } else {
+            for (int k = 0; k < aGeometry.getNumGeometries(); k++) {
+                markGeometry(aGeometry.getGeometryN(k), aCells, aCellsX,
+                        aRange, aFree, aMark);
+            }
+        }
+    }
+
+    /**
+     * Marks the cells crossed by a line, or by a single point.
+     * 
+     * @param aCoordinates
+     *            the coordinates of the line
+     * @param aCells
+     *            the cell values, row by row: the cell (i, j) is at the index
+     *            j * aCellsX + i
+     * @param aCellsX
+     *            the number of cells in x
+     * @param aRange
+     *            the first and last cell indexes in x and in y
+     * @param aFree
+     *            the value of the cells which can be marked
+     * @param aMark
+     *            the value of the marked cells
+     */
+    private void markLine(Coordinate[] aCoordinates, short[] aCells,
+            int aCellsX, int[] aRange, short aFree, short aMark) {
+        if (aCoordinates.length == 1) {
+            markSegment(aCoordinates[0], aCoordinates[0], aCells, aCellsX,
+                    aRange, aFree, aMark);
+        }
+        for (int k = 1; k < aCoordinates.length; k++) {
+            markSegment(aCoordinates[k - 1], aCoordinates[k], aCells,
+                    aCellsX, aRange, aFree, aMark);
+        }
+    }
+
+    /**
+     * Marks the cells crossed by a segment. For each row spanned by the
+     * segment, the segment is clipped to the row and the cells between the
+     * ends of the clipped part are marked.
+     * 
+     * @param aA
+     *            the first point
+     * @param aB
+     *            the second point
+     * @param aCells
+     *            the cell values, row by row: the cell (i, j) is at the index
+     *            j * aCellsX + i
+     * @param aCellsX
+     *            the number of cells in x
+     * @param aRange
+     *            the first and last cell indexes in x and in y
+     * @param aFree
+     *            the value of the cells which can be marked
+     * @param aMark
+     *            the value of the marked cells
+     */
+    private void markSegment(Coordinate aA, Coordinate aB, short[] aCells,
+            int aCellsX, int[] aRange, short aFree, short aMark) {
+        double minY = Math.min(aA.y, aB.y);
+        double maxY = Math.max(aA.y, aB.y);
+        int firstJ = Math.max(aRange[2], firstCell(minY - iMinY, iCellSizeY));
+        int lastJ = Math.min(aRange[3], lastCell(maxY - iMinY, iCellSizeY));
+        for (int j = firstJ; j <= lastJ; j++) {
+            // The part of the segment inside the row.
+            double xa = aA.x;
+            double xb = aB.x;
+            if (aA.y != aB.y) {
+                double bottom = Math.max(minY, iMinY + j * iCellSizeY);
+                double top = Math.min(maxY, iMinY + (j + 1) * iCellSizeY);
+                double slope = (aB.x - aA.x) / (aB.y - aA.y);
+                xa = aA.x + (bottom - aA.y) * slope;
+                xb = aA.x + (top - aA.y) * slope;
+            }
+
+            int firstI = Math.max(aRange[0],
+                    firstCell(Math.min(xa, xb) - iMinX, iCellSizeX));
+            int lastI = Math.min(aRange[1],
+                    lastCell(Math.max(xa, xb) - iMinX, iCellSizeX));
+            int row = j * aCellsX;
+            for (int i = firstI; i <= lastI; i++) {
+                if (aCells[row + i] == aFree) {
+                    aCells[row + i] = aMark;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first cell whose closed extent, enlarged by the margin,
+     * contains a distance from the grid origin: the cell to the left of a
+     * cell side.
+     * 
+     * @param aDistance
+     *            the distance from the grid origin
+     * @param aCellSize
+     *            the cell size
+     * @return the cell index, possibly out of the grid
+     */
+    private int firstCell(double aDistance, double aCellSize) {
+        return (int) Math.ceil((aDistance - iMargin) / aCellSize) - 1;
+    }
+
+    /**
+     * Returns the last cell whose closed extent, enlarged by the margin,
+     * contains a distance from the grid origin: the cell to the right of a
+     * cell side.
+     * 
+     * @param aDistance
+     *            the distance from the grid origin
+     * @param aCellSize
+     *            the cell size
+     * @return the cell index, possibly out of the grid
+     */
+    private int lastCell(double aDistance, double aCellSize) {
+        return (int) Math.floor((aDistance + iMargin) / aCellSize);
+    }
+}
\ No newline at end of file
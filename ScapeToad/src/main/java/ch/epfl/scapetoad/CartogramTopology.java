@@ -0,0 +1,613 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * The arc topology of the features of a layer, as in TopoJSON. The lines and
+ * the rings of the features are cut at the junctions, the vertices where
+ * they stop sharing the same neighbours, into arcs. The arcs shared by
+ * several features are stored once, so each border between two polygons is
+ * densified and projected only once, and the projected polygons fit exactly
+ * along their borders.
+ * 
+ * Without shared arcs, each line and ring is a single arc: the projection is
+ * then the one of {@link CartogramFeature#projectFeatureWithGrid}, run in
+ * parallel by rings, so that large multipolygons are spread over the
+ * threads too.
+ */
+public class CartogramTopology {
+
+    /**
+     * The logger.
+     */
+    private static Log logger = LogFactory.getLog(CartogramTopology.class);
+
+    /**
+     * The features.
+     */
+    private List<CartogramFeature> iFeatures;
+
+    /**
+     * The coordinates of the arcs, in their canonical direction.
+     */
+    private List<Coordinate[]> iArcs = new ArrayList<Coordinate[]>();
+
+    /**
+     * The arcs of each line and ring of the features, in the order of the
+     * geometries. An arc is given by its index, or by the complement of its
+     * index (~index) when it is used in the reverse direction.
+     */
+    private List<int[]> iSequences = new ArrayList<int[]>();
+
+    /**
+     * Constructor, builds the topology of the features.
+     * 
+     * @param aFeatures
+     *            the features
+     */
+    public CartogramTopology(List<CartogramFeature> aFeatures) {
+        this(aFeatures, true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param aFeatures
+     *            the features
+     * @param aShared
+     *            <code>true</code> to build the shared arcs,
+     *            <code>false</code> to keep each line and ring as an arc
+     */
+    public CartogramTopology(List<CartogramFeature> aFeatures, boolean aShared) {
+        iFeatures = aFeatures;
+
+        // Collect the lines and the rings.
+        List<Coordinate[]> sequences = new ArrayList<Coordinate[]>();
+        List<Boolean> rings = new ArrayList<Boolean>();
+        for (CartogramFeature feature : aFeatures) {
+            collectSequences(feature.getGeometry(), sequences, rings);
+        }
+        if (!aShared) {
+            for (int s = 0; s < sequences.size(); s++) {
+                iArcs.add(sequences.get(s));
+                iSequences.add(new int[] { s });
+            }
+            return;
+        }
+
+        // Find the junctions.
+        Map<Coordinate, Vertex> vertices = new HashMap<Coordinate, Vertex>();
+        for (int s = 0; s < sequences.size(); s++) {
+            Coordinate[] coordinates = sequences.get(s);
+            int n = coordinates.length;
+            if (rings.get(s).booleanValue()) {
+                for (int k = 0; k < n - 1; k++) {
+                    addVertex(vertices, coordinates[k],
+                            coordinates[k == 0 ? n - 2 : k - 1],
+                            coordinates[k + 1]);
+                }
+            } else if (n > 0) {
+                addVertex(vertices, coordinates[0], null, null);
+                for (int k = 1; k < n - 1; k++) {
+                    addVertex(vertices, coordinates[k], coordinates[k - 1],
+                            coordinates[k + 1]);
+                }
+                addVertex(vertices, coordinates[n - 1], null, null);
+            }
+        }
+
+        // Cut the sequences into arcs.
+        Map<List<Coordinate>, Integer> arcs = new HashMap<List<Coordinate>, Integer>();
+        for (int s = 0; s < sequences.size(); s++) {
+            Coordinate[] coordinates = sequences.get(s);
+            if (rings.get(s).booleanValue()) {
+                iSequences.add(cutRing(coordinates, vertices, arcs));
+            } else {
+                iSequences.add(cutLine(coordinates, vertices, arcs));
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct arcs
+     */
+    public int getArcCount() {
+        return iArcs.size();
+    }
+
+    /**
+     * @return the number of lines and rings of the features
+     */
+    public int getSequenceCount() {
+        return iSequences.size();
+    }
+
+    /**
+     * Projects the features. The arcs are densified and projected in
+     * parallel, then the lines and the rings are assembled from the projected
+     * arcs.
+     * 
+     * @param aGrid
+     *            the grid
+     * @param aMaxLength
+     *            the maximum segment length of the densified arcs, 0 to keep
+     *            the segments
+     * @param aExecutor
+     *            the executor projecting the arcs
+     * @return the projected features
+     * @throws InterruptedException
+     *             when the projection was interrupted
+     */
+    public List<CartogramFeature> project(final CartogramGrid aGrid,
+            final double aMaxLength, CartogramExecutor aExecutor)
+            throws InterruptedException {
+        // Project the arcs.
+        final Coordinate[][] projected = new Coordinate[iArcs.size()][];
+        int[] bounds = splitArcs(aExecutor);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                bounds.length - 1);
+        for (int k = 0; k < bounds.length - 1; k++) {
+            final int from = bounds[k];
+            final int to = bounds[k + 1];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    for (int a = from; a < to; a++) {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException(
+                                    "Computation has been interrupted by the user.");
+                        }
+                        Coordinate[] arc = iArcs.get(a);
+                        if (aMaxLength > 0) {
+                            arc = CartogramFeature.regularizeCoordinates(arc,
+                                    aMaxLength);
+                        }
+                        projected[a] = aGrid.projectCoordinates(arc);
+                    }
+                    return null;
+                }
+            });
+        }
+        aExecutor.invokeAll(tasks);
+
+        // Assemble the features.
+        List<CartogramFeature> features = new ArrayList<CartogramFeature>(
+                iFeatures.size());
+        int[] sequence = { 0 };
+        for (CartogramFeature feature : iFeatures) {
+            features.add(feature.copyWithGeometry(assemble(
+                    feature.getGeometry(), projected, sequence, aGrid)));
+        }
+        return features;
+    }
+
+    /**
+     * Splits the arcs into contiguous ranges of about the same number of
+     * points, a few for each thread.
+     * 
+     * @param aExecutor
+     *            the executor
+     * @return the range bounds, the first one is 0 and the last one is the
+     *         number of arcs
+     */
+    private int[] splitArcs(CartogramExecutor aExecutor) {
+        int total = 0;
+        for (Coordinate[] arc : iArcs) {
+            total += arc.length;
+        }
+
+        // An arc goes to the range containing its last point.
+        int[] pointBounds = aExecutor.splitRange(total);
+        int[] bounds = new int[pointBounds.length];
+        int a = 0;
+        int points = 0;
+        for (int k = 1; k < bounds.length - 1; k++) {
+            while (a < iArcs.size()
+                    && points + iArcs.get(a).length <= pointBounds[k]) {
+                points += iArcs.get(a).length;
+                a++;
+            }
+            bounds[k] = a;
+        }
+        bounds[bounds.length - 1] = iArcs.size();
+        return bounds;
+    }
+
+    /**
+     * Collects the lines and the rings of a geometry, in the order in which
+     * {@link #assemble(Geometry, Coordinate[][], int[], CartogramGrid)}
+     * consumes them.
+     * 
+     * @param aGeometry
+     *            the geometry
+     * @param aSequences
+     *            receives the coordinates of the lines and rings
+     * @param aRings
+     *            receives <code>true</code> for a ring, <code>false</code> for
+     *            a line
+     */
+    private static void collectSequences(Geometry aGeometry,
+            List<Coordinate[]> aSequences, List<Boolean> aRings) {
+        String type = aGeometry.getGeometryType();
+        if (type == "LineString") {
+            aSequences.add(aGeometry.getCoordinates());
+            aRings.add(Boolean.FALSE);
+        } else if (type == "LinearRing") {
+            aSequences.add(aGeometry.getCoordinates());
+            aRings.add(Boolean.TRUE);
+        } else if (type == "MultiLineString") {
+            for (int i = 0; i < aGeometry.getNumGeometries(); i++) {
+                collectSequences(aGeometry.getGeometryN(i), aSequences, aRings);
+            }
+        } else if (type == "Polygon") {
+            Polygon polygon = (Polygon) aGeometry;
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                collectSequences(polygon.getInteriorRingN(i), aSequences,
+                        aRings);
+            }
+            collectSequences(polygon.getExteriorRing(), aSequences, aRings);
+        } else if (type == "MultiPolygon") {
+            for (int i = 0; i < aGeometry.getNumGeometries(); i++) {
+                collectSequences(aGeometry.getGeometryN(i), aSequences, aRings);
+            }
+        }
+    }
+
+    /**
+     * Assembles the projected geometry from the projected arcs. The points
+     * are projected directly.
+     * 
+     * @param aGeometry
+     *            the original geometry
+     * @param aArcs
+     *            the projected arcs
+     * @param aSequence
+     *            the index of the next line or ring, updated
+     * @param aGrid
+     *            the grid
+     * @return the projected geometry
+     */
+    private Geometry assemble(Geometry aGeometry, Coordinate[][] aArcs,
+            int[] aSequence, CartogramGrid aGrid) {
+        GeometryFactory factory = aGeometry.getFactory();
+        String type = aGeometry.getGeometryType();
+
+        if (type == "Point") {
+            Point point = (Point) aGeometry;
+            return factory.createPoint(aGrid.projectPointAsCoordinate(
+                    point.getX(), point.getY()));
+        } else if (type == "LineString") {
+            return factory.createLineString(assembleSequence(aArcs,
+                    aSequence[0]++));
+        } else if (type == "LinearRing") {
+            return factory.createLinearRing(assembleSequence(aArcs,
+                    aSequence[0]++));
+        } else if (type == "MultiLineString") {
+            LineString[] lineStrings = new LineString[aGeometry
+                    .getNumGeometries()];
+            for (int i = 0; i < lineStrings.length; i++) {
+                lineStrings[i] = (LineString) assemble(
+                        aGeometry.getGeometryN(i), aArcs, aSequence, aGrid);
+            }
+            return factory.createMultiLineString(lineStrings);
+        } else if (type == "MultiPoint") {
+            MultiPoint multiPoint = (MultiPoint) aGeometry;
+            Point[] points = new Point[multiPoint.getNumPoints()];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = (Point) assemble(multiPoint.getGeometryN(i),
+                        aArcs, aSequence, aGrid);
+            }
+            return factory.createMultiPoint(points);
+        } else if (type == "Polygon") {
+            Polygon polygon = (Polygon) aGeometry;
+            LinearRing[] interiorRings = null;
+            int nrings = polygon.getNumInteriorRing();
+            if (nrings > 0) {
+                interiorRings = new LinearRing[nrings];
+                for (int i = 0; i < nrings; i++) {
+                    interiorRings[i] = factory
+                            .createLinearRing(assembleSequence(aArcs,
+                                    aSequence[0]++));
+                }
+            }
+            return factory.createPolygon(factory
+                    .createLinearRing(assembleSequence(aArcs, aSequence[0]++)),
+                    interiorRings);
+        } else if (type == "MultiPolygon") {
+            Polygon[] polygons = new Polygon[aGeometry.getNumGeometries()];
+            for (int i = 0; i < polygons.length; i++) {
+                polygons[i] = (Polygon) assemble(aGeometry.getGeometryN(i),
+                        aArcs, aSequence, aGrid);
+            }
+            return factory.createMultiPolygon(polygons);
+        }
+
+        logger.error("Unknown feature type");
+        return (Geometry) aGeometry.clone();
+    }
+
+    /**
+     * Assembles a projected line or ring from its projected arcs. The first
+     * point of each arc is the last point of the previous one, and is only
+     * kept once.
+     * 
+     * @param aArcs
+     *            the projected arcs
+     * @param aSequence
+     *            the index of the line or ring
+     * @return the projected coordinates
+     */
+    private Coordinate[] assembleSequence(Coordinate[][] aArcs, int aSequence) {
+        int[] arcs = iSequences.get(aSequence);
+        int count = arcs.length > 0 ? 1 : 0;
+        for (int arc : arcs) {
+            count += aArcs[arc < 0 ? ~arc : arc].length - 1;
+        }
+
+        Coordinate[] coordinates = new Coordinate[count];
+        int k = 0;
+        for (int a = 0; a < arcs.length; a++) {
+            Coordinate[] arc = aArcs[arcs[a] < 0 ? ~arcs[a] : arcs[a]];
+            int n = arc.length;
+            for (int i = a == 0 ? 0 : 1; i < n; i++) {
+                coordinates[k++] = arcs[a] < 0 ? arc[n - 1 - i] : arc[i];
+            }
+        }
+        return coordinates;
+    }
+
+    /**
+     * Records an occurrence of a vertex with its neighbours. A vertex is a
+     * junction when its neighbours differ between two occurrences, or when it
+     * ends a line.
+     * 
+     * @param aVertices
+     *            the vertices
+     * @param aCoordinate
+     *            the vertex
+     * @param aPrevious
+     *            the previous vertex, <code>null</code> at the end of a line
+     * @param aNext
+     *            the next vertex, <code>null</code> at the end of a line
+     */
+    private static void addVertex(Map<Coordinate, Vertex> aVertices,
+            Coordinate aCoordinate, Coordinate aPrevious, Coordinate aNext) {
+        Vertex vertex = aVertices.get(aCoordinate);
+        if (vertex == null) {
+            aVertices.put(aCoordinate, new Vertex(aPrevious, aNext));
+        } else if (!vertex.iJunction
+                && (aPrevious == null || !vertex.hasNeighbours(aPrevious,
+                        aNext))) {
+            vertex.iJunction = true;
+        }
+    }
+
+    /**
+     * Cuts a ring into arcs. A ring without junction is a single closed arc,
+     * starting at its smallest vertex, so that the same ring starting
+     * elsewhere gives the same arc.
+     * 
+     * @param aCoordinates
+     *            the coordinates of the ring
+     * @param aVertices
+     *            the vertices
+     * @param aArcs
+     *            the index of each arc
+     * @return the arcs of the ring
+     */
+    private int[] cutRing(Coordinate[] aCoordinates,
+            Map<Coordinate, Vertex> aVertices,
+            Map<List<Coordinate>, Integer> aArcs) {
+        int n = aCoordinates.length - 1;
+        if (n < 1) {
+            return new int[0];
+        }
+
+        int start = -1;
+        for (int k = 0; k < n && start < 0; k++) {
+            if (aVertices.get(aCoordinates[k]).iJunction) {
+                start = k;
+            }
+        }
+        if (start < 0) {
+            start = 0;
+            for (int k = 1; k < n; k++) {
+                if (aCoordinates[k].compareTo(aCoordinates[start]) < 0) {
+                    start = k;
+                }
+            }
+            List<Coordinate> arc = new ArrayList<Coordinate>(n + 1);
+            for (int k = 0; k <= n; k++) {
+                arc.add(aCoordinates[(start + k) % n]);
+            }
+            return new int[] { addArc(arc, aArcs) };
+        }
+
+        List<Integer> arcs = new ArrayList<Integer>();
+        List<Coordinate> arc = new ArrayList<Coordinate>();
+        arc.add(aCoordinates[start]);
+        for (int k = 1; k <= n; k++) {
+            Coordinate coordinate = aCoordinates[(start + k) % n];
+            arc.add(coordinate);
+            if (aVertices.get(coordinate).iJunction) {
+                arcs.add(Integer.valueOf(addArc(arc, aArcs)));
+                arc = new ArrayList<Coordinate>();
+                arc.add(coordinate);
+            }
+        }
+        return toArray(arcs);
+    }
+
+    /**
+     * Cuts a line into arcs. The ends of the line are junctions.
+     * 
+     * @param aCoordinates
+     *            the coordinates of the line
+     * @param aVertices
+     *            the vertices
+     * @param aArcs
+     *            the index of each arc
+     * @return the arcs of the line
+     */
+    private int[] cutLine(Coordinate[] aCoordinates,
+            Map<Coordinate, Vertex> aVertices,
+            Map<List<Coordinate>, Integer> aArcs) {
+        int n = aCoordinates.length;
+        if (n < 2) {
+            return new int[0];
+        }
+
+        List<Integer> arcs = new ArrayList<Integer>();
+        List<Coordinate> arc = new ArrayList<Coordinate>();
+        arc.add(aCoordinates[0]);
+        for (int k = 1; k < n; k++) {
+            arc.add(aCoordinates[k]);
+            if (aVertices.get(aCoordinates[k]).iJunction) {
+                arcs.add(Integer.valueOf(addArc(arc, aArcs)));
+                arc = new ArrayList<Coordinate>();
+                arc.add(aCoordinates[k]);
+            }
+        }
+        return toArray(arcs);
+    }
+
+    /**
+     * Adds an arc, unless it is already known in either direction. The
+     * canonical direction of an arc is the one comparing smaller, point by
+     * point, than the reverse direction.
+     * 
+     * @param aArc
+     *            the coordinates of the arc
+     * @param aArcs
+     *            the index of each arc, in its canonical direction
+     * @return the index of the arc, or its complement if the arc is reversed
+     */
+    private int addArc(List<Coordinate> aArc,
+            Map<List<Coordinate>, Integer> aArcs) {
+        int n = aArc.size();
+        int comparison = 0;
+        for (int k = 0; k < n / 2 && comparison == 0; k++) {
+            comparison = aArc.get(k).compareTo(aArc.get(n - 1 - k));
+        }
+        boolean reversed = comparison > 0;
+        List<Coordinate> arc = aArc;
+        if (reversed) {
+            arc = new ArrayList<Coordinate>(n);
+            for (int k = n - 1; k >= 0; k--) {
+                arc.add(aArc.get(k));
+            }
+        }
+
+        Integer index = aArcs.get(arc);
+        if (index == null) {
+            index = Integer.valueOf(iArcs.size());
+            aArcs.put(arc, index);
+            iArcs.add(arc.toArray(new Coordinate[n]));
+        }
+        return reversed ? ~index.intValue() : index.intValue();
+    }
+
+    /**
+     * Converts a list of arcs to an array.
+     * 
+     * @param aArcs
+     *            the arcs
+     * @return the array
+     */
+    private static int[] toArray(List<Integer> aArcs) {
+        int[] arcs = new int[aArcs.size()];
+        for (int k = 0; k < arcs.length; k++) {
+            arcs[k] = aArcs.get(k).intValue();
+        }
+        return arcs;
+    }
+
+    /**
+     * The neighbours of the first occurrence of a vertex.
+     */
+    private static class Vertex {
+
+        /**
+         * One neighbour, <code>null</code> at the end of a line.
+         */
+        private Coordinate iPrevious;
+
+        /**
+         * The other neighbour, <code>null</code> at the end of a line.
+         */
+        private Coordinate iNext;
+
+        /**
+         * <code>true</code> if the vertex is a junction.
+         */
+        boolean iJunction;
+
+        /**
+         * Constructor.
+         * 
+         * @param aPrevious
+         *            one neighbour, <code>null</code> at the end of a line
+         * @param aNext
+         *            the other neighbour, <code>null</code> at the end of a
+         *            line
+         */
+        Vertex(Coordinate aPrevious, Coordinate aNext) {
+            iPrevious = aPrevious;
+            iNext = aNext;
+            iJunction = aPrevious == null;
+        }
+
+        /**
+         * Checks whether the vertex has the given neighbours, in any order.
+         * 
+         * @param aPrevious
+         *            one neighbour
+         * @param aNext
+         *            the other neighbour
+         * @return <code>true</code> for the same neighbours
+         */
+        boolean hasNeighbours(Coordinate aPrevious, Coordinate aNext) {
+            return aPrevious.equals2D(iPrevious) && aNext.equals2D(iNext)
+                    || aPrevious.equals2D(iNext) && aNext.equals2D(iPrevious);
+        }
+    }
+}
\ No newline at end of file
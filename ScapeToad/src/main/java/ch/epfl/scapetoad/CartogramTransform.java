@@ -0,0 +1,378 @@
+/*
+
+	Copyright 2007-2009 361DEGRES
+
+	This program is free software; you can redistribute it and/or
+	modify it under the terms of the GNU General Public License as
+	published by the Free Software Foundation; either version 2 of the
+	License, or (at your option) any later version.
+
+	This program is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program; if not, write to the Free Software
+	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+	02110-1301, USA.
+	
+ */
+
+package ch.epfl.scapetoad;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The deformation of a cartogram: the deformed cartogram grid and a few
+ * metadata about its computation. A transform can be saved to a compact
+ * binary file and loaded again to project other layers, without computing
+ * the cartogram again.
+ * 
+ * The file contains the grid size, the envelope, the metadata and the node
+ * positions, row by row like in the grid. The positions are stored either as
+ * doubles, or as the float offsets of the nodes from their position in the
+ * undeformed grid, which halves the file for an error far below the cell
+ * size. The file is memory-mapped to be loaded.
+ */
+public class CartogramTransform {
+
+    /**
+     * The metadata key of the name of the cartogram engine.
+     */
+    public static final String ENGINE = "engine";
+
+    /**
+     * The metadata key of the name of the master layer.
+     */
+    public static final String LAYER = "layer";
+
+    /**
+     * The metadata key of the master attribute.
+     */
+    public static final String ATTRIBUTE = "attribute";
+
+    /**
+     * The metadata key of the maximum segment length used to regularize the
+     * layers before their projection.
+     */
+    public static final String MAXIMUM_SEGMENT_LENGTH = "maximumSegmentLength";
+
+    /**
+     * The file format identifier.
+     */
+    private static final int MAGIC = 0x53545446;
+
+    /**
+     * The file format version.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The node encoding with the positions as doubles.
+     */
+    private static final byte DOUBLE_NODES = 0;
+
+    /**
+     * The node encoding with the offsets from the undeformed grid as floats.
+     */
+    private static final byte FLOAT_OFFSET_NODES = 1;
+
+    /**
+     * The charset of the metadata.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The deformed grid.
+     */
+    private CartogramGrid iGrid;
+
+    /**
+     * The metadata, in insertion order.
+     */
+    private Map<String, String> iMetadata = new LinkedHashMap<String, String>();
+
+    /**
+     * Constructor of a transform without metadata.
+     * 
+     * @param aGrid
+     *            the deformed grid
+     */
+    public CartogramTransform(CartogramGrid aGrid) {
+        iGrid = aGrid;
+    }
+
+    /**
+     * Returns the deformed grid.
+     * 
+     * @return the grid
+     */
+    public CartogramGrid getGrid() {
+        return iGrid;
+    }
+
+    /**
+     * Returns the metadata, which can be modified before saving the transform.
+     * 
+     * @return the metadata by key
+     */
+    public Map<String, String> getMetadata() {
+        return iMetadata;
+    }
+
+    /**
+     * Returns the maximum segment length used to regularize the layers before
+     * their projection.
+     * 
+     * @return the length, or 0 if it is not in the metadata
+     */
+    public double getMaximumSegmentLength() {
+        String value = iMetadata.get(MAXIMUM_SEGMENT_LENGTH);
+        if (value == null) {
+            return 0;
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Projects a layer with the grid, like the layers of the cartogram. The
+     * layer is first regularized with the maximum segment length of the
+     * metadata, if any.
+     * 
+     * @param aLayer
+     *            the layer
+     * @param aExecutor
+     *            the executor projecting the features
+     * @return the projected layer
+     * @throws InterruptedException
+     *             when the projection was interrupted
+     */
+    public CartogramLayer projectLayer(CartogramLayer aLayer,
+            CartogramExecutor aExecutor) throws InterruptedException {
+        double maxLength = getMaximumSegmentLength();
+        if (maxLength > 0) {
+            aLayer.regularizeLayer(maxLength, aExecutor);
+        }
+        return aLayer.projectLayerWithGrid(iGrid, aExecutor);
+    }
+
+    /**
+     * Saves the transform to a file.
+     * 
+     * @param aFile
+     *            the file
+     * @param aFloatOffsets
+     *            <code>true</code> to store the float offsets of the nodes
+     *            from the undeformed grid, <code>false</code> to store their
+     *            positions as doubles
+     * @throws IOException
+     *             when the file can't be written
+     */
+    public void write(File aFile, boolean aFloatOffsets) throws IOException {
+        int[] size = iGrid.getGridSize();
+        Envelope envelope = iGrid.getEnvelope();
+        double[] x = iGrid.getNodeX();
+        double[] y = iGrid.getNodeY();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(aFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size[0]);
+            out.writeInt(size[1]);
+            out.writeDouble(envelope.getMinX());
+            out.writeDouble(envelope.getMaxX());
+            out.writeDouble(envelope.getMinY());
+            out.writeDouble(envelope.getMaxY());
+            out.writeInt(iMetadata.size());
+            for (Map.Entry<String, String> entry : iMetadata.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+
+            if (aFloatOffsets) {
+                out.writeByte(FLOAT_OFFSET_NODES);
+                double[] regularX = regularCoordinates(envelope.getMinX(),
+                        envelope.getMaxX(), size[0]);
+                double[] regularY = regularCoordinates(envelope.getMinY(),
+                        envelope.getMaxY(), size[1]);
+                for (int k = 0; k < x.length; k++) {
+                    out.writeFloat((float) (x[k] - regularX[k % size[0]]));
+                }
+                for (int k = 0; k < y.length; k++) {
+                    out.writeFloat((float) (y[k] - regularY[k / size[0]]));
+                }
+            } else {
+                out.writeByte(DOUBLE_NODES);
+                for (double value : x) {
+                    out.writeDouble(value);
+                }
+                for (double value : y) {
+                    out.writeDouble(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads a transform from a file. The file is memory-mapped and the node
+     * positions are read in bulk into the arrays of the grid.
+     * 
+     * @param aFile
+     *            the file
+     * @return the transform
+     * @throws IOException
+     *             when the file can't be read or is not a transform file
+     */
+    public static CartogramTransform read(File aFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(aFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a cartogram transform file: "
+                        + aFile);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cartogram transform version "
+                        + version + ": " + aFile);
+            }
+
+            int sizeX = buffer.getInt();
+            int sizeY = buffer.getInt();
+            if (sizeX < 2 || sizeY < 2
+                    || (long) sizeX * sizeY > buffer.remaining()) {
+                throw new IOException("Invalid grid size " + sizeX + "x"
+                        + sizeY + ": " + aFile);
+            }
+            double minX = buffer.getDouble();
+            double maxX = buffer.getDouble();
+            double minY = buffer.getDouble();
+            double maxY = buffer.getDouble();
+            CartogramTransform transform = new CartogramTransform(
+                    new CartogramGrid(sizeX, sizeY, new Envelope(minX, maxX,
+                            minY, maxY)));
+            int count = buffer.getInt();
+            for (int k = 0; k < count; k++) {
+                transform.iMetadata.put(readString(buffer, aFile),
+                        readString(buffer, aFile));
+            }
+
+            double[] x = new double[sizeX * sizeY];
+            double[] y = new double[sizeX * sizeY];
+            byte encoding = buffer.get();
+            if (encoding == FLOAT_OFFSET_NODES) {
+                double[] regularX = regularCoordinates(minX, maxX, sizeX);
+                double[] regularY = regularCoordinates(minY, maxY, sizeY);
+                FloatBuffer buffered = buffer.asFloatBuffer();
+                float[] offsets = new float[x.length];
+                buffered.get(offsets);
+                for (int k = 0; k < x.length; k++) {
+                    x[k] = regularX[k % sizeX] + offsets[k];
+                }
+                buffered.get(offsets);
+                for (int k = 0; k < y.length; k++) {
+                    y[k] = regularY[k / sizeX] + offsets[k];
+                }
+            } else if (encoding == DOUBLE_NODES) {
+                DoubleBuffer positions = buffer.asDoubleBuffer();
+                positions.get(x);
+                positions.get(y);
+            } else {
+                throw new IOException("Unknown node encoding " + encoding
+                        + ": " + aFile);
+            }
+            transform.iGrid.setNodes(x, y);
+            return transform;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated cartogram transform file: "
+                    + aFile, e);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the coordinates of the nodes of the undeformed grid along one
+     * axis. The same values are used to write and to read the offsets.
+     * 
+     * @param aMin
+     *            the minimum coordinate
+     * @param aMax
+     *            the maximum coordinate
+     * @param aSize
+     *            the number of nodes
+     * @return the coordinates
+     */
+    private static double[] regularCoordinates(double aMin, double aMax,
+            int aSize) {
+        double cellSize = (aMax - aMin) / (aSize - 1);
+        double[] coordinates = new double[aSize];
+        for (int k = 0; k < aSize; k++) {
+            coordinates[k] = aMin + k * cellSize;
+        }
+        return coordinates;
+    }
+
+    /**
+     * Writes a string as its length and its UTF-8 bytes.
+     * 
+     * @param aOut
+     *            the output
+     * @param aValue
+     *            the string
+     * @throws IOException
+     *             when the string can't be written
+     */
+    private static void writeString(DataOutputStream aOut, String aValue)
+            throws IOException {
+        byte[] bytes = aValue.getBytes(UTF8);
+        aOut.writeInt(bytes.length);
+        aOut.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     * 
+     * @param aBuffer
+     *            the buffer
+     * @param aFile
+     *            the file, for the error message
+     * @return the string
+     * @throws IOException
+     *             when the length of the string is invalid
+     */
+    private static String readString(MappedByteBuffer aBuffer, File aFile)
+            throws IOException {
+        int length = aBuffer.getInt();
+        if (length < 0 || length > aBuffer.remaining()) {
+            throw new IOException("Invalid metadata length " + length + ": "
+                    + aFile);
+        }
+        byte[] bytes = new byte[length];
+        aBuffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,46 @@
+package ch.epfl.scapetoad;
+
+/**
+ * A cartogram engine deforms the nodes of a cartogram grid so that the area of
+ * each cell becomes proportional to its density. The engines are selected by
+ * name through the CartogramEngines registry.
+ */
+public interface ICartogramEngine {
+
+    /**
+     * Returns the name of the engine, as used by the registry.
+     * 
+     * @return the name
+     */
+    public abstract String getName();
+
+    /**
+     * Deforms the grid nodes using the current density of the grid cells.
+     * 
+     * @param aGrid
+     *            the grid to deform
+     * @param aStatus
+     *            the status receiving the progress
+     * @param aMinimumStatus
+     *            the status value at the start
+     * @param aMaximumStatus
+     *            the status value at the end
+     * @param aStatusTitle
+     *            the status title of the computation
+     * @param aExecutor
+     *            the executor for the parallel parts of the computation
+     * @throws InterruptedException
+     *             when the computation was interrupted
+     */
+    public abstract void compute(CartogramGrid aGrid, ICartogramStatus aStatus,
+            int aMinimumStatus, int aMaximumStatus, String aStatusTitle,
+            CartogramExecutor aExecutor) throws InterruptedException;
+
+    /**
+     * Returns the engine part of the computation report, one parameter per
+     * line. It may contain values measured by the last computation.
+     * 
+     * @return the report lines, or an empty string
+     */
+    public abstract String getReport();
+}
\ No newline at end of file
@@ -0,0 +1,167 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramFlowTest {
+
+    /**
+     * Computes the flow cartogram of the test grid.
+     * 
+     * @param aThreadCount
+     *            the number of threads
+     * @return the deformed grid
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    private static CartogramGrid compute(int aThreadCount)
+            throws InterruptedException {
+        CartogramGrid grid = CartogramNewmanTest.createGrid();
+        compute(grid, new CartogramFlow(), aThreadCount);
+        return grid;
+    }
+
+    /**
+     * Computes a flow cartogram.
+     * 
+     * @param aGrid
+     *            the grid to deform
+     * @param aFlow
+     *            the flow engine
+     * @param aThreadCount
+     *            the number of threads
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    private static void compute(CartogramGrid aGrid, CartogramFlow aFlow,
+            int aThreadCount) throws InterruptedException {
+        CartogramExecutor executor = new CartogramExecutor(aThreadCount);
+        try {
+            aFlow.compute(aGrid, null, 0, 100, "Computing cartogram flow...",
+                    executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Computes the mean relative difference between the cell areas and the
+     * areas proportional to the initial density.
+     * 
+     * @param aGrid
+     *            the deformed grid
+     * @return the mean relative area error
+     */
+    private static double areaError(CartogramGrid aGrid) {
+        CartogramGrid density = CartogramNewmanTest.createGrid();
+        int nx = density.getGridSize()[0] - 2;
+        int ny = density.getGridSize()[1] - 2;
+
+        double total = 0;
+        for (int i = 0; i < nx; i++) {
+            for (int j = 0; j < ny; j++) {
+                total += density.getCurrentDensity(i, j);
+            }
+        }
+        double mean = total / (nx * ny);
+
+        double error = 0;
+        for (int i = 0; i < nx; i++) {
+            for (int j = 0; j < ny; j++) {
+                // Shoelace formula on the deformed cell.
+                double x0 = aGrid.getNodeX(i, j);
+                double y0 = aGrid.getNodeY(i, j);
+                double x1 = aGrid.getNodeX(i + 1, j) - x0;
+                double y1 = aGrid.getNodeY(i + 1, j) - y0;
+                double x2 = aGrid.getNodeX(i + 1, j + 1) - x0;
+                double y2 = aGrid.getNodeY(i + 1, j + 1) - y0;
+                double x3 = aGrid.getNodeX(i, j + 1) - x0;
+                double y3 = aGrid.getNodeY(i, j + 1) - y0;
+                double area = 0.5 * Math.abs(x1 * y2 - x2 * y1 + x2 * y3 - x3
+                        * y2);
+                double target = density.getCurrentDensity(i, j) / mean;
+                error += Math.abs(area - target) / target;
+            }
+        }
+        return error / (nx * ny);
+    }
+
+    /**
+     * The cell areas of the flow cartogram are proportional to the initial
+     * density, like with the diffusion cartogram.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void areaTest() throws InterruptedException {
+        double flowError = areaError(compute(1));
+        double diffusionError = areaError(CartogramNewmanTest.compute(1,
+                false));
+        assertTrue(flowError < 0.05);
+        assertTrue(flowError < 1.1 * diffusionError);
+    }
+
+    /**
+     * The parallel integration gives the same grid as the serial one.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void parallelIntegrationTest() throws InterruptedException {
+        CartogramGrid serial = compute(1);
+        CartogramGrid parallel = compute(3);
+
+        assertArrayEquals(serial.getNodeX(), parallel.getNodeX(), 0);
+        assertArrayEquals(serial.getNodeY(), parallel.getNodeY(), 0);
+    }
+
+    /**
+     * The integration stops at the step limit with the grid advected so far.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void stepLimitTest() throws InterruptedException {
+        CartogramFlow flow = new CartogramFlow();
+        compute(CartogramNewmanTest.createGrid(), flow, 1);
+        assertTrue(flow.getReport().contains(
+                CartogramNewman.StopReason.CONVERGED.toString()));
+
+        CartogramGrid grid = CartogramNewmanTest.createGrid();
+        flow.setMaxSteps(3);
+        compute(grid, flow, 1);
+        assertTrue(flow.getReport().contains("3 accepted"));
+        assertTrue(flow.getReport().contains(
+                CartogramNewman.StopReason.STEPS.toString()));
+        for (double x : grid.getNodeX()) {
+            assertFalse(Double.isNaN(x));
+        }
+    }
+
+    /**
+     * A density which gives no finite velocity ends the integration with an
+     * error instead of shrinking the time step forever.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test(expected = IllegalStateException.class)
+    public void nonFiniteVelocityTest() throws InterruptedException {
+        CartogramGrid grid = CartogramNewmanTest.createGrid();
+        grid.getCurrentDensityArray()[100] = Double.NaN;
+        compute(grid, new CartogramFlow(), 1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,448 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramGridTest {
+
+    /**
+     * The densities don't depend on the number of threads rasterizing the
+     * tiles, with overlapping features.
+     * 
+     * @throws Exception
+     *             when the computation failed
+     */
+    @Test
+    public void parallelDensityTest() throws Exception {
+        CartogramLayer layer = createLayer();
+        for (boolean areaWeighted : new boolean[] { false, true }) {
+            double[] serial = computeDensity(layer, areaWeighted, 1);
+            double[] parallel = computeDensity(layer, areaWeighted, 3);
+            assertArrayEquals(serial, parallel, 0.0);
+        }
+    }
+
+    /**
+     * The densities read from the cached feature index and from the saved
+     * feature index are the ones of a new rasterization, for another
+     * attribute.
+     * 
+     * @throws Exception
+     *             when the computation failed
+     */
+    @Test
+    public void featureIndexTest() throws Exception {
+        CartogramLayer layer = createLayer();
+        File file = File.createTempFile("scapetoad", ".sti");
+        try {
+            file.delete();
+            CartogramFeatureIndex.clearCache();
+            computeDensity(layer, "density", file, 1);
+            assertTrue(file.isFile());
+
+            // Cached
+            double[] cached = computeDensity(layer, "other", null, 1);
+
+            // Saved
+            CartogramFeatureIndex.clearCache();
+            double[] saved = computeDensity(layer, "other", file, 1);
+
+            // Rasterized
+            CartogramFeatureIndex.clearCache();
+            double[] expected = computeDensity(layer, "other", null, 1);
+
+            assertArrayEquals(expected, cached, 0.0);
+            assertArrayEquals(expected, saved, 0.0);
+        } finally {
+            file.delete();
+            CartogramFeatureIndex.clearCache();
+        }
+    }
+
+    /**
+     * The parallel constrained deformation doesn't depend on the number of
+     * threads, and its sweeps stop when the nodes don't move anymore.
+     * 
+     * @throws Exception
+     *             when the computation failed
+     */
+    @Test
+    public void constrainedDeformationTest() throws Exception {
+        CartogramLayer layer = createLayer();
+        CartogramGrid grid = new CartogramGrid(101, 81, new Envelope(0, 100,
+                0, 80));
+        computeDensity(grid, layer, "density", 1);
+
+        GeometryFactory factory = new GeometryFactory();
+        List<CartogramFeature> constrained = new ArrayList<CartogramFeature>();
+        constrained.add(new CartogramFeature(factory.toGeometry(new Envelope(
+                5, 95, 5, 75)), new HashMap<String, Object>()));
+        grid.prepareGridForConstrainedDeformation(Collections
+                .singletonList(new CartogramLayer(layer, constrained)));
+
+        distort(grid, 0.6, 7, 9);
+
+        CartogramGrid serial = new CartogramGrid(grid);
+        CartogramGrid parallel = new CartogramGrid(grid);
+        CartogramExecutor executor = new CartogramExecutor(3);
+        try {
+            int sweeps = serial.conformToConstrainedDeformation(
+                    new CartogramExecutor(1), 500, 1e-2);
+            assertTrue(sweeps > 1 && sweeps < 500);
+            assertEquals(sweeps, parallel.conformToConstrainedDeformation(
+                    executor, 500, 1e-2));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertArrayEquals(serial.getNodeX(), parallel.getNodeX(), 0.0);
+        assertArrayEquals(serial.getNodeY(), parallel.getNodeY(), 0.0);
+    }
+
+    /**
+     * A constrained cell in the top right corner of the grid is a corner cell,
+     * whose neighbours outside the grid are not read.
+     * 
+     * @throws Exception
+     *             when the computation failed
+     */
+    @Test
+    public void constrainedCornerTest() throws Exception {
+        CartogramLayer layer = createLayer();
+        CartogramGrid grid = new CartogramGrid(121, 101, new Envelope(0, 120,
+                0, 100));
+        computeDensity(grid, layer, "density", 1);
+
+        GeometryFactory factory = new GeometryFactory();
+        List<CartogramFeature> constrained = new ArrayList<CartogramFeature>();
+        constrained.add(new CartogramFeature(factory.toGeometry(new Envelope(
+                110, 120, 90, 100)), new HashMap<String, Object>()));
+        grid.prepareGridForConstrainedDeformation(Collections
+                .singletonList(new CartogramLayer(layer, constrained)));
+
+        distort(grid, 0.6, 7, 9);
+
+        CartogramGrid serial = new CartogramGrid(grid);
+        CartogramGrid parallel = new CartogramGrid(grid);
+        CartogramExecutor executor = new CartogramExecutor(3);
+        try {
+            serial.conformToConstrainedDeformation(new CartogramExecutor(1),
+                    10, 1e-2);
+            parallel.conformToConstrainedDeformation(executor, 10, 1e-2);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertArrayEquals(serial.getNodeX(), parallel.getNodeX(), 0.0);
+        assertArrayEquals(serial.getNodeY(), parallel.getNodeY(), 0.0);
+    }
+
+    /**
+     * The projection maps the nodes to their position, the points of the
+     * undeformed grid to themselves, and the other points by bilinear
+     * interpolation in their cell.
+     */
+    @Test
+    public void projectPointTest() {
+        CartogramGrid grid = new CartogramGrid(51, 41, new Envelope(-10, 90,
+                20, 100));
+        double[] result = new double[2];
+        grid.projectPoint(33.3, 77.7, result);
+        assertEquals(33.3, result[0], 1e-12);
+        assertEquals(77.7, result[1], 1e-12);
+
+        distort(grid, 0.7, 5, 4);
+
+        // The nodes.
+        grid.projectPoint(-10 + 2 * 7, 20 + 2 * 11, result);
+        assertEquals(grid.getNodeX(7, 11), result[0], 1e-12);
+        assertEquals(grid.getNodeY(7, 11), result[1], 1e-12);
+
+        // A point at (0.25, 0.6) of the cell (20, 30).
+        double[] px = { -10 + 2 * 20.25, 0, 89.9 };
+        double[] py = { 20 + 2 * 30.6, 20, 99.9 };
+        grid.projectPoint(px[0], py[0], result);
+        assertEquals(0.75 * 0.4 * grid.getNodeX(20, 30) + 0.25 * 0.4
+                * grid.getNodeX(21, 30) + 0.25 * 0.6 * grid.getNodeX(21, 31)
+                + 0.75 * 0.6 * grid.getNodeX(20, 31), result[0], 1e-12);
+        assertEquals(0.75 * 0.4 * grid.getNodeY(20, 30) + 0.25 * 0.4
+                * grid.getNodeY(21, 30) + 0.25 * 0.6 * grid.getNodeY(21, 31)
+                + 0.75 * 0.6 * grid.getNodeY(20, 31), result[1], 1e-12);
+
+        // The batch projection, in place.
+        double[] expectedX = new double[px.length];
+        double[] expectedY = new double[px.length];
+        for (int k = 0; k < px.length; k++) {
+            grid.projectPoint(px[k], py[k], result);
+            expectedX[k] = result[0];
+            expectedY[k] = result[1];
+        }
+        grid.projectPoints(px, py, px, py);
+        assertArrayEquals(expectedX, px, 0.0);
+        assertArrayEquals(expectedY, py, 0.0);
+    }
+
+    /**
+     * The projected sequences get a point at each crossing of a grid line, in
+     * their order along the segments, and no duplicated points.
+     */
+    @Test
+    public void projectCoordinatesTest() {
+        CartogramGrid grid = new CartogramGrid(11, 11, new Envelope(0, 20, 0,
+                20));
+        Coordinate[] ring = { new Coordinate(1, 1), new Coordinate(7.4, 4.4),
+                new Coordinate(7.4, 9), new Coordinate(4.6, 3),
+                new Coordinate(1, 1) };
+        Coordinate[] projected = grid.projectCoordinates(ring);
+
+        // 3 + 2 crossings, 2 crossings, 1 + 3 crossings with a grid node
+        // counted once, 2 + 1 crossings.
+        assertEquals(ring.length + 5 + 2 + 3 + 3, projected.length);
+        assertTrue(projected[0].equals2D(ring[0]));
+        assertTrue(projected[projected.length - 1].equals2D(ring[0]));
+        int vertex = 1;
+        for (int k = 1; k < projected.length - 1; k++) {
+            Coordinate c = projected[k];
+            if (c.equals2D(ring[vertex])) {
+                vertex++;
+                continue;
+            }
+
+            // A crossing, on the current segment, after the previous point.
+            Coordinate a = ring[vertex - 1];
+            Coordinate b = ring[vertex];
+            assertEquals(0, (b.x - a.x) * (c.y - a.y) - (b.y - a.y)
+                    * (c.x - a.x), 1e-9);
+            assertTrue((c.x - projected[k - 1].x) * (b.x - a.x)
+                    + (c.y - projected[k - 1].y) * (b.y - a.y) > 0);
+            assertTrue(isOnGridLine(c.x) || isOnGridLine(c.y));
+        }
+        assertEquals(ring.length - 1, vertex);
+    }
+
+    /**
+     * The projection cache gives the same projected layers, and the points
+     * shared by the features or projected again are found in the cache.
+     */
+    @Test
+    public void projectionCacheTest() {
+        CartogramLayer layer = createLayer();
+        CartogramGrid grid = new CartogramGrid(101, 81, new Envelope(0, 100,
+                0, 80));
+        distort(grid, 0.4, 6, 3);
+        CartogramLayer expected = layer.projectLayerWithGrid(grid);
+
+        CartogramProjectionCache cache = new CartogramProjectionCache();
+        grid.setProjectionCache(cache);
+        CartogramLayer projected = layer.projectLayerWithGrid(grid);
+        long lookups = cache.getLookups();
+        long hits = cache.getHits();
+        assertTrue(hits > 0);
+        assertEquals(lookups - hits, cache.size());
+
+        // Everything is in the cache the second time.
+        CartogramLayer again = layer.projectLayerWithGrid(grid);
+        assertEquals(2 * lookups, cache.getLookups());
+        assertEquals(hits + lookups, cache.getHits());
+
+        for (int f = 0; f < expected.getFeatures().size(); f++) {
+            Coordinate[] coordinates = expected.getFeatures().get(f)
+                    .getGeometry().getCoordinates();
+            assertTrue(Arrays.equals(coordinates, projected.getFeatures()
+                    .get(f).getGeometry().getCoordinates()));
+            assertTrue(Arrays.equals(coordinates, again.getFeatures().get(f)
+                    .getGeometry().getCoordinates()));
+        }
+    }
+
+    /**
+     * Tells if a coordinate is on a line of a grid of cells of size 2.
+     * 
+     * @param aValue
+     *            the coordinate
+     * @return <code>true</code> if it is on a grid line
+     */
+    private static boolean isOnGridLine(double aValue) {
+        return Math.abs(aValue / 2 - Math.rint(aValue / 2)) < 1e-9;
+    }
+
+    /**
+     * Computes the densities of a layer.
+     * 
+     * @param aLayer
+     *            the layer
+     * @param aAreaWeighted
+     *            <code>true</code> for the area weighted densities
+     * @param aThreads
+     *            the number of threads
+     * @return the densities
+     * @throws Exception
+     *             when the computation failed
+     */
+    private static double[] computeDensity(CartogramLayer aLayer,
+            boolean aAreaWeighted, int aThreads) throws Exception {
+        CartogramFeatureIndex.clearCache();
+        CartogramGrid grid = new CartogramGrid(101, 81, new Envelope(0, 100,
+                0, 80));
+        grid.setAreaWeightedDensity(aAreaWeighted);
+        return computeDensity(grid, aLayer, "density", aThreads);
+    }
+
+    /**
+     * Computes the densities of a layer with the cell centre rule.
+     * 
+     * @param aLayer
+     *            the layer
+     * @param aAttribute
+     *            the density attribute
+     * @param aIndexFile
+     *            the feature index file, or <code>null</code>
+     * @param aThreads
+     *            the number of threads
+     * @return the densities
+     * @throws Exception
+     *             when the computation failed
+     */
+    private static double[] computeDensity(CartogramLayer aLayer,
+            String aAttribute, File aIndexFile, int aThreads) throws Exception {
+        CartogramGrid grid = new CartogramGrid(101, 81, new Envelope(0, 100,
+                0, 80));
+        grid.setFeatureIndexFile(aIndexFile);
+        return computeDensity(grid, aLayer, aAttribute, aThreads);
+    }
+
+    /**
+     * Computes the densities of a layer on a grid.
+     * 
+     * @param aGrid
+     *            the grid
+     * @param aLayer
+     *            the layer
+     * @param aAttribute
+     *            the density attribute
+     * @param aThreads
+     *            the number of threads
+     * @return the densities
+     * @throws Exception
+     *             when the computation failed
+     */
+    private static double[] computeDensity(CartogramGrid aGrid,
+            CartogramLayer aLayer, String aAttribute, int aThreads)
+            throws Exception {
+        CartogramExecutor executor = new CartogramExecutor(aThreads);
+        try {
+            aGrid.computeOriginalDensityValuesWithLayer(aLayer, aAttribute,
+                    true, new NullStatus(), executor);
+        } finally {
+            executor.shutdown();
+        }
+        return aGrid.getCurrentDensityArray();
+    }
+
+    /**
+     * Distorts the nodes of a grid with sinusoids: the nodes move by
+     * aAmplitude * sin(y / aPeriodY) along x and aAmplitude * cos(x /
+     * aPeriodX) along y. The cells don't fold while the amplitude is small
+     * compared to the periods and the cell size.
+     * 
+     * @param aGrid
+     *            the grid
+     * @param aAmplitude
+     *            the amplitude of the displacements
+     * @param aPeriodY
+     *            the scale of y in the x displacement
+     * @param aPeriodX
+     *            the scale of x in the y displacement
+     */
+    static void distort(CartogramGrid aGrid, double aAmplitude,
+            double aPeriodY, double aPeriodX) {
+        double[] x = aGrid.getNodeX();
+        double[] y = aGrid.getNodeY();
+        for (int k = 0; k < x.length; k++) {
+            double x0 = x[k];
+            x[k] += aAmplitude * Math.sin(y[k] / aPeriodY);
+            y[k] += aAmplitude * Math.cos(x0 / aPeriodX);
+        }
+    }
+
+    /**
+     * Creates a layer of random overlapping polygons.
+     * 
+     * @return the layer
+     */
+    private static CartogramLayer createLayer() {
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(7);
+        List<CartogramFeature> features = new ArrayList<CartogramFeature>();
+        for (int f = 0; f < 60; f++) {
+            double cx = 10 + 80 * random.nextDouble();
+            double cy = 10 + 60 * random.nextDouble();
+            Coordinate[] ring = new Coordinate[13];
+            for (int k = 0; k < 12; k++) {
+                double angle = 2 * Math.PI * k / 12;
+                double r = 2 + 8 * random.nextDouble();
+                ring[k] = new Coordinate(cx + r * Math.cos(angle), cy + r
+                        * Math.sin(angle));
+            }
+            ring[12] = ring[0];
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put("density", Double.valueOf(1 + random.nextInt(50)));
+            attributes.put("other", Double.valueOf(1 + random.nextInt(90)));
+            features.add(new CartogramFeature(factory.createPolygon(
+                    factory.createLinearRing(ring), null), attributes));
+        }
+
+        @SuppressWarnings("rawtypes")
+        Map<String, Class> types = new HashMap<String, Class>();
+        types.put("density", Double.class);
+        types.put("other", Double.class);
+        return new CartogramLayer("test", Color.WHITE, types, features);
+    }
+
+    /**
+     * A status ignoring all the messages.
+     */
+    private static class NullStatus implements ICartogramStatus {
+
+        @Override
+        public void updateRunningStatus(int aProgress, String aLabel1,
+                String aLabelFormat, Object... aArgs) {
+            // Ignored
+        }
+
+        @Override
+        public void setComputationError(String title, String message,
+                String stackTrace) {
+            // Ignored
+        }
+
+        @Override
+        public void finished() {
+            // Ignored
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramInverseProjectionTest {
+
+    /**
+     * The inverse projection maps the projected points back to their
+     * original position, and the points outside the deformed grid to NaN.
+     */
+    @Test
+    public void inverseProjectPointTest() {
+        CartogramGrid grid = createGrid();
+        CartogramInverseProjection inverse = new CartogramInverseProjection(
+                grid);
+        Random random = new Random(42);
+        double[] result = new double[2];
+        for (int k = 0; k < 1000; k++) {
+            double x = 600 * random.nextDouble();
+            double y = 400 * random.nextDouble();
+            double[] projected = grid.projectPoint(x, y);
+            assertTrue(inverse.inverseProjectPoint(projected[0],
+                    projected[1], result));
+            assertEquals(x, result[0], 1e-9);
+            assertEquals(y, result[1], 1e-9);
+        }
+
+        double[] node = { grid.getNodeX(20, 10), grid.getNodeY(20, 10) };
+        assertTrue(inverse.inverseProjectPoint(node[0], node[1], result));
+        assertArrayEquals(new double[] { 200, 100 }, result, 1e-9);
+
+        assertFalse(inverse.inverseProjectPoint(-50, 200, result));
+        assertTrue(Double.isNaN(result[0]) && Double.isNaN(result[1]));
+        assertFalse(inverse.inverseProjectPoint(300, 450, result));
+        assertTrue(Double.isNaN(result[0]) && Double.isNaN(result[1]));
+    }
+
+    /**
+     * The batches, serial, concurrent or in place, give the same positions as
+     * the single points.
+     * 
+     * @throws InterruptedException
+     *             when the projection was interrupted
+     */
+    @Test
+    public void inverseProjectPointsTest() throws InterruptedException {
+        CartogramGrid grid = createGrid();
+        CartogramInverseProjection inverse = new CartogramInverseProjection(
+                grid);
+        Random random = new Random(7);
+        double[] x = new double[5000];
+        double[] y = new double[5000];
+        for (int k = 0; k < x.length; k++) {
+            x[k] = -20 + 640 * random.nextDouble();
+            y[k] = -20 + 440 * random.nextDouble();
+        }
+
+        double[] expectedX = new double[x.length];
+        double[] expectedY = new double[x.length];
+        double[] result = new double[2];
+        int inside = 0;
+        for (int k = 0; k < x.length; k++) {
+            if (inverse.inverseProjectPoint(x[k], y[k], result)) {
+                inside++;
+            }
+            expectedX[k] = result[0];
+            expectedY[k] = result[1];
+        }
+        assertTrue(inside > 0 && inside < x.length);
+
+        double[] outX = new double[x.length];
+        double[] outY = new double[x.length];
+        assertEquals(inside, inverse.inverseProjectPoints(x, y, outX, outY));
+        assertArrayEquals(expectedX, outX, 0.0);
+        assertArrayEquals(expectedY, outY, 0.0);
+
+        CartogramExecutor executor = new CartogramExecutor(3);
+        try {
+            outX = new double[x.length];
+            outY = new double[x.length];
+            assertEquals(inside, inverse.inverseProjectPoints(x, y, outX,
+                    outY, executor));
+            assertArrayEquals(expectedX, outX, 0.0);
+            assertArrayEquals(expectedY, outY, 0.0);
+
+            assertEquals(inside,
+                    inverse.inverseProjectPoints(x, y, x, y, executor));
+            assertArrayEquals(expectedX, x, 0.0);
+            assertArrayEquals(expectedY, y, 0.0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates a grid deformed by sinusoids, without folding its cells.
+     * 
+     * @return the grid
+     */
+    private static CartogramGrid createGrid() {
+        CartogramGrid grid = new CartogramGrid(61, 41, new Envelope(0, 600, 0,
+                400));
+        CartogramGridTest.distort(grid, 3, 30, 20);
+        return grid;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,221 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramNewmanTest {
+
+    /**
+     * Creates a small grid with a dense blob in the lower left part.
+     * 
+     * @return the grid
+     */
+    static CartogramGrid createGrid() {
+        CartogramGrid grid = new CartogramGrid(41, 31, new Envelope(0, 40, 0,
+                30));
+        double[] density = grid.getCurrentDensityArray();
+        int cellsX = grid.getGridSize()[0] - 1;
+        for (int k = 0; k < density.length; k++) {
+            double dx = k % cellsX - 12;
+            double dy = k / cellsX - 10;
+            density[k] = 1 + 20 * Math.exp(-(dx * dx + dy * dy) / 30);
+        }
+        return grid;
+    }
+
+    /**
+     * Computes the cartogram of the test grid.
+     * 
+     * @param aThreadCount
+     *            the number of threads
+     * @param aPrecomputeVelocity
+     *            <code>true</code> to precompute the velocity field
+     * @return the deformed grid
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    static CartogramGrid compute(int aThreadCount,
+            boolean aPrecomputeVelocity) throws InterruptedException {
+        CartogramGrid grid = createGrid();
+        CartogramExecutor executor = new CartogramExecutor(aThreadCount);
+        try {
+            CartogramNewman newman = new CartogramNewman(grid);
+            newman.setExecutor(executor);
+            newman.setPrecomputeVelocity(aPrecomputeVelocity);
+            newman.compute();
+        } finally {
+            executor.shutdown();
+        }
+        return grid;
+    }
+
+    /**
+     * The parallel integration gives the same grid as the serial one.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void parallelIntegrationTest() throws InterruptedException {
+        CartogramGrid serial = compute(1, false);
+        CartogramGrid parallel = compute(3, false);
+
+        assertTrue(Math.abs(serial.getNodeX(12, 20) - 12) > 0.1);
+        assertArrayEquals(serial.getNodeX(), parallel.getNodeX(), 0);
+        assertArrayEquals(serial.getNodeY(), parallel.getNodeY(), 0);
+    }
+
+    /**
+     * The precomputed velocity field gives the same grid as the velocity
+     * computed at each call.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void precomputedVelocityTest() throws InterruptedException {
+        CartogramGrid computed = compute(1, false);
+        CartogramGrid precomputed = compute(2, true);
+
+        assertArrayEquals(computed.getNodeX(), precomputed.getNodeX(), 0);
+        assertArrayEquals(computed.getNodeY(), precomputed.getNodeY(), 0);
+    }
+
+    /**
+     * The single precision diffusion gives nearly the same grid as the double
+     * precision one.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void singlePrecisionTest() throws InterruptedException {
+        CartogramGrid reference = compute(1, false);
+
+        for (boolean precompute : new boolean[] { false, true }) {
+            CartogramGrid grid = createGrid();
+            CartogramNewman newman = new CartogramNewmanFloat(grid);
+            newman.setPrecomputeVelocity(precompute);
+            newman.compute();
+
+            assertArrayEquals(reference.getNodeX(), grid.getNodeX(), 0.01);
+            assertArrayEquals(reference.getNodeY(), grid.getNodeY(), 0.01);
+        }
+    }
+
+    /**
+     * Each stopping criterion ends the diffusion and is reported.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void stoppingCriteriaTest() throws InterruptedException {
+        CartogramGrid reference = createGrid();
+        CartogramNewman converged = new CartogramNewman(reference);
+        converged.compute();
+        assertEquals(CartogramNewman.StopReason.CONVERGED,
+                converged.getStopReason());
+
+        // Stop when the points move less than a hundredth of a cell.
+        CartogramGrid grid = createGrid();
+        CartogramNewman newman = new CartogramNewman(grid);
+        newman.setMaxDisplacement(0.01);
+        newman.compute();
+        assertEquals(CartogramNewman.StopReason.DISPLACEMENT,
+                newman.getStopReason());
+        assertTrue(newman.getStepCount() < converged.getStepCount());
+        assertArrayEquals(reference.getNodeX(), grid.getNodeX(), 0.05);
+        assertArrayEquals(reference.getNodeY(), grid.getNodeY(), 0.05);
+
+        newman = new CartogramNewman(createGrid());
+        newman.setMaxSteps(3);
+        newman.compute();
+        assertEquals(CartogramNewman.StopReason.STEPS, newman.getStopReason());
+        assertEquals(3, newman.getStepCount());
+
+        // The time limit is checked after each step.
+        newman = new CartogramNewman(createGrid());
+        newman.setTimeLimit(1);
+        newman.compute();
+        assertEquals(CartogramNewman.StopReason.TIME_LIMIT,
+                newman.getStopReason());
+    }
+
+    /**
+     * The PI step controller gives nearly the same grid and counts every
+     * attempted step.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void piStepControllerTest() throws InterruptedException {
+        CartogramGrid reference = compute(1, false);
+
+        CartogramGrid grid = createGrid();
+        CartogramNewman newman = new CartogramNewman(grid);
+        newman.setStepController(CartogramNewman.StepController.PI);
+        newman.compute();
+
+        assertEquals(1 + 4 * (newman.getStepCount() + newman
+                .getRejectedStepCount()), newman.getSnapshotCount());
+        assertArrayEquals(reference.getNodeX(), grid.getNodeX(), 0.01);
+        assertArrayEquals(reference.getNodeY(), grid.getNodeY(), 0.01);
+    }
+
+    /**
+     * The engine forwards the time step limits to the PI controller: a small
+     * maximum step needs more steps.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void engineStepLimitsTest() throws InterruptedException {
+        CartogramNewmanEngine engine = new CartogramNewmanEngine();
+        engine.setStepController(CartogramNewman.StepController.PI);
+        int free = engineStepCount(engine);
+
+        engine.setStepLimits(1e-6, 50);
+        assertTrue(engineStepCount(engine) > free);
+        assertTrue(engine.getReport().contains("Time step limits: 1.0E-6 to"
+                + " 50.0"));
+    }
+
+    /**
+     * Computes the cartogram of the test grid with an engine.
+     * 
+     * @param aEngine
+     *            the engine
+     * @return the number of accepted steps
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    private static int engineStepCount(CartogramNewmanEngine aEngine)
+            throws InterruptedException {
+        CartogramExecutor executor = new CartogramExecutor(1);
+        try {
+            aEngine.compute(createGrid(), null, 0, 100,
+                    "Computing cartogram diffusion...", executor);
+        } finally {
+            executor.shutdown();
+        }
+        String report = aEngine.getReport();
+        int start = report.indexOf("Diffusion steps: ") + 17;
+        return Integer.parseInt(report.substring(start,
+                report.indexOf(' ', start)));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,285 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramRasterizerTest {
+
+    /**
+     * Checks that the rasterizer finds the same cells as Geometry.contains
+     * for the cell centres.
+     * 
+     * @param aGeometry
+     *            the geometry
+     * @param aEnvelope
+     *            the grid envelope
+     * @param aCellSize
+     *            the cell size
+     */
+    private static void assertSameCells(
+            com.vividsolutions.jts.geom.Geometry aGeometry,
+            Envelope aEnvelope, double aCellSize) {
+        int cellsX = (int) Math.round(aEnvelope.getWidth() / aCellSize);
+        int cellsY = (int) Math.round(aEnvelope.getHeight() / aCellSize);
+        CartogramRasterizer rasterizer = new CartogramRasterizer(aGeometry,
+                aEnvelope, new double[] { aCellSize, aCellSize });
+        GeometryFactory factory = new GeometryFactory();
+
+        boolean[] inside = new boolean[cellsX];
+        for (int j = 0; j < cellsY; j++) {
+            rasterizer.rasterizeRow(j, 0, cellsX - 1, inside);
+            for (int i = 0; i < cellsX; i++) {
+                boolean expected = aGeometry.contains(factory
+                        .createPoint(new Coordinate(aEnvelope.getMinX() + i
+                                * aCellSize + aCellSize / 2, aEnvelope
+                                .getMinY() + j * aCellSize + aCellSize / 2)));
+                assertEquals("cell " + i + ", " + j, expected, inside[i]);
+            }
+        }
+    }
+
+    /**
+     * Polygons with holes and multipolygons, including vertices and edges on
+     * the cell centres.
+     * 
+     * @throws ParseException
+     *             when the WKT is wrong
+     */
+    @Test
+    public void polygonTest() throws ParseException {
+        WKTReader reader = new WKTReader();
+        Envelope envelope = new Envelope(0, 40, 0, 30);
+
+        assertSameCells(reader.read("POLYGON ((1.3 2.1, 37.2 4.9, "
+                + "30.7 28.3, 12.1 20.4, 3.3 27.6, 1.3 2.1), "
+                + "(10.2 8.8, 20.9 9.1, 15.1 17.3, 10.2 8.8))"), envelope, 1);
+
+        // Vertices and a horizontal edge on the cell centres.
+        assertSameCells(reader.read("POLYGON ((2.5 2.5, 20.5 2.5, "
+                + "20.5 10.5, 30.5 20.5, 5.5 25.5, 2.5 2.5), "
+                + "(6.5 6.5, 10.5 6.5, 10.5 10.5, 6.5 6.5))"), envelope, 1);
+
+        // An island inside the hole of another polygon.
+        assertSameCells(reader.read("MULTIPOLYGON (((1 1, 25 1, 25 25, "
+                + "1 25, 1 1), (5 5, 20 5, 20 20, 5 20, 5 5)), "
+                + "((8 8, 15 8, 12 16, 8 8)), ((28 3, 39 14, 30 29, 28 3)))"),
+                envelope, 0.37);
+    }
+
+    /**
+     * Random star-shaped polygons with a random hole.
+     */
+    @Test
+    public void randomPolygonTest() {
+        Random random = new Random(7);
+        GeometryFactory factory = new GeometryFactory();
+        Envelope envelope = new Envelope(-100, 100, -80, 80);
+
+        for (int n = 0; n < 10; n++) {
+            LinearRing shell = factory.createLinearRing(star(random, 0, 0,
+                    30, 75, 50 + random.nextInt(200)));
+            LinearRing hole = factory.createLinearRing(star(random, 5, -3, 5,
+                    20, 20));
+            assertSameCells(
+                    factory.createPolygon(shell, new LinearRing[] { hole }),
+                    envelope, 1 + random.nextDouble() * 4);
+        }
+    }
+
+    /**
+     * Creates a closed star-shaped ring.
+     * 
+     * @param aRandom
+     *            the random generator
+     * @param aX
+     *            the x coordinate of the centre
+     * @param aY
+     *            the y coordinate of the centre
+     * @param aMinRadius
+     *            the minimum radius
+     * @param aMaxRadius
+     *            the maximum radius
+     * @param aCount
+     *            the number of vertices
+     * @return the ring coordinates
+     */
+    private static Coordinate[] star(Random aRandom, double aX, double aY,
+            double aMinRadius, double aMaxRadius, int aCount) {
+        Coordinate[] coordinates = new Coordinate[aCount + 1];
+        for (int k = 0; k < aCount; k++) {
+            double angle = 2 * Math.PI * k / aCount;
+            double radius = aMinRadius + aRandom.nextDouble()
+                    * (aMaxRadius - aMinRadius);
+            coordinates[k] = new Coordinate(aX + radius * Math.cos(angle), aY
+                    + radius * Math.sin(angle));
+        }
+        coordinates[aCount] = coordinates[0];
+        return coordinates;
+    }
+
+    /**
+     * Checks the coverage of each cell against the area of the intersection
+     * computed by JTS.
+     * 
+     * @param aGeometry
+     *            the geometry
+     * @param aEnvelope
+     *            the grid envelope
+     * @param aCellSize
+     *            the cell size
+     */
+    private static void assertCoverage(
+            com.vividsolutions.jts.geom.Geometry aGeometry,
+            Envelope aEnvelope, double aCellSize) {
+        int cellsX = (int) Math.round(aEnvelope.getWidth() / aCellSize);
+        int cellsY = (int) Math.round(aEnvelope.getHeight() / aCellSize);
+        CartogramRasterizer rasterizer = new CartogramRasterizer(aGeometry,
+                aEnvelope, new double[] { aCellSize, aCellSize });
+        GeometryFactory factory = new GeometryFactory();
+
+        double total = 0;
+        double[] coverage = new double[cellsX];
+        for (int j = 0; j < cellsY; j++) {
+            rasterizer.coverageRow(j, 0, cellsX - 1, coverage);
+            for (int i = 0; i < cellsX; i++) {
+                double minX = aEnvelope.getMinX() + i * aCellSize;
+                double minY = aEnvelope.getMinY() + j * aCellSize;
+                com.vividsolutions.jts.geom.Geometry cell = factory
+                        .toGeometry(new Envelope(minX, minX + aCellSize, minY,
+                                minY + aCellSize));
+                double expected = cell.intersection(aGeometry).getArea()
+                        / (aCellSize * aCellSize);
+                assertEquals("cell " + i + ", " + j, expected, coverage[i],
+                        1e-9);
+                total += coverage[i] * aCellSize * aCellSize;
+            }
+        }
+        assertEquals(aGeometry.getArea(), total, 1e-9 * aGeometry.getArea());
+    }
+
+    /**
+     * The coverage is the area of the intersection of the geometry and the
+     * cell, for both ring orientations, holes and multipolygons.
+     * 
+     * @throws ParseException
+     *             when the WKT is wrong
+     */
+    @Test
+    public void coverageTest() throws ParseException {
+        WKTReader reader = new WKTReader();
+        Envelope envelope = new Envelope(0, 40, 0, 30);
+
+        // Clockwise shell.
+        assertCoverage(reader.read("POLYGON ((1.3 2.1, 3.3 27.6, "
+                + "12.1 20.4, 30.7 28.3, 37.2 4.9, 1.3 2.1), "
+                + "(10.2 8.8, 20.9 9.1, 15.1 17.3, 10.2 8.8))"), envelope, 1);
+
+        assertCoverage(reader.read("MULTIPOLYGON (((1 1, 25 1, 25 25, "
+                + "1 25, 1 1), (5 5, 20 5, 20 20, 5 20, 5 5)), "
+                + "((8 8, 15 8, 12 16, 8 8)), ((28 3, 39 14, 30 29, 28 3)))"),
+                envelope, 0.37);
+
+        Random random = new Random(11);
+        GeometryFactory factory = new GeometryFactory();
+        LinearRing shell = factory.createLinearRing(star(random, 20, 15, 4,
+                14, 300));
+        assertCoverage(factory.createPolygon(shell, null), envelope, 1.3);
+    }
+
+    /**
+     * Checks the touched cells against Geometry.intersects for the cell
+     * rectangles. The cells of the first column are not free and must not be
+     * marked.
+     * 
+     * @param aGeometry
+     *            the geometry
+     * @param aEnvelope
+     *            the grid envelope
+     * @param aCellSize
+     *            the cell size
+     */
+    private static void assertTouchedCells(
+            com.vividsolutions.jts.geom.Geometry aGeometry,
+            Envelope aEnvelope, double aCellSize) {
+        int cellsX = (int) Math.round(aEnvelope.getWidth() / aCellSize);
+        int cellsY = (int) Math.round(aEnvelope.getHeight() / aCellSize);
+        CartogramRasterizer rasterizer = new CartogramRasterizer(aGeometry,
+                aEnvelope, new double[] { aCellSize, aCellSize });
+        GeometryFactory factory = new GeometryFactory();
+
+        short[] cells = new short[cellsX * cellsY];
+        Arrays.fill(cells, (short) -1);
+        for (int j = 0; j < cellsY; j++) {
+            cells[j * cellsX] = 0;
+        }
+        rasterizer.markTouchedCells(cells, cellsX, 0, cellsX - 1, 0,
+                cellsY - 1, (short) -1, (short) 1);
+
+        for (int j = 0; j < cellsY; j++) {
+            assertEquals(0, cells[j * cellsX]);
+            for (int i = 1; i < cellsX; i++) {
+                double minX = aEnvelope.getMinX() + i * aCellSize;
+                double minY = aEnvelope.getMinY() + j * aCellSize;
+                boolean expected = aGeometry.intersects(factory
+                        .toGeometry(new Envelope(minX, minX + aCellSize,
+                                minY, minY + aCellSize)));
+                assertEquals("cell " + i + ", " + j, expected ? 1 : -1,
+                        cells[j * cellsX + i]);
+            }
+        }
+    }
+
+    /**
+     * The touched cells are the cells intersecting polygons, lines and points,
+     * including the cells only touched at a side or a corner.
+     * 
+     * @throws ParseException
+     *             when the WKT is wrong
+     */
+    @Test
+    public void touchedCellsTest() throws ParseException {
+        WKTReader reader = new WKTReader();
+        Envelope envelope = new Envelope(0, 40, 0, 30);
+
+        assertTouchedCells(reader.read("POLYGON ((1.3 2.1, 37.2 4.9, "
+                + "30.7 28.3, 12.1 20.4, 3.3 27.6, 1.3 2.1), "
+                + "(10.2 8.8, 20.9 9.1, 15.1 17.3, 10.2 8.8))"), envelope, 1);
+
+        // Lines on the cell sides and through the cell corners.
+        assertTouchedCells(reader.read("MULTILINESTRING ((2 3, 20 3, 20 17), "
+                + "(4 4, 30 30), (35.5 1.2, 22.7 29.1, 39.9 12.4))"),
+                envelope, 1);
+
+        assertTouchedCells(reader.read("MULTIPOINT (7 7, 13.5 21.5)"),
+                envelope, 0.5);
+        assertTouchedCells(reader.read("POLYGON ((30 5, 38 5, 38 13, 30 13, "
+                + "30 5))"), envelope, 0.5);
+
+        Random random = new Random(13);
+        GeometryFactory factory = new GeometryFactory();
+        Coordinate[] line = new Coordinate[200];
+        for (int k = 0; k < line.length; k++) {
+            line[k] = new Coordinate(1 + random.nextDouble() * 38,
+                    1 + random.nextDouble() * 28);
+        }
+        assertTouchedCells(factory.createLineString(line), envelope, 0.7);
+    }
+}
\ No newline at end of file
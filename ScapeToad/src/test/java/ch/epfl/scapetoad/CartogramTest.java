@@ -0,0 +1,30 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramTest {
+
+    /**
+     * The grid sizes are rounded to the nearest product of powers of 2, 3 and
+     * 5.
+     */
+    @Test
+    public void fastTransformSizeTest() {
+        assertEquals(1, Cartogram.fastTransformSize(1));
+        assertEquals(1000, Cartogram.fastTransformSize(999));
+        assertEquals(729, Cartogram.fastTransformSize(736));
+        assertEquals(1024, Cartogram.fastTransformSize(1021));
+
+        // On a tie, the larger size.
+        assertEquals(8, Cartogram.fastTransformSize(7));
+    }
+}
\ No newline at end of file
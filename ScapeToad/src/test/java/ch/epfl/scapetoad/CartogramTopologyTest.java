@@ -0,0 +1,184 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramTopologyTest {
+
+    /**
+     * The borders of a 3 x 3 block of squares are cut at the junctions, and
+     * the ring of a hole is the same arc as the island filling it, starting
+     * elsewhere and turning the other way.
+     * 
+     * @throws ParseException
+     *             when a geometry is invalid
+     */
+    @Test
+    public void arcsTest() throws ParseException {
+        // 24 unit borders, the two borders at each outer corner form a single
+        // arc.
+        CartogramTopology topology = new CartogramTopology(createSquares());
+        assertEquals(9, topology.getSequenceCount());
+        assertEquals(20, topology.getArcCount());
+
+        WKTReader reader = new WKTReader();
+        List<CartogramFeature> features = new ArrayList<CartogramFeature>();
+        features.add(new CartogramFeature(reader.read("POLYGON((0 0, 9 0, "
+                + "9 9, 0 9, 0 0), (2 2, 2 6, 6 6, 6 2, 2 2))"),
+                new HashMap<String, Object>()));
+        features.add(new CartogramFeature(reader
+                .read("POLYGON((6 6, 2 6, 2 2, 6 2, 6 6))"),
+                new HashMap<String, Object>()));
+        topology = new CartogramTopology(features);
+        assertEquals(3, topology.getSequenceCount());
+        assertEquals(2, topology.getArcCount());
+    }
+
+    /**
+     * The projected squares have the areas of the squares projected one by
+     * one, and fill their projected block without gaps nor overlaps. The
+     * result doesn't depend on the number of threads.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Test
+    public void projectionTest() throws InterruptedException {
+        CartogramGrid grid = new CartogramGrid(41, 41, new Envelope(-5, 35,
+                -5, 35));
+        CartogramGridTest.distort(grid, 0.3, 3, 2);
+
+        List<CartogramFeature> squares = createSquares();
+        CartogramExecutor executor = new CartogramExecutor(3);
+        List<CartogramFeature> projected;
+        List<CartogramFeature> serial;
+        try {
+            projected = new CartogramTopology(squares).project(grid, 2,
+                    executor);
+            serial = new CartogramTopology(squares).project(grid, 2,
+                    new CartogramExecutor(1));
+        } finally {
+            executor.shutdown();
+        }
+
+        com.vividsolutions.jts.geom.Geometry union = null;
+        double area = 0;
+        for (int f = 0; f < squares.size(); f++) {
+            CartogramFeature square = squares.get(f);
+            square.regularizeGeometry(2);
+            com.vividsolutions.jts.geom.Geometry geometry = projected.get(f)
+                    .getGeometry();
+            assertEquals(square.projectFeatureWithGrid(grid).getGeometry()
+                    .getArea(), geometry.getArea(), 1e-9);
+            assertArrayEquals(serial.get(f).getGeometry().getCoordinates(),
+                    geometry.getCoordinates());
+            assertEquals(100.0, projected.get(f).getAttributeAsDouble("value"),
+                    0.0);
+
+            area += geometry.getArea();
+            union = union == null ? geometry : union.union(geometry);
+        }
+        assertTrue(union instanceof Polygon);
+        assertEquals(0, ((Polygon) union).getNumInteriorRing());
+        assertEquals(area, union.getArea(), 1e-9);
+    }
+
+    /**
+     * The concurrent projection of the features, by lines and rings, gives
+     * the features projected one by one, with or without the projection
+     * cache.
+     * 
+     * @throws Exception
+     *             when the projection failed
+     */
+    @Test
+    public void featureProjectionTest() throws Exception {
+        CartogramGrid grid = new CartogramGrid(41, 41, new Envelope(-5, 35,
+                -5, 35));
+        CartogramGridTest.distort(grid, 0.3, 3, 2);
+
+        WKTReader reader = new WKTReader();
+        List<CartogramFeature> features = createSquares();
+        for (String wkt : new String[] {
+                "MULTIPOLYGON(((0 0, 9 0, 9 9, 0 9, 0 0), (2 2, 2 6, 6 6, "
+                        + "6 2, 2 2)), ((12 12, 18 12, 15 18, 12 12)))",
+                "MULTILINESTRING((1 1, 29 3, 7 25), (0 30, 30 0))",
+                "MULTIPOINT(3 4, 17.5 22.25)", "POINT(1.5 28)" }) {
+            features.add(new CartogramFeature(reader.read(wkt),
+                    new HashMap<String, Object>()));
+        }
+        @SuppressWarnings("rawtypes")
+        Map<String, Class> types = new HashMap<String, Class>();
+        CartogramLayer layer = new CartogramLayer("test", Color.WHITE, types,
+                features);
+        layer.regularizeLayer(1.5);
+
+        CartogramExecutor executor = new CartogramExecutor(3);
+        try {
+            for (boolean cached : new boolean[] { false, true }) {
+                CartogramProjectionCache cache = null;
+                if (cached) {
+                    cache = new CartogramProjectionCache();
+                }
+                grid.setProjectionCache(cache);
+                List<CartogramFeature> projected = layer.projectLayerWithGrid(
+                        grid, executor).getFeatures();
+                grid.setProjectionCache(null);
+                for (int f = 0; f < features.size(); f++) {
+                    assertArrayEquals(features.get(f)
+                            .projectFeatureWithGrid(grid).getGeometry()
+                            .getCoordinates(), projected.get(f).getGeometry()
+                            .getCoordinates());
+                }
+                if (cached) {
+                    assertEquals(cache.getLookups() - cache.getHits(),
+                            cache.size());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates a 3 x 3 block of squares of side 10.
+     * 
+     * @return the squares
+     */
+    private static List<CartogramFeature> createSquares() {
+        GeometryFactory factory = new GeometryFactory();
+        List<CartogramFeature> squares = new ArrayList<CartogramFeature>();
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < 3; i++) {
+                Map<String, Object> attributes = new HashMap<String, Object>();
+                attributes.put("value", Double.valueOf(100));
+                squares.add(new CartogramFeature(factory
+                        .toGeometry(new Envelope(10 * i, 10 * i + 10, 10 * j,
+                                10 * j + 10)), attributes));
+            }
+        }
+        return squares;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * 
+ */
+@SuppressWarnings("static-method")
+public class CartogramTransformTest {
+
+    /**
+     * The transform saved with double nodes is loaded with the same grid,
+     * metadata and projection; the float offsets only move the nodes by a
+     * tiny fraction of a cell in a file about half the size.
+     * 
+     * @throws IOException
+     *             when the file can't be written or read
+     */
+    @Test
+    public void writeReadTest() throws IOException {
+        CartogramGrid grid = new CartogramGrid(61, 41, new Envelope(1e6,
+                1e6 + 600, 2e6, 2e6 + 400));
+        CartogramGridTest.distort(grid, 3, 30, 20);
+        double[] x = grid.getNodeX();
+        double[] y = grid.getNodeY();
+        CartogramTransform transform = new CartogramTransform(grid);
+        transform.getMetadata().put(CartogramTransform.LAYER, "Gemeinden");
+        transform.getMetadata().put(
+                CartogramTransform.MAXIMUM_SEGMENT_LENGTH, "2.5");
+
+        File file = File.createTempFile("scapetoad", ".stt");
+        try {
+            transform.write(file, false);
+            long doubleLength = file.length();
+            CartogramTransform loaded = CartogramTransform.read(file);
+            CartogramGrid loadedGrid = loaded.getGrid();
+            assertArrayEquals(grid.getGridSize(), loadedGrid.getGridSize());
+            assertEquals(grid.getEnvelope(), loadedGrid.getEnvelope());
+            assertArrayEquals(x, loadedGrid.getNodeX(), 0.0);
+            assertArrayEquals(y, loadedGrid.getNodeY(), 0.0);
+            assertEquals(transform.getMetadata(), loaded.getMetadata());
+            assertEquals(2.5, loaded.getMaximumSegmentLength(), 0.0);
+            double[] expected = grid.projectPoint(1e6 + 123.4, 2e6 + 321.5);
+            assertArrayEquals(expected,
+                    loadedGrid.projectPoint(1e6 + 123.4, 2e6 + 321.5), 0.0);
+
+            transform.write(file, true);
+            assertTrue(file.length() < 0.55 * doubleLength);
+            loadedGrid = CartogramTransform.read(file).getGrid();
+            assertArrayEquals(x, loadedGrid.getNodeX(), 1e-5);
+            assertArrayEquals(y, loadedGrid.getNodeY(), 1e-5);
+            assertArrayEquals(expected,
+                    loadedGrid.projectPoint(1e6 + 123.4, 2e6 + 321.5), 1e-5);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A file which is not a transform, a truncated one, or one with a corrupt
+     * metadata length, is rejected.
+     * 
+     * @throws IOException
+     *             when the file can't be written
+     */
+    @Test
+    public void invalidFileTest() throws IOException {
+        File file = File.createTempFile("scapetoad", ".stt");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            } finally {
+                out.close();
+            }
+            assertInvalid(file);
+
+            new CartogramTransform(new CartogramGrid(11, 11, new Envelope(0,
+                    10, 0, 10))).write(file, false);
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(truncated.length() - 8);
+            } finally {
+                truncated.close();
+            }
+            assertInvalid(file);
+
+            // The length of the first metadata key follows the header and
+            // the metadata count.
+            CartogramTransform transform = new CartogramTransform(
+                    new CartogramGrid(11, 11, new Envelope(0, 10, 0, 10)));
+            transform.getMetadata().put(CartogramTransform.LAYER, "test");
+            for (int length : new int[] { -1, Integer.MAX_VALUE }) {
+                transform.write(file, false);
+                RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+                try {
+                    corrupt.seek(52);
+                    corrupt.writeInt(length);
+                } finally {
+                    corrupt.close();
+                }
+                assertInvalid(file);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Asserts that a file can't be loaded.
+     * 
+     * @param aFile
+     *            the file
+     */
+    private static void assertInvalid(File aFile) {
+        try {
+            CartogramTransform.read(aFile);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
\ No newline at end of file
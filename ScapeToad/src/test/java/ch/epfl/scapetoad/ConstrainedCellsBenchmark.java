@@ -0,0 +1,162 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Compares the marking of the cells touched by a line-heavy constrained
+ * layer (random walks like roads or rivers): a JTS polygon and an intersects
+ * test for each cell of the feature envelopes, against the walking of the
+ * segments of the rasterizer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConstrainedCellsBenchmark {
+
+    /**
+     * The number of cells on each side.
+     */
+    @Param({ "125", "250" })
+    public int iCells;
+
+    /**
+     * The lines.
+     */
+    private com.vividsolutions.jts.geom.Geometry[] iLines;
+
+    /**
+     * The grid envelope.
+     */
+    private Envelope iEnvelope;
+
+    /**
+     * The cell values.
+     */
+    private short[] iValues;
+
+    /**
+     * Creates 10 random walks of 200 vertices.
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        GeometryFactory factory = new GeometryFactory();
+        iEnvelope = new Envelope(0, 1000, 0, 1000);
+        iLines = new com.vividsolutions.jts.geom.Geometry[10];
+        for (int l = 0; l < iLines.length; l++) {
+            Coordinate[] line = new Coordinate[200];
+            double x = 100 + 800 * random.nextDouble();
+            double y = 100 + 800 * random.nextDouble();
+            double angle = 2 * Math.PI * random.nextDouble();
+            for (int k = 0; k < line.length; k++) {
+                line[k] = new Coordinate(x, y);
+                angle += 0.5 * random.nextGaussian();
+                x = Math.max(1, Math.min(999, x + 2 * Math.cos(angle)));
+                y = Math.max(1, Math.min(999, y + 2 * Math.sin(angle)));
+            }
+            iLines[l] = factory.createLineString(line);
+        }
+        iValues = new short[iCells * iCells];
+    }
+
+    /**
+     * Marks the cells by testing a polygon of each cell with JTS.
+     * 
+     * @return a cell value
+     */
+    @Benchmark
+    public short jts() {
+        reset();
+        double cellSize = iEnvelope.getWidth() / iCells;
+        GeometryFactory factory = new GeometryFactory();
+        for (com.vividsolutions.jts.geom.Geometry line : iLines) {
+            Envelope envelope = line.getEnvelopeInternal();
+            int maxI = (int) Math.ceil(envelope.getMaxX() / cellSize) - 1;
+            int maxJ = (int) Math.ceil(envelope.getMaxY() / cellSize) - 1;
+            for (int j = (int) Math.ceil(envelope.getMinY() / cellSize) - 1; j <= maxJ; j++) {
+                for (int i = (int) Math.ceil(envelope.getMinX() / cellSize) - 1; i <= maxI; i++) {
+                    if (iValues[j * iCells + i] == -1) {
+                        com.vividsolutions.jts.geom.Geometry cell = factory
+                                .toGeometry(new Envelope(i * cellSize, (i + 1)
+                                        * cellSize, j * cellSize, (j + 1)
+                                        * cellSize));
+                        if (line.contains(cell) || line.intersects(cell)) {
+                            iValues[j * iCells + i] = 1;
+                        }
+                    }
+                }
+            }
+        }
+        return iValues[iCells / 2 * iCells + iCells / 2];
+    }
+
+    /**
+     * Marks the cells by walking the segments.
+     * 
+     * @return a cell value
+     */
+    @Benchmark
+    public short segments() {
+        reset();
+        double cellSize = iEnvelope.getWidth() / iCells;
+        double[] size = { cellSize, cellSize };
+        for (com.vividsolutions.jts.geom.Geometry line : iLines) {
+            Envelope envelope = line.getEnvelopeInternal();
+            new CartogramRasterizer(line, iEnvelope, size).markTouchedCells(
+                    iValues, iCells,
+                    (int) Math.ceil(envelope.getMinX() / cellSize) - 1,
+                    (int) Math.ceil(envelope.getMaxX() / cellSize) - 1,
+                    (int) Math.ceil(envelope.getMinY() / cellSize) - 1,
+                    (int) Math.ceil(envelope.getMaxY() / cellSize) - 1,
+                    (short) -1, (short) 1);
+        }
+        return iValues[iCells / 2 * iCells + iCells / 2];
+    }
+
+    /**
+     * Marks all the cells as free.
+     */
+    private void reset() {
+        Arrays.fill(iValues, (short) -1);
+    }
+
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param aArgs
+     *            not used
+     * @throws RunnerException
+     *             when the benchmark failed
+     */
+    public static void main(String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                ConstrainedCellsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,200 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
+
+/**
+ * Compares the jagged (double[nx][ny]) and the flat (double[nx * ny]) storage
+ * of the diffusion arrays. The snapshot benchmarks multiply the transformed
+ * density by the Gaussian factors and back-transform it, the stencil
+ * benchmarks read the four densities around each cell corner like the
+ * velocity computation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DiffusionLayoutBenchmark {
+
+    /**
+     * The number of cells on each side.
+     */
+    @Param({ "1000", "2000", "3000" })
+    public int iSize;
+
+    /**
+     * The transformed density, jagged.
+     */
+    private double[][] iJaggedFftrho;
+
+    /**
+     * The density snapshot, jagged.
+     */
+    private double[][] iJaggedRhot;
+
+    /**
+     * The transformed density, flat.
+     */
+    private double[] iFlatFftrho;
+
+    /**
+     * The density snapshot, flat.
+     */
+    private double[] iFlatRhot;
+
+    /**
+     * The Gaussian factors along x and y.
+     */
+    private double[] iExpk;
+
+    /**
+     * The transform.
+     */
+    private DoubleDCT_2D iDct;
+
+    /**
+     * Creates the arrays with the same random content.
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        iJaggedFftrho = new double[iSize][iSize];
+        iJaggedRhot = new double[iSize][iSize];
+        iFlatFftrho = new double[iSize * iSize];
+        iFlatRhot = new double[iSize * iSize];
+        for (int x = 0; x < iSize; x++) {
+            for (int y = 0; y < iSize; y++) {
+                double value = random.nextDouble();
+                iJaggedFftrho[x][y] = value;
+                iFlatFftrho[x * iSize + y] = value;
+            }
+        }
+
+        iExpk = new double[iSize];
+        for (int k = 0; k < iSize; k++) {
+            double kx = Math.PI * k / iSize;
+            iExpk[k] = Math.exp(-kx * kx * 0.01);
+        }
+
+        iDct = new DoubleDCT_2D(iSize, iSize);
+    }
+
+    /**
+     * Computes a density snapshot with the jagged arrays.
+     * 
+     * @return a density
+     */
+    @Benchmark
+    public double jaggedSnapshot() {
+        for (int x = 0; x < iSize; x++) {
+            double[] fftrho = iJaggedFftrho[x];
+            double[] rhot = iJaggedRhot[x];
+            for (int y = 0; y < iSize; y++) {
+                rhot[y] = iExpk[x] * iExpk[y] * fftrho[y];
+            }
+        }
+        iDct.inverse(iJaggedRhot, false);
+        return iJaggedRhot[iSize / 2][iSize / 2];
+    }
+
+    /**
+     * Computes a density snapshot with the flat arrays.
+     * 
+     * @return a density
+     */
+    @Benchmark
+    public double flatSnapshot() {
+        int i = 0;
+        for (int x = 0; x < iSize; x++) {
+            for (int y = 0; y < iSize; y++) {
+                iFlatRhot[i] = iExpk[x] * iExpk[y] * iFlatFftrho[i];
+                i++;
+            }
+        }
+        iDct.inverse(iFlatRhot, false);
+        return iFlatRhot[iSize * iSize / 2];
+    }
+
+    /**
+     * Computes the velocity stencil at every inner corner with the jagged
+     * arrays.
+     * 
+     * @return the sum of the velocities
+     */
+    @Benchmark
+    public double jaggedStencil() {
+        double[][] rho = iJaggedFftrho;
+        double sum = 0;
+        for (int y = 1; y < iSize; y++) {
+            for (int x = 1; x < iSize; x++) {
+                double rhoaa = rho[x - 1][y - 1];
+                double rhoba = rho[x][y - 1];
+                double rhoab = rho[x - 1][y];
+                double rhobb = rho[x][y];
+                double mid = rhoaa + rhoba + rhoab + rhobb;
+                sum += (rhoba - rhoaa + rhobb - rhoab) / mid;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the velocity stencil at every inner corner with the flat
+     * arrays.
+     * 
+     * @return the sum of the velocities
+     */
+    @Benchmark
+    public double flatStencil() {
+        double[] rho = iFlatFftrho;
+        double sum = 0;
+        for (int y = 1; y < iSize; y++) {
+            for (int x = 1; x < iSize; x++) {
+                int xa = (x - 1) * iSize;
+                int xb = x * iSize;
+                double rhoaa = rho[xa + y - 1];
+                double rhoba = rho[xb + y - 1];
+                double rhoab = rho[xa + y];
+                double rhobb = rho[xb + y];
+                double mid = rhoaa + rhoba + rhoab + rhobb;
+                sum += (rhoba - rhoaa + rhobb - rhoab) / mid;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param aArgs
+     *            not used
+     * @throws RunnerException
+     *             when the benchmark failed
+     */
+    public static void main(String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                DiffusionLayoutBenchmark.class.getSimpleName()).build()).run();
+    }
+}
\ No newline at end of file
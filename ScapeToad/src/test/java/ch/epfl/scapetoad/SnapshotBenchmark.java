@@ -0,0 +1,134 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Compares the four density snapshots of a two-step integration computed one
+ * after the other with the same snapshots computed as a batch, which sweeps
+ * the transformed density once and back-transforms the snapshots
+ * concurrently.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotBenchmark {
+
+    /**
+     * The number of grid nodes on each side.
+     */
+    @Param({ "513", "1025" })
+    public int iNodes;
+
+    /**
+     * The number of computation threads.
+     */
+    @Param({ "1", "4" })
+    public int iThreads;
+
+    /**
+     * The cartogram engine with its initial density transformed.
+     */
+    private CartogramNewman iNewman;
+
+    /**
+     * The executor of the engine.
+     */
+    private CartogramExecutor iExecutor;
+
+    /**
+     * Prepares the engine.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Setup
+    public void setup() throws InterruptedException {
+        CartogramGrid grid = new CartogramGrid(iNodes, iNodes, new Envelope(0,
+                iNodes - 1, 0, iNodes - 1));
+        double[] density = grid.getCurrentDensityArray();
+        double center = iNodes / 3.0;
+        int cellsX = iNodes - 1;
+        for (int k = 0; k < density.length; k++) {
+            double dx = k % cellsX - center;
+            double dy = k / cellsX - center;
+            density[k] = 1 + 20 * Math.exp(-(dx * dx + dy * dy)
+                    / (iNodes * 2.0));
+        }
+
+        iExecutor = new CartogramExecutor(iThreads);
+        iNewman = new CartogramNewman(grid);
+        iNewman.setExecutor(iExecutor);
+        iNewman.prepare();
+    }
+
+    /**
+     * Stops the executor.
+     */
+    @TearDown
+    public void tearDown() {
+        iExecutor.shutdown();
+    }
+
+    /**
+     * Computes the four snapshots one after the other.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Benchmark
+    public void separate() throws InterruptedException {
+        iNewman.densitySnapshot(0.5, 1);
+        iNewman.densitySnapshot(1.0, 2);
+        iNewman.densitySnapshot(1.5, 3);
+        iNewman.densitySnapshot(2.0, 4);
+    }
+
+    /**
+     * Computes the four snapshots as a batch.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Benchmark
+    public void batched() throws InterruptedException {
+        iNewman.densitySnapshots(new double[] { 0.5, 1.0, 1.5, 2.0 },
+                new int[] { 1, 2, 3, 4 });
+    }
+
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param aArgs
+     *            not used
+     * @throws RunnerException
+     *             when the benchmark failed
+     */
+    public static void main(String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                SnapshotBenchmark.class.getSimpleName()).build()).run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.emory.mathcs.jtransforms.dct.DoubleDCT_2D;
+
+/**
+ * Measures the DCT time of one density snapshot with the exact grid size and
+ * with the grid size rounded to fast transform sizes. The extents are the
+ * width to height ratios of the envelopes of a few countries, with the 1000
+ * nodes of the default grid on the longer side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TransformSizeBenchmark {
+
+    /**
+     * The width to height ratio of the envelope: Switzerland, France, Chile.
+     */
+    @Param({ "1.47", "0.98", "0.36" })
+    public double iAspectRatio;
+
+    /**
+     * The snapshot content.
+     */
+    private double[] iSource;
+
+    /**
+     * The snapshot with the exact grid size.
+     */
+    private double[] iExactSnapshot;
+
+    /**
+     * The snapshot with the fast transform grid size.
+     */
+    private double[] iFastSnapshot;
+
+    /**
+     * The transform with the exact grid size.
+     */
+    private DoubleDCT_2D iExactDct;
+
+    /**
+     * The transform with the fast transform grid size.
+     */
+    private DoubleDCT_2D iFastDct;
+
+    /**
+     * Computes the grid sizes and creates the transforms.
+     */
+    @Setup
+    public void setup() {
+        // The grid size like Cartogram.adjustGridSizeToEnvelope.
+        int nodesX = 1000;
+        int nodesY = 1000;
+        if (iAspectRatio < 1) {
+            nodesX = (int) Math.round(nodesY * iAspectRatio);
+        } else {
+            nodesY = (int) Math.round(nodesX / iAspectRatio);
+        }
+
+        int exactX = nodesX - 1;
+        int exactY = nodesY - 1;
+        int fastX = Cartogram.fastTransformSize(exactX);
+        int fastY = Cartogram.fastTransformSize(exactY);
+
+        Random random = new Random(42);
+        iSource = new double[Math.max(exactX * exactY, fastX * fastY)];
+        for (int i = 0; i < iSource.length; i++) {
+            iSource[i] = random.nextDouble();
+        }
+
+        iExactSnapshot = new double[exactX * exactY];
+        iFastSnapshot = new double[fastX * fastY];
+        iExactDct = new DoubleDCT_2D(exactX, exactY);
+        iFastDct = new DoubleDCT_2D(fastX, fastY);
+    }
+
+    /**
+     * Back-transforms a snapshot with the exact grid size.
+     * 
+     * @return a density
+     */
+    @Benchmark
+    public double exactSize() {
+        System.arraycopy(iSource, 0, iExactSnapshot, 0, iExactSnapshot.length);
+        iExactDct.inverse(iExactSnapshot, false);
+        return iExactSnapshot[0];
+    }
+
+    /**
+     * Back-transforms a snapshot with the fast transform grid size.
+     * 
+     * @return a density
+     */
+    @Benchmark
+    public double fastSize() {
+        System.arraycopy(iSource, 0, iFastSnapshot, 0, iFastSnapshot.length);
+        iFastDct.inverse(iFastSnapshot, false);
+        return iFastSnapshot[0];
+    }
+
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param aArgs
+     *            not used
+     * @throws RunnerException
+     *             when the benchmark failed
+     */
+    public static void main(String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                TransformSizeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
\ No newline at end of file
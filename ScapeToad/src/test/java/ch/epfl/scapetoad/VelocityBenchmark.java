@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package ch.epfl.scapetoad;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Measures the velocity interpolation of the diffusion cartogram. Run it with
+ * the GC profiler (the main method, or "-prof gc" on the JMH command line):
+ * the gc.alloc.rate.norm of the velocity benchmark must be zero, the one of
+ * the integration benchmark only counts the two small arrays of the call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VelocityBenchmark {
+
+    /**
+     * The number of grid nodes on each side.
+     */
+    @Param({ "257", "513" })
+    public int iNodes;
+
+    /**
+     * <code>true</code> to precompute the velocity field of each snapshot.
+     */
+    @Param({ "false", "true" })
+    public boolean iPrecompute;
+
+    /**
+     * The cartogram engine with its snapshots computed.
+     */
+    private CartogramNewman iNewman;
+
+    /**
+     * The number of diffusion grid points.
+     */
+    private int iPointCount;
+
+    /**
+     * The velocity scratch array.
+     */
+    private double[] iVelocity = new double[2];
+
+    /**
+     * Prepares the engine and the five density snapshots.
+     * 
+     * @throws InterruptedException
+     *             when interrupted
+     */
+    @Setup
+    public void setup() throws InterruptedException {
+        CartogramGrid grid = new CartogramGrid(iNodes, iNodes, new Envelope(0,
+                iNodes - 1, 0, iNodes - 1));
+        double[] density = grid.getCurrentDensityArray();
+        double center = iNodes / 3.0;
+        int cellsX = iNodes - 1;
+        for (int k = 0; k < density.length; k++) {
+            double dx = k % cellsX - center;
+            double dy = k / cellsX - center;
+            density[k] = 1 + 20 * Math.exp(-(dx * dx + dy * dy)
+                    / (iNodes * 2.0));
+        }
+
+        iNewman = new CartogramNewman(grid);
+        iNewman.setExecutor(new CartogramExecutor(1));
+        iNewman.setPrecomputeVelocity(iPrecompute);
+        iNewman.prepare();
+        for (int s = 0; s < 5; s++) {
+            iNewman.densitySnapshot(0.001 * s, s);
+        }
+        iPointCount = iNodes * iNodes;
+    }
+
+    /**
+     * Interpolates the velocity at every cell centre.
+     * 
+     * @return the sum of the velocities
+     */
+    @Benchmark
+    public double velocity() {
+        double sum = 0;
+        int cells = iNodes - 1;
+        for (int y = 0; y < cells; y++) {
+            for (int x = 0; x < cells; x++) {
+                iNewman.velocity(x + 0.5, y + 0.5, 0, iVelocity);
+                sum += iVelocity[0] + iVelocity[1];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Integrates all the grid points over one combined step.
+     * 
+     * @return the maximum squared error and displacement
+     */
+    @Benchmark
+    public double[] integratePoints() {
+        return iNewman.integratePoints(0, iPointCount, 0.001, 0, 1, 2, 3, 4);
+    }
+
+    /**
+     * Runs the benchmarks with the GC profiler.
+     * 
+     * @param aArgs
+     *            not used
+     * @throws RunnerException
+     *             when the benchmark failed
+     */
+    public static void main(String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(VelocityBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+}
\ No newline at end of file
@@ -74,6 +74,7 @@ import com.vividsolutions.jump.feature.FeatureSchema;
 import com.vividsolutions.jump.workbench.model.Layer;
 
 import ch.epfl.scapetoad.Cartogram;
+import ch.epfl.scapetoad.CartogramEngines;
 import ch.epfl.scapetoad.CartogramLayer;
 
 /**
@@ -211,6 +212,11 @@ public class CartogramWizard extends JFrame {
      */
     public double bias = 0.000001;
 
+    /**
+     * The name of the cartogram engine.
+     */
+    private String iEngineName = CartogramEngines.DEFAULT;
+
     /**
      * The default constructor for the wizard.
      */
@@ -491,6 +497,25 @@ public class CartogramWizard extends JFrame {
         iCreateGridLayer = createGridLayer;
     }
 
+    /**
+     * Returns the name of the engine computing the cartogram.
+     * 
+     * @return the engine name
+     */
+    public String getEngineName() {
+        return iEngineName;
+    }
+
+    /**
+     * Changes the engine computing the cartogram.
+     * 
+     * @param aEngineName
+     *            the engine name, as registered in CartogramEngines
+     */
+    public void setEngineName(String aEngineName) {
+        iEngineName = aEngineName;
+    }
+
     /**
      * Returns the size of the deformation grid which can be created as an
      * additional layer.
@@ -2256,6 +2281,8 @@ class CartogramWizardComputeAction extends AbstractAction {
         cartogram.setAdvancedOptionsEnabled(iCartogramWizard
                 .getAdvancedOptionsEnabled());
         cartogram.setGridSize(iCartogramWizard.getCartogramGridSize());
+        cartogram.setEngine(CartogramEngines.create(iCartogramWizard
+                .getEngineName()));
 
         // Set the parameters for the deformation grid layer
         cartogram.setGridLayerSize(iCartogramWizard.getDeformationGridSize());
@@ -2336,6 +2363,11 @@ class CartogramWizardOptionsWindow extends JDialog implements
      */
     private JTextField iBiasTextField = null;
 
+    /**
+     * The cartogram engine combo box.
+     */
+    private JComboBox iEngineComboBox = null;
+
     /**
      * Constructor for the options window.
      */
@@ -2343,7 +2375,7 @@ class CartogramWizardOptionsWindow extends JDialog implements
         // Set the window parameters.
         setTitle("Advanced options");
 
-        setSize(500, 530);
+        setSize(500, 570);
         setLocation(40, 50);
         setResizable(false);
         setLayout(null);
@@ -2538,9 +2570,25 @@ class CartogramWizardOptionsWindow extends JDialog implements
         iBiasTextField.setEnabled(iAdvancedOptionsCheckBox.isSelected());
         add(iBiasTextField);
 
+        // Cartogram engine
+        JLabel engineLabel = new JLabel("Cartogram engine:");
+        engineLabel.setLocation(45, 440);
+        engineLabel.setSize(140, 26);
+        engineLabel.setFont(new Font(null, Font.PLAIN, 11));
+        add(engineLabel);
+
+        iEngineComboBox = new JComboBox(CartogramEngines.getNames()
+                .toArray());
+        iEngineComboBox.setSelectedItem(AppContext.cartogramWizard
+                .getEngineName());
+        iEngineComboBox.setLocation(190, 440);
+        iEngineComboBox.setSize(150, 26);
+        iEngineComboBox.setFont(new Font(null, Font.PLAIN, 11));
+        add(iEngineComboBox);
+
         // Cancel button
         JButton cancelButton = new JButton("Cancel");
-        cancelButton.setLocation(270, 460);
+        cancelButton.setLocation(270, 500);
         cancelButton.setSize(100, 26);
         cancelButton
                 .addActionListener(new CartogramWizardAdvancedOptionsAction(
@@ -2549,7 +2597,7 @@ class CartogramWizardOptionsWindow extends JDialog implements
 
         // Ok button
         JButton okButton = new JButton("OK");
-        okButton.setLocation(380, 460);
+        okButton.setLocation(380, 500);
         okButton.setSize(100, 26);
         okButton.addActionListener(new CartogramWizardAdvancedOptionsAction(
                 "closeDialogWithSaving", this));
@@ -2562,7 +2610,7 @@ class CartogramWizardOptionsWindow extends JDialog implements
         helpButton.setVerticalTextPosition(SwingConstants.BOTTOM);
         helpButton.setHorizontalTextPosition(SwingConstants.CENTER);
         helpButton.setSize(30, 30);
-        helpButton.setLocation(20, 460);
+        helpButton.setLocation(20, 500);
         helpButton.setFocusable(false);
         helpButton.setContentAreaFilled(false);
         helpButton.setBorderPainted(false);
@@ -2610,6 +2658,9 @@ class CartogramWizardOptionsWindow extends JDialog implements
         } catch (NumberFormatException e3) {
             // Nothing to do
         }
+
+        AppContext.cartogramWizard.setEngineName((String) iEngineComboBox
+                .getSelectedItem());
     }
 
     @Override
@@ -26,6 +26,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.List;
+import java.util.Locale;
 
 import javax.swing.ImageIcon;
 import javax.swing.JWindow;
@@ -46,8 +47,15 @@ import com.vividsolutions.jump.workbench.model.Layer;
 import com.vividsolutions.jump.workbench.model.LayerManager;
 
 import ch.epfl.scapetoad.Cartogram;
+import ch.epfl.scapetoad.Cartogram.GridSizePolicy;
+import ch.epfl.scapetoad.CartogramEngines;
+import ch.epfl.scapetoad.CartogramExecutor;
+import ch.epfl.scapetoad.CartogramFlow;
 import ch.epfl.scapetoad.CartogramLayer;
-import ch.epfl.scapetoad.ICartogramStatus;
+import ch.epfl.scapetoad.CartogramNewman;
+import ch.epfl.scapetoad.CartogramNewmanEngine;
+import ch.epfl.scapetoad.CartogramTransform;
+import ch.epfl.scapetoad.ICartogramEngine;
 
 /**
  * This class contains the main method of the ScapeToad application.
@@ -167,13 +175,75 @@ public class ScapeToad {
                 .withType(File.class).isRequired()
                 .withDescription("master shape file").hasArg()
                 .withArgName("master.shp").create('m'));
-        options.addOption(OptionBuilder.withLongOpt("attribute").isRequired()
+        options.addOption(OptionBuilder.withLongOpt("attribute")
                 .withDescription("master attribute").hasArg()
                 .withArgName("Pop2006").create('a'));
         options.addOption(OptionBuilder.withLongOpt("cartogram")
                 .withType(File.class).isRequired()
                 .withDescription("cartogram destination shape file").hasArg()
                 .withArgName("cartogram.shp").create('c'));
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                .withType(Number.class)
+                .withDescription("number of computation threads").hasArg()
+                .withArgName("4").create('t'));
+        options.addOption(OptionBuilder.withLongOpt("engine")
+                .withDescription(
+                        "cartogram engine, one of "
+                                + CartogramEngines.getNames()).hasArg()
+                .withArgName(CartogramEngines.DEFAULT).create('e'));
+        options.addOption(OptionBuilder.withLongOpt("compare")
+                .withDescription(
+                        "report the size error difference to another engine")
+                .hasArg().withArgName(CartogramEngines.DEFAULT).create());
+        options.addOption(OptionBuilder.withLongOpt("grid-size-policy")
+                .withDescription("grid size policy, exact (default) or fast")
+                .hasArg().withArgName("fast").create());
+        options.addOption(OptionBuilder.withLongOpt("coverage")
+                .withDescription("weight the cell densities by feature area")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("feature-index")
+                .withDescription(
+                        "save the feature index next to the master layer")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("projection-cache")
+                .withDescription("project the shared vertices only once")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("topology")
+                .withDescription("project the shared borders once")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("save-transform")
+                .withType(File.class)
+                .withDescription("save the deformed grid to a transform file")
+                .hasArg().withArgName("cartogram.stt").create());
+        options.addOption(OptionBuilder.withLongOpt("float-transform")
+                .withDescription("save the transform nodes as float offsets")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("apply-transform")
+                .withType(File.class)
+                .withDescription(
+                        "project the master layer with a saved transform")
+                .hasArg().withArgName("cartogram.stt").create());
+        options.addOption(OptionBuilder.withLongOpt("step-controller")
+                .withDescription("diffusion step controller, ratio or pi")
+                .hasArg().withArgName("pi").create());
+        options.addOption(OptionBuilder.withLongOpt("min-step")
+                .withDescription("smallest time step of the pi controller")
+                .hasArg().withArgName("1e-6").create());
+        options.addOption(OptionBuilder.withLongOpt("max-step")
+                .withDescription("largest time step of the pi controller")
+                .hasArg().withArgName("10").create());
+        options.addOption(OptionBuilder.withLongOpt("max-displacement")
+                .withType(Number.class)
+                .withDescription("diffusion convergence distance in cells")
+                .hasArg().withArgName("0.01").create());
+        options.addOption(OptionBuilder.withLongOpt("max-steps")
+                .withType(Number.class)
+                .withDescription("maximum number of integration steps").hasArg()
+                .withArgName("1000").create());
+        options.addOption(OptionBuilder.withLongOpt("time-limit")
+                .withType(Number.class)
+                .withDescription("integration time limit in seconds").hasArg()
+                .withArgName("60").create());
         options.addOption("h", "help", false, "print this message");
 
         HelpFormatter formatter = new HelpFormatter();
@@ -198,20 +268,165 @@ public class ScapeToad {
             return;
         }
 
+        // Configure the cartogram
+        Cartogram cartogram = new Cartogram(new CartogramCLIStatus());
         File masterLayerFile = null;
         String masterAttribute = null;
         File cartogramLayerFile = null;
+        File transformFile = null;
+        int threadCount = Runtime.getRuntime().availableProcessors();
         try {
             masterLayerFile = (File) line.getParsedOptionValue("m");
             masterAttribute = line.getOptionValue('a');
             cartogramLayerFile = (File) line.getParsedOptionValue("c");
+            if (line.hasOption("apply-transform")) {
+                transformFile = (File) line
+                        .getParsedOptionValue("apply-transform");
+            } else if (masterAttribute == null) {
+                throw new IllegalArgumentException(
+                        "Missing required option: a");
+            }
+            if (line.hasOption('t')) {
+                threadCount = ((Number) line.getParsedOptionValue("t"))
+                        .intValue();
+                cartogram.setThreadCount(threadCount);
+            }
+            if (line.hasOption("grid-size-policy")) {
+                String policy = line.getOptionValue("grid-size-policy");
+                if (policy.equals("exact")) {
+                    cartogram.setGridSizePolicy(GridSizePolicy.EXACT);
+                } else if (policy.equals("fast")) {
+                    cartogram.setGridSizePolicy(GridSizePolicy.FAST_TRANSFORM);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Unknown grid size policy: " + policy);
+                }
+            }
+            if (line.hasOption("feature-index")) {
+                String path = masterLayerFile.getPath();
+                if (path.toLowerCase().endsWith(".shp")) {
+                    path = path.substring(0, path.length() - 4);
+                }
+                cartogram.setFeatureIndexFile(new File(path + ".sti"));
+            }
+            if (line.hasOption("coverage")) {
+                cartogram.setAreaWeightedDensity(true);
+            }
+            if (line.hasOption("projection-cache")) {
+                cartogram.setProjectionCache(true);
+            }
+            if (line.hasOption("topology")) {
+                cartogram.setTopologyProjection(true);
+            }
+            if (line.hasOption("save-transform")) {
+                cartogram.setTransformFile(
+                        (File) line.getParsedOptionValue("save-transform"),
+                        line.hasOption("float-transform"));
+            }
+            ICartogramEngine engine = CartogramEngines.create(line
+                    .getOptionValue('e', CartogramEngines.DEFAULT));
+            configureDiffusion(line, engine);
+            cartogram.setEngine(engine);
+            if (line.hasOption("compare")) {
+                cartogram.setComparisonEngine(CartogramEngines.create(line
+                        .getOptionValue("compare")));
+            }
         } catch (ParseException e) {
             logger.error("Exception parsing command line arguments: ", e);
             System.exit(-1);
             return;
+        } catch (IllegalArgumentException e) {
+            logger.error("Exception parsing command line arguments: ", e);
+            System.exit(-1);
+            return;
+        }
+
+        if (transformFile != null) {
+            applyTransform(masterLayerFile, transformFile, cartogramLayerFile,
+                    threadCount);
+            return;
+        }
+        launch(masterLayerFile, masterAttribute, cartogramLayerFile, cartogram);
+    }
+
+    /**
+     * Configures the step controller and the stopping criteria of the
+     * diffusion engine with the command line options. The flow engine only
+     * has the step and time limits, the other options are then ignored.
+     * 
+     * @param aLine
+     *            the command line
+     * @param aEngine
+     *            the cartogram engine
+     * @throws ParseException
+     *             when an option value is not a number
+     * @throws IllegalArgumentException
+     *             when the step controller is unknown or the step limits are
+     *             invalid
+     */
+    private static void configureDiffusion(CommandLine aLine,
+            ICartogramEngine aEngine) throws ParseException {
+        if (!(aEngine instanceof CartogramNewmanEngine)) {
+            if (aLine.hasOption("step-controller")
+                    || aLine.hasOption("min-step")
+                    || aLine.hasOption("max-step")
+                    || aLine.hasOption("max-displacement")) {
+                logger.warn("The diffusion step options are ignored by the "
+                        + aEngine.getName() + " engine.");
+            }
+            if (aEngine instanceof CartogramFlow) {
+                CartogramFlow flow = (CartogramFlow) aEngine;
+                if (aLine.hasOption("max-steps")) {
+                    flow.setMaxSteps(((Number) aLine
+                            .getParsedOptionValue("max-steps")).intValue());
+                }
+                if (aLine.hasOption("time-limit")) {
+                    flow.setTimeLimit(Math.round(1000 * ((Number) aLine
+                            .getParsedOptionValue("time-limit"))
+                            .doubleValue()));
+                }
+            } else if (aLine.hasOption("max-steps")
+                    || aLine.hasOption("time-limit")) {
+                logger.warn("The step and time limits are ignored by the "
+                        + aEngine.getName() + " engine.");
+            }
+            return;
         }
 
-        launch(masterLayerFile, masterAttribute, cartogramLayerFile);
+        CartogramNewmanEngine engine = (CartogramNewmanEngine) aEngine;
+        if (aLine.hasOption("step-controller")) {
+            engine.setStepController(CartogramNewman.StepController
+                    .valueOf(aLine.getOptionValue("step-controller")
+                            .toUpperCase(Locale.ENGLISH)));
+        }
+        if (aLine.hasOption("min-step") || aLine.hasOption("max-step")) {
+            double minStep = 1e-6;
+            double maxStep = Double.POSITIVE_INFINITY;
+            if (aLine.hasOption("min-step")) {
+                minStep = Double.parseDouble(aLine.getOptionValue("min-step"));
+            }
+            if (aLine.hasOption("max-step")) {
+                maxStep = Double.parseDouble(aLine.getOptionValue("max-step"));
+            }
+            if (!(minStep > 0 && minStep <= maxStep)) {
+                throw new IllegalArgumentException(
+                        "Invalid time step limits: " + minStep + " to "
+                                + maxStep);
+            }
+            engine.setStepLimits(minStep, maxStep);
+        }
+        if (aLine.hasOption("max-displacement")) {
+            engine.setMaxDisplacement(((Number) aLine
+                    .getParsedOptionValue("max-displacement")).doubleValue());
+        }
+        if (aLine.hasOption("max-steps")) {
+            engine.setMaxSteps(((Number) aLine
+                    .getParsedOptionValue("max-steps")).intValue());
+        }
+        if (aLine.hasOption("time-limit")) {
+            engine.setTimeLimit(Math.round(1000 * ((Number) aLine
+                    .getParsedOptionValue("time-limit")).doubleValue()));
+        }
     }
 
     /**
@@ -223,9 +438,11 @@ public class ScapeToad {
      *            the master attribute
      * @param aCartogramLayerFile
      *            the destination cartogram layer shape file
+     * @param aCartogram
+     *            the cartogram, configured with the command line options
      */
     private static void launch(File aMasterLayerFile, String aMasterAttribute,
-            File aCartogramLayerFile) {
+            File aCartogramLayerFile, Cartogram aCartogram) {
         // Create a new layer manager
         AppContext.layerManager = new LayerManager();
         AppContext.layerManager.addCategory("Original layers");
@@ -236,15 +453,13 @@ public class ScapeToad {
                     .getAbsolutePath());
 
             // Configure the cartogram
-            ICartogramStatus status = new CartogramCLIStatus();
-            Cartogram cartogram = new Cartogram(status);
-            cartogram.setMasterLayer(Utils.convert(masterLayer));
-            cartogram.setMasterAttribute(aMasterAttribute);
-            cartogram.setMasterAttributeIsDensityValue(false);
-            cartogram.setAdvancedOptionsEnabled(false);
+            aCartogram.setMasterLayer(Utils.convert(masterLayer));
+            aCartogram.setMasterAttribute(aMasterAttribute);
+            aCartogram.setMasterAttributeIsDensityValue(false);
+            aCartogram.setAdvancedOptionsEnabled(false);
 
             // Compute and finish
-            List<CartogramLayer> layers = cartogram.compute(false, false);
+            List<CartogramLayer> layers = aCartogram.compute(false, false);
 
             // Store the result
             IOManager.writeShapefile(
@@ -252,6 +467,10 @@ public class ScapeToad {
                             .getFeatureCollectionWrapper(), aCartogramLayerFile
                             .getAbsolutePath());
 
+            // Print the computation report
+            aCartogram.finish(layers, null, null);
+            logger.info(aCartogram.getComputationReport());
+
             // Close the program
             System.exit(0);
         } catch (Exception e) {
@@ -260,4 +479,54 @@ public class ScapeToad {
             return;
         }
     }
+
+    /**
+     * Projects a layer with a saved cartogram transform in the CLI mode,
+     * without computing the cartogram again.
+     * 
+     * @param aLayerFile
+     *            the shape file of the layer to project
+     * @param aTransformFile
+     *            the transform file
+     * @param aCartogramLayerFile
+     *            the destination shape file of the projected layer
+     * @param aThreadCount
+     *            the number of projection threads
+     */
+    private static void applyTransform(File aLayerFile, File aTransformFile,
+            File aCartogramLayerFile, int aThreadCount) {
+        // Create a new layer manager
+        AppContext.layerManager = new LayerManager();
+        AppContext.layerManager.addCategory("Original layers");
+
+        int status = 0;
+        CartogramExecutor executor = new CartogramExecutor(aThreadCount);
+        try {
+            // Load the transform and the layer
+            long start = System.nanoTime();
+            CartogramTransform transform = CartogramTransform
+                    .read(aTransformFile);
+            logger.info(String.format("Transform loaded in %1$s ms: %2$s",
+                    (System.nanoTime() - start) / 1000000,
+                    transform.getMetadata()));
+            Layer layer = IOManager.readShapefile(aLayerFile
+                    .getAbsolutePath());
+
+            // Project and store the result
+            CartogramLayer projected = transform.projectLayer(
+                    Utils.convert(layer), executor);
+            IOManager.writeShapefile(
+                    Utils.convert(projected, AppContext.layerManager)
+                            .getFeatureCollectionWrapper(), aCartogramLayerFile
+                            .getAbsolutePath());
+        } catch (Exception e) {
+            logger.error("Exception applying the cartogram transform: ", e);
+            status = -1;
+        } finally {
+            executor.shutdown();
+        }
+
+        // Close the program
+        System.exit(status);
+    }
 }
\ No newline at end of file